@@ -0,0 +1,87 @@
+/*
+    :: src/AggregationAdmission.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    Admission control for the AggregationServer. Requests are admitted in
+    three classes, GETs, feed writes (PUTs and PATCHes) and heartbeats, each
+    with its own limit on the requests in flight at once, so that a burst of
+    one class can't crowd out the others. A request over its class's limit
+    waits for a place only as long as its queue timeout, and is otherwise
+    shed with a 503 Service Unavailable, rather than joining an ever longer
+    queue for the cache lock. Heartbeats, which only keep records fresh, are
+    given by far the most room and the longest wait, so that a publisher
+    is never expired for a heartbeat shed under load.
+*/
+
+package rjww.atom;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class AggregationAdmission {
+    public static final int GET = 0;
+    public static final int PUT = 1;
+    public static final int HEARTBEAT = 2;
+
+    // The Retry-After header line sent with every shed request.
+    public static final byte[] RETRY_AFTER_HEADER =
+        ResponseWriter.ascii("Retry-After: " + Common.AGGREGATION_RETRY_AFTER + "\n");
+
+    private static final int[] QUEUE_TIMEOUTS = {
+        Common.AGGREGATION_GET_QUEUE_TIMEOUT,
+        Common.AGGREGATION_PUT_QUEUE_TIMEOUT,
+        Common.AGGREGATION_HEARTBEAT_QUEUE_TIMEOUT
+    };
+
+    private Semaphore[] permits;
+    private AtomicLongArray shed;
+
+    public AggregationAdmission() {
+        this.permits = new Semaphore[] {
+            new Semaphore(Common.AGGREGATION_GET_LIMIT, true),
+            new Semaphore(Common.AGGREGATION_PUT_LIMIT, true),
+            new Semaphore(Common.AGGREGATION_HEARTBEAT_LIMIT, true)
+        };
+        this.shed = new AtomicLongArray(this.permits.length);
+    }
+
+    // Get the class of a request with a supplied method and resource. Any
+    // request that isn't a GET or a heartbeat is counted as a feed write.
+    public static int classify(String method, String resource) {
+        if (method.equals("get"))
+            return GET;
+        if (method.equals("put") && resource.equals("heartbeat"))
+            return HEARTBEAT;
+        return PUT;
+    }
+
+    // Admit a request of a supplied class, waiting up to its queue timeout
+    // for a place. Return false, counting the request as shed, if none
+    // came free in time.
+    public boolean acquire(int kind) throws InterruptedException {
+        if (this.permits[kind].tryAcquire(QUEUE_TIMEOUTS[kind], TimeUnit.MILLISECONDS))
+            return true;
+
+        this.shed.incrementAndGet(kind);
+        return false;
+    }
+
+    // Give up the place of an admitted request of a supplied class.
+    public void release(int kind) {
+        this.permits[kind].release();
+    }
+
+    // Set the limit on requests of a supplied class in flight at once. Only
+    // takes effect cleanly before any requests are served. Used for testing.
+    public void setLimit(int kind, int limit) {
+        this.permits[kind] = new Semaphore(limit, true);
+    }
+
+    // Get the number of requests of a supplied class shed so far.
+    public long shed(int kind) {
+        return this.shed.get(kind);
+    }
+}
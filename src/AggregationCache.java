@@ -6,9 +6,12 @@
 
     Cached records of the shared Lamport clock, as well as current content feeds
     PUT to the AggregationServer, along with Lamport and millis-since-epoch
-    timestamps. Transient fields are also used to share state information
-    between the server, its AggregationWorker instances, and the
-    AggregationJanitor.
+    timestamps and the digest each feed was PUT with. The feeds themselves are
+    held in a FeedStore, which keeps them within a memory budget. Transient
+    fields are also used to share state information between the server, its
+    AggregationWorker instances, and the AggregationJanitor, and to hold the
+    entry index and the assembled forms of the aggregated feed, which are
+    rebuilt on restore.
 */
 
 package rjww.atom;
@@ -17,24 +20,52 @@ import java.io.File;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public class AggregationCache implements Serializable {
     public LamportClock clock;
-    public HashMap<UUID,AtomFeed> feeds;
-    public HashMap<UUID,Integer> lamports;
+    public FeedStore feeds;
+    public HashMap<UUID,Long> lamports;
     public HashMap<UUID,Long> millis;
+    public HashMap<UUID,String> digests;
     public transient boolean isDirty;
-    public transient AtomFeed aggregatedFeed;
+    public transient LinkedHashMap<String,File> renders;
+    public transient HashMap<String,String> etags;
+    public transient EntryIndex entryIndex;
+    public transient FilterIndex filterIndex;
+    public transient SearchIndex searchIndex;
+    public transient int renderThreshold;
     public transient File backupFile;
+    public transient String spillPath;
+    public transient String renderPath;
+    private transient long renderCount;
 
-    // Attempt to restore the cache from backup if its backup file exists.
-    // Initialize all transient values, and write to file.
-    public AggregationCache() {
-        this.backupFile = new File(Common.AGGREGATION_CACHE_BACKUP_PATH);
+    // Attempt to restore the cache from the supplied backup file if it
+    // exists. Feeds beyond the memory budget are spilled to files beginning
+    // with the supplied spill path prefix, and assembled feeds are published
+    // to files beginning with the supplied render path prefix. Initialize all
+    // transient values, and write to file.
+    public AggregationCache(File backupFile, String spillPath, String renderPath) {
+        this.backupFile = backupFile;
+        this.spillPath = spillPath;
+        this.renderPath = renderPath;
 
         try {
             if (this.backupFile.exists()) {
@@ -42,12 +73,28 @@ public class AggregationCache implements Serializable {
             }
             else {
                 this.clock = new LamportClock();
-                this.feeds = new HashMap<>();
+                this.feeds = new FeedStore(this.spillPath,
+                                           Common.AGGREGATION_CACHE_MEMORY_BUDGET,
+                                           Common.AGGREGATION_CACHE_COMPRESSION);
                 this.lamports = new HashMap<>();
                 this.millis = new HashMap<>();
+                this.digests = new HashMap<>();
             }
+            this.clock.lease(LamportClock.getLeaseFile(this.backupFile));
             this.isDirty = true;
-            this.aggregatedFeed = new AtomFeed();
+            this.renders = new LinkedHashMap<>(16, 0.75f, true);
+            this.etags = new HashMap<>();
+            deleteStaleRenders();
+            this.entryIndex = new EntryIndex();
+            this.filterIndex = new FilterIndex();
+            this.searchIndex = new SearchIndex();
+            this.renderThreshold = Common.AGGREGATION_RENDER_THRESHOLD;
+            for (UUID uuid : this.feeds.keySet()) {
+                CompactFeed feed = this.feeds.peek(uuid);
+                this.entryIndex.add(uuid, this.lamports.get(uuid), feed.ids());
+                this.filterIndex.add(uuid, feed);
+                this.searchIndex.add(uuid, feed);
+            }
             writeToFile();
         }
         catch (Exception e) {
@@ -55,17 +102,450 @@ public class AggregationCache implements Serializable {
         }
     }
 
+    // Construct the cache of the default topic, with the default backup file,
+    // spill path and render path.
+    public AggregationCache() {
+        this(new File(Common.AGGREGATION_CACHE_BACKUP_PATH),
+             Common.AGGREGATION_SPILL_PATH,
+             Common.AGGREGATION_RENDER_PATH);
+    }
+
     // Read non-transient fields from a backup file.
     public void readFromFile() throws Exception {
         ObjectInputStream in = Common.getObjectInputStream(this.backupFile);
         AggregationCache backup = (AggregationCache) in.readObject();
         this.clock = backup.clock;
         this.feeds = backup.feeds;
+        this.feeds.configure(this.spillPath,
+                             Common.AGGREGATION_CACHE_MEMORY_BUDGET,
+                             Common.AGGREGATION_CACHE_COMPRESSION);
         this.lamports = backup.lamports;
         this.millis = backup.millis;
+        this.digests = backup.digests != null ? backup.digests : new HashMap<>();
         in.close();
     }
 
+    // Replace the cached record for a ContentServer with a newly PUT feed and
+    // the digest it was sent with (which may be null), stamped with the
+    // current Lamport and wall-clock times. The feed is cached in its compact
+    // form. Must be called while holding the cache's lock.
+    public void putFeed(UUID uuid, AtomFeed feed, String digest) throws Exception {
+        CompactFeed compactFeed = new CompactFeed(feed);
+        CompactFeed oldFeed = this.feeds.put(uuid, compactFeed);
+        if (oldFeed != null) {
+            this.entryIndex.remove(uuid, oldFeed.ids());
+            this.filterIndex.remove(uuid, oldFeed);
+            this.searchIndex.remove(uuid, oldFeed);
+        }
+        this.entryIndex.add(uuid, this.clock.peek(), EntryIndex.idsOf(feed.getEntries()));
+        this.filterIndex.add(uuid, compactFeed);
+        this.searchIndex.add(uuid, compactFeed);
+
+        this.lamports.put(uuid, this.clock.peek());
+        this.millis.put(uuid, System.currentTimeMillis());
+        if (digest != null)
+            this.digests.put(uuid, digest);
+        else
+            this.digests.remove(uuid);
+        this.isDirty = true;
+    }
+
+    // Determine whether the feed cached for a ContentServer has the supplied
+    // digest: a PUT with that digest would change nothing, and a PATCH based
+    // on it can be applied. Must be called while holding the cache's lock.
+    public boolean hasDigest(UUID uuid, String digest) {
+        return digest != null &&
+               this.feeds.containsKey(uuid) &&
+               digest.equals(this.digests.get(uuid));
+    }
+
+    // Apply a delta to the feed cached for a ContentServer, and record the
+    // digest of the resulting feed. The compact feed is rebuilt around the
+    // patched entries, and entry positions may shift, so the filter and
+    // search indexes are rebuilt for the whole feed. As with a PUT, the feed
+    // and every one of its entries are stamped with the current Lamport time,
+    // so that the entry index ends up just as it would after a PUT of the
+    // same feed, and the feed is stamped with the wall-clock time. Must be called while holding the
+    // cache's lock, and only once hasDigest has confirmed the delta's base.
+    public void patchFeed(UUID uuid, AtomDelta delta, String digest) throws Exception {
+        CompactFeed oldFeed = this.feeds.get(uuid);
+        AtomFeed feed = oldFeed.toAtomFeed();
+        delta.applyTo(feed);
+        CompactFeed compactFeed = new CompactFeed(feed);
+        this.feeds.put(uuid, compactFeed);
+        this.filterIndex.remove(uuid, oldFeed);
+        this.filterIndex.add(uuid, compactFeed);
+        this.searchIndex.remove(uuid, oldFeed);
+        this.searchIndex.add(uuid, compactFeed);
+        this.entryIndex.remove(uuid, oldFeed.ids());
+        this.entryIndex.add(uuid, this.clock.peek(), EntryIndex.idsOf(feed.getEntries()));
+
+        this.lamports.put(uuid, this.clock.peek());
+        this.millis.put(uuid, System.currentTimeMillis());
+        if (digest != null)
+            this.digests.put(uuid, digest);
+        else
+            this.digests.remove(uuid);
+        this.isDirty = true;
+    }
+
+    // Remove all cached records for a ContentServer. Must be called while
+    // holding the cache's lock.
+    public void removeFeed(UUID uuid) throws Exception {
+        CompactFeed feed = this.feeds.remove(uuid);
+        if (feed != null) {
+            this.entryIndex.remove(uuid, feed.ids());
+            this.filterIndex.remove(uuid, feed);
+            this.searchIndex.remove(uuid, feed);
+        }
+        this.lamports.remove(uuid);
+        this.millis.remove(uuid);
+        this.digests.remove(uuid);
+        this.isDirty = true;
+    }
+
+    // Assemble the aggregated feed as UTF-8 in a supplied FeedFormat from the
+    // entry fragments of every cached feed, between the format's header and
+    // footer, with feeds ordered by the Lamport time of their last PUT and
+    // entries in feed order. Small caches are assembled sequentially;
+    // otherwise the ordered feeds are split into ranges which are assembled
+    // in parallel on the common ForkJoinPool and stitched back together in
+    // order. Entries are projected onto the supplied fields (a mask of
+    // CompactFeed field bits). Must be called while holding the cache's lock.
+    public byte[] render(boolean isDeduplicated, int fields, int format) throws Exception {
+        ArrayList<UUID> sortedUUIDs = sortedUUIDs();
+
+        List<byte[]> chunks;
+        if (sortedUUIDs.size() <= this.renderThreshold)
+            chunks = Collections.singletonList(renderRange(sortedUUIDs, isDeduplicated,
+                                                          fields, format));
+        else
+            chunks = ForkJoinPool.commonPool().invoke(
+                new RenderTask(sortedUUIDs, isDeduplicated, fields, format));
+
+        return assemble(chunks, fields, format);
+    }
+
+    // Assemble the aggregated feed with entries ordered newest first by their
+    // updated time, across all feeds, keeping at most limit entries. Each
+    // feed's entries are already ranked by time, so the feeds are merged with
+    // a heap holding each feed's newest entry not yet taken, and only as many
+    // entries as are kept are ever looked at. Entries with the same time are
+    // taken in Lamport order of their feeds. De-duplication and projection
+    // are as for render(). Must be called while holding the cache's lock.
+    public byte[] renderByUpdated(boolean isDeduplicated, int limit,
+                                  int fields, int format) throws Exception {
+        PriorityQueue<Cursor> heap = new PriorityQueue<>((a, b) -> {
+            int byTime = Long.compare(b.millis(), a.millis());
+            return byTime != 0 ? byTime : Integer.compare(a.order, b.order);
+        });
+
+        ArrayList<UUID> sortedUUIDs = sortedUUIDs();
+        for (int i = 0; i < sortedUUIDs.size(); i++) {
+            Cursor cursor = new Cursor();
+            cursor.uuid = sortedUUIDs.get(i);
+            cursor.feed = this.feeds.peek(cursor.uuid);
+            cursor.order = i;
+            if (cursor.feed != null && cursor.feed.size() > 0)
+                heap.add(cursor);
+        }
+
+        ArrayList<byte[]> fragments = new ArrayList<>();
+        HashSet<String> ids = new HashSet<>();
+
+        while (fragments.size() < limit && !heap.isEmpty()) {
+            Cursor cursor = heap.poll();
+            int i = cursor.feed.newest(cursor.rank);
+
+            String id = isDeduplicated ? cursor.feed.id(i) : null;
+            if (id == null || (this.entryIndex.isOwner(cursor.uuid, id) && ids.add(id)))
+                fragments.add(cursor.feed.fragment(i, fields, format));
+
+            cursor.rank++;
+            if (cursor.rank < cursor.feed.size())
+                heap.add(cursor);
+        }
+
+        return assemble(fragments, fields, format);
+    }
+
+    // Assemble the aggregated feed from only those entries matching a supplied
+    // filter, keeping at most limit entries. Candidate entries are found
+    // through the filter index, so the work done is in proportion to the
+    // entries matched rather than all entries cached. Entries are ordered as
+    // for render(), or as for renderByUpdated() if asked to, and
+    // de-duplicated and projected likewise. Must be called while holding the
+    // cache's lock.
+    public byte[] renderFiltered(FeedFilter filter, boolean isDeduplicated,
+                                 boolean isByUpdated, int limit,
+                                 int fields, int format) throws Exception {
+        ArrayList<FilterIndex.Ref> matches = new ArrayList<>();
+        HashMap<UUID,CompactFeed> matchedFeeds = new HashMap<>();
+
+        for (FilterIndex.Ref ref : this.filterIndex.candidates(filter, this.feeds)) {
+            CompactFeed feed = matchedFeeds.get(ref.uuid);
+            if (feed == null) {
+                feed = this.feeds.peek(ref.uuid);
+                matchedFeeds.put(ref.uuid, feed);
+            }
+            if (filter.matches(feed, ref.position))
+                matches.add(ref);
+        }
+
+        Comparator<FilterIndex.Ref> byLamport = Comparator
+            .comparing((FilterIndex.Ref ref) -> this.lamports.get(ref.uuid))
+            .thenComparing(ref -> ref.position);
+        if (isByUpdated) {
+            Comparator<FilterIndex.Ref> byNewest = (a, b) -> Long.compare(
+                matchedFeeds.get(b.uuid).updatedMillis(b.position),
+                matchedFeeds.get(a.uuid).updatedMillis(a.position));
+            matches.sort(byNewest.thenComparing(byLamport));
+        }
+        else {
+            matches.sort(byLamport);
+        }
+
+        ArrayList<byte[]> fragments = new ArrayList<>();
+        HashSet<String> ids = new HashSet<>();
+
+        for (FilterIndex.Ref ref : matches) {
+            if (fragments.size() >= limit) break;
+
+            CompactFeed feed = matchedFeeds.get(ref.uuid);
+            String id = isDeduplicated ? feed.id(ref.position) : null;
+            if (id == null || (this.entryIndex.isOwner(ref.uuid, id) && ids.add(id)))
+                fragments.add(feed.fragment(ref.position, fields, format));
+        }
+
+        return assemble(fragments, fields, format);
+    }
+
+    // Assemble a feed of the entries referred to by a list of search hits, in
+    // order, leaving out any whose entry has been removed since the search.
+    // Entries are projected as for render(). Must be called while holding the
+    // cache's lock.
+    public byte[] renderHits(List<SearchIndex.Hit> hits, int fields,
+                             int format) throws Exception {
+        ArrayList<byte[]> fragments = new ArrayList<>();
+        for (SearchIndex.Hit hit : hits) {
+            if (this.searchIndex.isCurrent(hit))
+                fragments.add(this.feeds.peek(hit.uuid).fragment(hit.position, fields, format));
+        }
+        return assemble(fragments, fields, format);
+    }
+
+    // Publish an assembled feed to a file of its own, from which it can be
+    // sent to any number of clients without being copied onto the heap. The
+    // file holds the body as sent, with its terminating newline. Files are
+    // never reused, so one being sent from while the cache changes is never
+    // overwritten. Must be called while holding the cache's lock.
+    public File publish(byte[] body) throws Exception {
+        File file = new File(this.renderPath + this.renderCount++);
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.WRITE)) {
+            ByteBuffer[] buffers = { ByteBuffer.wrap(body), ByteBuffer.wrap(new byte[] { '\n' }) };
+            while (buffers[1].hasRemaining()) {
+                channel.write(buffers);
+            }
+        }
+        return file;
+    }
+
+    // Get the file a supplied variant of the aggregated feed is published
+    // to, or null if it hasn't been, marking it most recently used. Must be
+    // called while holding the cache's lock.
+    public File getRender(String variant) {
+        return this.renders.get(variant);
+    }
+
+    // Keep the file a supplied variant of the aggregated feed has been
+    // published to, with its entity tag. Variants differ by client-supplied
+    // parameters such as a limit, so only a bounded number are kept, and the
+    // least recently used is discarded (deleting its file) to make room for
+    // another. Must be called while holding the cache's lock.
+    public void putRender(String variant, File file, String etag) throws Exception {
+        this.renders.put(variant, file);
+        this.etags.put(variant, etag);
+
+        Iterator<Map.Entry<String,File>> eldest = this.renders.entrySet().iterator();
+        while (this.renders.size() > Common.AGGREGATION_RENDER_VARIANTS) {
+            Map.Entry<String,File> e = eldest.next();
+            Files.deleteIfExists(e.getValue().toPath());
+            this.etags.remove(e.getKey());
+            eldest.remove();
+        }
+    }
+
+    // Discard every published feed, deleting its file, along with its
+    // entity tag. A client still being sent a deleted file keeps reading it
+    // through its open channel. Must be called while holding the cache's
+    // lock.
+    public void clearRenders() throws Exception {
+        for (File file : this.renders.values()) {
+            Files.deleteIfExists(file.toPath());
+        }
+        this.renders.clear();
+        this.etags.clear();
+    }
+
+    // Delete any feeds published before a restart, which can no longer be
+    // served.
+    private void deleteStaleRenders() throws Exception {
+        File prefix = new File(this.renderPath);
+        File[] files = prefix.getAbsoluteFile().getParentFile().listFiles(file ->
+            file.getName().startsWith(prefix.getName()));
+        if (files == null) return;
+
+        for (File file : files) {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    // Get the UUIDs of all cached feeds, ordered by the Lamport time of their
+    // last PUT.
+    private ArrayList<UUID> sortedUUIDs() {
+        ArrayList<UUID> sortedUUIDs = new ArrayList<>();
+        this.lamports.entrySet().stream()
+            .sorted(HashMap.Entry.comparingByValue())
+            .forEach(e -> sortedUUIDs.add(e.getKey()));
+        return sortedUUIDs;
+    }
+
+    // Assemble a feed from chunks as below, once the feeds have been read.
+    // Entries projected onto fewer fields, or into another format, keep
+    // their projected fragments, so the store's estimate of its feeds is
+    // brought up to date first.
+    private byte[] assemble(List<byte[]> chunks, int fields, int format) throws Exception {
+        if (fields != CompactFeed.ALL_FIELDS || format != FeedFormat.XML)
+            this.feeds.remeasure();
+        return assemble(chunks, format);
+    }
+
+    // Concatenate a supplied list of chunks between the aggregated feed's
+    // header and footer in a supplied FeedFormat, dropping the leading
+    // separator (if the format has one) from the first entry.
+    private static byte[] assemble(List<byte[]> chunks, int format) {
+        byte[] header = FeedFormat.header(format);
+        byte[] footer = FeedFormat.footer(format);
+        int skip = FeedFormat.separatorLength(format);
+
+        int length = header.length + footer.length;
+        for (byte[] chunk : chunks) {
+            length += chunk.length;
+        }
+        if (length > header.length + footer.length) length -= skip;
+
+        byte[] body = new byte[length];
+        int position = copy(header, body, 0);
+        for (byte[] chunk : chunks) {
+            if (chunk.length == 0) continue;
+            System.arraycopy(chunk, skip, body, position, chunk.length - skip);
+            position += chunk.length - skip;
+            skip = 0;
+        }
+        copy(footer, body, position);
+        return body;
+    }
+
+    // Concatenate the entry fragments of a range of feeds. If de-duplicating,
+    // only the entry index's owning copy of each id is kept (and only its
+    // first occurrence, should a feed repeat an id). Since every copy of an id
+    // but the owner's is dropped, repeats can only occur within a single
+    // feed, and so ranges can be de-duplicated independently. Spilled feeds
+    // are read from disk for the duration without being made resident.
+    private byte[] renderRange(List<UUID> uuids, boolean isDeduplicated,
+                               int fields, int format) throws Exception {
+        ArrayList<byte[]> fragments = new ArrayList<>();
+        HashSet<String> ids = new HashSet<>();
+        int length = 0;
+
+        for (UUID uuid : uuids) {
+            CompactFeed feed = this.feeds.peek(uuid);
+            if (feed == null) continue;
+
+            for (int i = 0; i < feed.size(); i++) {
+                String id = isDeduplicated ? feed.id(i) : null;
+                if (id == null || (this.entryIndex.isOwner(uuid, id) && ids.add(id))) {
+                    byte[] fragment = feed.fragment(i, fields, format);
+                    fragments.add(fragment);
+                    length += fragment.length;
+                }
+            }
+        }
+
+        byte[] chunk = new byte[length];
+        int position = 0;
+        for (byte[] fragment : fragments) {
+            position = copy(fragment, chunk, position);
+        }
+        return chunk;
+    }
+
+    // A cursor over the entries of a feed by rank, newest first, for merging
+    // feeds by updated time. Its feed's position in the Lamport ordering of
+    // feeds breaks ties.
+    private static class Cursor {
+        UUID uuid;
+        CompactFeed feed;
+        int order;
+        int rank;
+
+        long millis() {
+            return this.feed.updatedMillis(this.feed.newest(this.rank));
+        }
+    }
+
+    // A task assembling a range of feeds, halving the range until it's no
+    // larger than the render threshold. Produces the assembled chunks of its
+    // range in order.
+    private class RenderTask extends RecursiveTask<List<byte[]>> {
+        private List<UUID> uuids;
+        private boolean isDeduplicated;
+        private int fields;
+        private int format;
+
+        RenderTask(List<UUID> uuids, boolean isDeduplicated, int fields, int format) {
+            this.uuids = uuids;
+            this.isDeduplicated = isDeduplicated;
+            this.fields = fields;
+            this.format = format;
+        }
+
+        protected List<byte[]> compute() {
+            int size = this.uuids.size();
+            if (size <= renderThreshold) {
+                try {
+                    return Collections.singletonList(
+                        renderRange(this.uuids, this.isDeduplicated,
+                                    this.fields, this.format));
+                }
+                catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            RenderTask left = new RenderTask(this.uuids.subList(0, size / 2),
+                                             this.isDeduplicated, this.fields, this.format);
+            RenderTask right = new RenderTask(this.uuids.subList(size / 2, size),
+                                              this.isDeduplicated, this.fields, this.format);
+            left.fork();
+            List<byte[]> rightChunks = right.compute();
+
+            ArrayList<byte[]> chunks = new ArrayList<>(left.join());
+            chunks.addAll(rightChunks);
+            return chunks;
+        }
+    }
+
+    // Copy a supplied array into another at a supplied position, and return
+    // the position following it.
+    private static int copy(byte[] source, byte[] target, int position) {
+        System.arraycopy(source, 0, target, position, source.length);
+        return position + source.length;
+    }
+
     // Write all non-transient fields to a backup file. This operation involves
     // an indirect write to a temporary file, which is then moved to replace an
     // existing backup, so as to avoid a partial write if the server fails
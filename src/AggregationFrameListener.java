@@ -0,0 +1,97 @@
+/*
+    :: src/AggregationFrameListener.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    Listens on the AggregationServer's frame port, if it has one, and hands
+    each incoming connection off to an AggregationFrameWorker in a separate
+    thread. Frames are applied to the default topic's cache. As for the
+    AggregationServer, the number of connections served at once is capped,
+    and frames are admitted and held to deadlines by the server's own
+    AggregationAdmission and AggregationWatchdog.
+*/
+
+package rjww.atom;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.Semaphore;
+
+public class AggregationFrameListener implements Runnable {
+    private AggregationCache cache;
+    private AggregationAdmission admission;
+    private volatile AggregationRateLimiter limiter;
+    private AggregationWatchdog watchdog;
+    private Semaphore connections;
+    private ServerSocket socket;
+
+    public AggregationFrameListener(AggregationCache cache,
+                                    AggregationAdmission admission,
+                                    AggregationRateLimiter limiter,
+                                    AggregationWatchdog watchdog,
+                                    int port) throws Exception {
+        this.cache = cache;
+        this.admission = admission;
+        this.limiter = limiter;
+        this.watchdog = watchdog;
+        this.connections = new Semaphore(Common.AGGREGATION_CONNECTION_LIMIT);
+        this.socket = new ServerSocket(port);
+    }
+
+    // Listen for incoming connections until stopped, waiting for a place
+    // before accepting each one.
+    public void run() {
+        try {
+            while (true) {
+                this.connections.acquire();
+                Socket socket;
+                try {
+                    socket = this.socket.accept();
+                }
+                catch (Exception e) {
+                    this.connections.release();
+                    throw e;
+                }
+                serve(new AggregationFrameWorker(this.cache, this.admission, this.limiter,
+                                                 this.watchdog, socket));
+            }
+        }
+        catch (SocketException e) {
+            // The listener has been stopped.
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Set the rate limiter of connections accepted from now on.
+    public void setLimiter(AggregationRateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    // Run a supplied worker in a separate thread, giving up its connection's
+    // place once it's done.
+    private void serve(AggregationFrameWorker worker) {
+        new Thread(() -> {
+            try {
+                worker.run();
+            }
+            finally {
+                this.connections.release();
+            }
+        }).start();
+    }
+
+    // Stop listening by closing the ServerSocket. The resulting
+    // SocketException is caught and handled in run().
+    public void stop() {
+        try {
+            this.socket.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+    :: src/AggregationFrameWorker.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    Services a single connection to the AggregationServer's frame port. Unlike
+    an AggregationWorker, which handles one request and hangs up, a frame
+    worker reads frames one after another until the publisher closes the
+    connection, applying each to the shared cache as the matching HTTP request
+    would be and answering it with an ack frame. Feed frames are held to the
+    same size limit and per-publisher rate limit as feed PUTs, and frames
+    are admitted through the server's AggregationAdmission and read and
+    acked under deadlines kept by its AggregationWatchdog, as HTTP requests
+    are.
+*/
+
+package rjww.atom;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+public class AggregationFrameWorker implements Runnable {
+    private AggregationCache cache;
+    private AggregationAdmission admission;
+    private AggregationRateLimiter limiter;
+    private AggregationWatchdog watchdog;
+    private AggregationWatchdog.Deadline deadline;
+    private Socket socket;
+
+    public AggregationFrameWorker(AggregationCache cache,
+                                  AggregationAdmission admission,
+                                  AggregationRateLimiter limiter,
+                                  AggregationWatchdog watchdog,
+                                  Socket socket) {
+        this.cache = cache;
+        this.admission = admission;
+        this.limiter = limiter;
+        this.watchdog = watchdog;
+        this.socket = socket;
+    }
+
+    // Read and service frames until the connection is closed. The wait for
+    // the first frame is held to the watchdog's deadline for heads, and the
+    // wait for each frame after it to the deadline for idle connections;
+    // once a frame's first byte arrives, the rest of it must arrive within
+    // the deadline for bodies, and its ack must be written within the
+    // deadline for writes. A connection that misses one is closed, and the
+    // publisher reconnects with its next frame. A frame that isn't admitted
+    // in time is acked with a 503, as a shed request is answered.
+    public void run() {
+        this.deadline = this.watchdog.watch(this.socket);
+
+        try (
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(this.socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(this.socket.getOutputStream()));
+        ) {
+            this.socket.setSoTimeout(Common.SOCKET_TIMEOUT);
+
+            Frame frame;
+            while ((frame = readFrame(in)) != null) {
+                int kind = frame.type == Frame.HEARTBEAT
+                         ? AggregationAdmission.HEARTBEAT
+                         : AggregationAdmission.PUT;
+                int statusCode;
+
+                if (this.admission.acquire(kind)) {
+                    try {
+                        statusCode = handleFrame(frame);
+                    }
+                    finally {
+                        this.admission.release(kind);
+                    }
+                }
+                else {
+                    statusCode = 503;
+                }
+
+                this.deadline.begin(AggregationWatchdog.WRITE);
+                sendAck(frame, statusCode, out);
+                this.deadline.begin(AggregationWatchdog.IDLE);
+                if (statusCode == 400 || statusCode == 413) break;
+            }
+        }
+        catch (SocketTimeoutException e) {
+            this.deadline.expire();
+        }
+        catch (SocketException e) {
+            // The publisher has hung up, or the watchdog has closed the
+            // connection.
+        }
+        catch (Exception e) {
+            if (!this.deadline.isExpired())
+                e.printStackTrace();
+        }
+        finally {
+            this.deadline.end();
+        }
+    }
+
+    // Read the next frame within the current deadline for its first byte
+    // and the deadline for bodies for the rest of it, or return null if the
+    // connection is closed before a frame begins.
+    private Frame readFrame(DataInputStream in) throws Exception {
+        in.mark(1);
+        if (in.read() == -1)
+            return null;
+        in.reset();
+
+        this.deadline.begin(AggregationWatchdog.BODY);
+        Frame frame = Frame.read(in);
+        this.deadline.end();
+        return frame;
+    }
+
+    // Dispatch on frame type, returning the status code to ack with. Feed
+    // frames are upserts, as for a feed PUT: a feed with the same digest as
+    // the cached copy only keeps its record alive, as a heartbeat frame
+    // does. A malformed feed or an unknown frame type gets a 400, and a frame
+    // whose body runs past the size limit a 413, after which the connection
+    // is closed, since the frames following it can't be trusted. A feed
+    // frame over its publisher's rate gets a 429.
+    private int handleFrame(Frame frame) throws Exception {
+        if (frame.body == null)
+            return 413;
+
+        switch (frame.type) {
+            case Frame.FEED:
+                if (!this.limiter.tryAcquire(frame.uuid))
+                    return 429;
+
+                AtomFeed feed;
+                try {
+                    feed = Frame.decodeFeed(frame.body);
+                }
+                catch (IOException e) {
+                    return 400;
+                }
+                return upsertFeed(frame, feed, Common.digest(frame.body));
+
+            case Frame.HEARTBEAT:
+                synchronized (this.cache) {
+                    // Update shared Lamport clock for frame receipt.
+                    this.cache.clock.update(frame.lamportTime);
+
+                    // Update cached timestamp and write to file.
+                    this.cache.millis.put(frame.uuid, System.currentTimeMillis());
+                    this.cache.writeToFile();
+                }
+                return 204;
+
+            default:
+                return 400;
+        }
+    }
+
+    // Update the cache with a feed frame's feed, returning 201 for a feed not
+    // yet cached and 200 otherwise.
+    private int upsertFeed(Frame frame, AtomFeed feed, String digest) throws Exception {
+        synchronized (this.cache) {
+            // Update shared Lamport clock for frame receipt.
+            this.cache.clock.update(frame.lamportTime);
+
+            boolean isNewFeed = !this.cache.feeds.containsKey(frame.uuid);
+
+            // Update cached records and write to file.
+            if (this.cache.hasDigest(frame.uuid, digest))
+                this.cache.millis.put(frame.uuid, System.currentTimeMillis());
+            else
+                this.cache.putFeed(frame.uuid, feed, digest);
+            this.cache.writeToFile();
+
+            return isNewFeed ? 201 : 200;
+        }
+    }
+
+    // Answer a frame with an ack carrying a supplied status code and the
+    // updated Lamport time.
+    private void sendAck(Frame frame, int statusCode,
+                         DataOutputStream out) throws Exception {
+        long localLamport;
+        synchronized (this.cache) {
+            localLamport = this.cache.clock.update();
+        }
+
+        Frame.ack(frame.uuid, localLamport, statusCode).write(out);
+        out.flush();
+    }
+}
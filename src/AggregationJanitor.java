@@ -75,11 +75,8 @@ public class AggregationJanitor implements Runnable {
 
                 if (!expiredUUIDs.isEmpty()) {
                     for (UUID uuid : expiredUUIDs) {
-                        this.cache.feeds.remove(uuid);
-                        this.cache.lamports.remove(uuid);
-                        this.cache.millis.remove(uuid);
+                        this.cache.removeFeed(uuid);
                     }
-                    this.cache.isDirty = true;
                     this.cache.writeToFile();
                 }
             }
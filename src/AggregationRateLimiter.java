@@ -0,0 +1,105 @@
+/*
+    :: src/AggregationRateLimiter.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    Limits the rate at which each publisher, by UUID, may write feeds to the
+    AggregationServer, so that one ContentServer PUTting in a loop can't
+    starve the rest. Each publisher has a token bucket, refilled at a steady
+    rate up to a burst capacity, and each write takes a token. A bucket's
+    whole state is packed into a single long (the time it was last refilled,
+    and the tokens it held then, in thousandths) so that it can be updated
+    by compare-and-set, without locking, and costs one small object per
+    publisher. Buckets left to refill completely are swept from the table,
+    since a missing bucket is treated as a full one.
+*/
+
+package rjww.atom;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AggregationRateLimiter {
+    private static final int TOKEN_BITS = 20;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final long TOKEN = 1000;
+    private static final int SWEEP_THRESHOLD = 1024;
+
+    // The key of writes that don't name a publisher, which share a bucket.
+    private static final UUID ANONYMOUS = new UUID(0, 0);
+
+    private ConcurrentHashMap<UUID,AtomicLong> buckets;
+    private long rate;
+    private long capacity;
+    private long epoch;
+    private volatile int sweepThreshold;
+
+    // Construct a limiter refilling each bucket at a supplied number of
+    // tokens per second, up to a supplied burst of at most 1000 tokens.
+    public AggregationRateLimiter(int rate, int burst) {
+        this.buckets = new ConcurrentHashMap<>();
+        this.rate = rate;
+        this.capacity = Math.min(burst * TOKEN, TOKEN_MASK);
+        this.epoch = System.nanoTime();
+        this.sweepThreshold = SWEEP_THRESHOLD;
+    }
+
+    // Call the primary constructor with the default rate and burst.
+    public AggregationRateLimiter() {
+        this(Common.AGGREGATION_PUT_RATE, Common.AGGREGATION_PUT_BURST);
+    }
+
+    // Take a token from the bucket of a supplied publisher, returning false
+    // if it has none left.
+    public boolean tryAcquire(UUID uuid) {
+        long now = now();
+        UUID key = uuid != null ? uuid : ANONYMOUS;
+        AtomicLong bucket = this.buckets.computeIfAbsent(key, k ->
+            new AtomicLong(pack(now, this.capacity)));
+
+        try {
+            while (true) {
+                long state = bucket.get();
+                long tokens = tokensAt(state, now);
+                if (tokens < TOKEN)
+                    return false;
+                if (bucket.compareAndSet(state, pack(now, tokens - TOKEN)))
+                    return true;
+            }
+        }
+        finally {
+            if (this.buckets.size() > this.sweepThreshold)
+                sweep(now);
+        }
+    }
+
+    // Remove every bucket that has refilled completely. A write racing with
+    // the removal of its bucket may find a fresh one in its place, which at
+    // worst allows that publisher one burst early.
+    private synchronized void sweep(long now) {
+        if (this.buckets.size() <= this.sweepThreshold) return;
+
+        this.buckets.values().removeIf(bucket -> tokensAt(bucket.get(), now) >= this.capacity);
+        this.sweepThreshold = Math.max(SWEEP_THRESHOLD, 2 * this.buckets.size());
+    }
+
+    // Get the tokens, in thousandths, in a bucket of a supplied state at a
+    // supplied time. The rate in tokens per second is also the rate in
+    // thousandths of a token per millisecond.
+    private long tokensAt(long state, long now) {
+        long elapsed = Math.max(0, now - (state >>> TOKEN_BITS));
+        long refill = Math.min(elapsed, this.capacity) * this.rate;
+        return Math.min(this.capacity, (state & TOKEN_MASK) + refill);
+    }
+
+    private static long pack(long millis, long tokens) {
+        return millis << TOKEN_BITS | tokens;
+    }
+
+    // Get the milliseconds since the limiter was constructed.
+    private long now() {
+        return (System.nanoTime() - this.epoch) / 1000000;
+    }
+}
@@ -7,29 +7,52 @@
     Coordination program for all aggregation server functions. Initializes all
     shared data and hands them off to worker threads. Listens for incoming
     requests on the ServerSocket, and dispatches each to an AggregationWorker in
-    a separate thread. Also initializes the AggregationJanitor, which is
-    responsible for periodically cleaning the shared cache.
+    a separate thread, which admits it through a shared AggregationAdmission
+    and handles it under deadlines kept by a shared AggregationWatchdog. The
+    number of connections served at once is capped; once it's reached, no
+    more are accepted until one closes, and clients wait in the ServerSocket's
+    backlog instead of each being given a thread of its own. Also
+    initializes the topics aggregated, each with an AggregationJanitor
+    responsible for periodically cleaning its cache.
 */
 
 package rjww.atom;
 
 import java.io.File;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.SocketException;
-import java.nio.file.Files;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
 
 public class AggregationServer implements Runnable {
+    private AggregationTopics topics;
     private AggregationCache cache;
-    private AggregationJanitor janitor;
+    private AggregationFrameListener frames;
+    private AggregationAdmission admission;
+    private AggregationRateLimiter limiter;
+    private AggregationWatchdog watchdog;
+    private Semaphore connections;
     private ServerSocket socket;
 
     // Construct the AggregationServer with a supplied port and initialize all
-    // shared data.
+    // shared data. The ServerSocket is opened through a channel, so that the
+    // sockets it accepts have channels for published feeds to be transferred
+    // to.
     public AggregationServer(int port) {
         try {
-            this.cache = new AggregationCache();
-            this.janitor = new AggregationJanitor(this.cache);
-            this.socket = new ServerSocket(port);
+            this.topics = new AggregationTopics();
+            this.cache = this.topics.defaultCache();
+            this.admission = new AggregationAdmission();
+            this.limiter = new AggregationRateLimiter();
+            this.watchdog = new AggregationWatchdog();
+            this.connections = new Semaphore(Common.AGGREGATION_CONNECTION_LIMIT);
+            this.socket = ServerSocketChannel.open().socket();
+            this.socket.setReuseAddress(true);
+            this.socket.bind(new InetSocketAddress(port));
         }
         catch (Exception e) {
             e.printStackTrace();
@@ -41,28 +64,65 @@ public class AggregationServer implements Runnable {
         this(Common.AGGREGATION_SERVER_DEFAULT_PORT);
     }
 
-    // Initialize the AggregationJanitor and set it running, then listen for
-    // incoming requests on the ServerSocket and hand each one off to a
-    // separate AggregationWorker thread.
+    // Also accept binary frames (see Frame) from publishers on a supplied
+    // port, once the server is run.
+    public void listenForFrames(int port) throws Exception {
+        this.frames = new AggregationFrameListener(this.cache, this.admission, this.limiter,
+                                                   this.watchdog, port);
+    }
+
+    // Set the AggregationJanitor of every topic running, and the frame
+    // listener if there is one, then listen for incoming requests on the
+    // ServerSocket and hand each one off to a separate AggregationWorker
+    // thread, waiting for a place before accepting each connection.
     public void run() {
-        new Thread(this.janitor).start();
+        this.topics.start();
+        if (this.frames != null)
+            new Thread(this.frames).start();
 
         try {
             while (true) {
-                new Thread(new AggregationWorker(this.cache, this.socket.accept())).start();
+                this.connections.acquire();
+                Socket socket;
+                try {
+                    socket = this.socket.accept();
+                }
+                catch (Exception e) {
+                    this.connections.release();
+                    throw e;
+                }
+                serve(new AggregationWorker(this.topics, this.admission, this.limiter,
+                                            this.watchdog, socket));
             }
         }
-        catch (SocketException e) {
-            this.janitor.stop();
+        catch (SocketException | ClosedChannelException e) {
+            this.topics.stop();
+            this.watchdog.stop();
         }
         catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    // Run a supplied worker in a separate thread, giving up its connection's
+    // place once it's done.
+    private void serve(AggregationWorker worker) {
+        new Thread(() -> {
+            try {
+                worker.run();
+            }
+            finally {
+                this.connections.release();
+            }
+        }).start();
+    }
+
     // Trigger a shutdown by attempting to close the ServerSocket. The resulting
-    // SocketException is caught and handled in run().
+    // ClosedChannelException is caught and handled in run().
     public synchronized void stop() {
+        if (this.frames != null)
+            this.frames.stop();
+
         try {
             this.socket.close();
         }
@@ -72,36 +132,101 @@ public class AggregationServer implements Runnable {
     }
 
     // Get the current Lamport time from the cache. Used for testing.
-    public int lamportTime() {
+    public long lamportTime() {
         synchronized (this.cache) {
             return this.cache.clock.peek();
         }
     }
 
-    // Remove the backup cache from the file system.
-    public void cleanBackup() {
+    // Get the number of connections closed for missing the deadline of a
+    // supplied phase (see AggregationWatchdog).
+    public long timeouts(int phase) {
+        return this.watchdog.timeouts(phase);
+    }
+
+    // Get the number of requests of a supplied class shed under load (see
+    // AggregationAdmission).
+    public long shed(int kind) {
+        return this.admission.shed(kind);
+    }
+
+    // Set the limit on requests of a supplied class in flight at once. Used
+    // for testing.
+    public void setAdmissionLimit(int kind, int limit) {
+        this.admission.setLimit(kind, limit);
+    }
+
+    // Set the limit on connections served at once. Only takes effect cleanly
+    // before the server is run. Used for testing.
+    public void setConnectionLimit(int limit) {
+        this.connections = new Semaphore(limit);
+    }
+
+    // Set the rate, in writes per second, and burst at which each publisher
+    // may write feeds. Used for testing.
+    public void setRateLimit(int rate, int burst) {
+        this.limiter = new AggregationRateLimiter(rate, burst);
+        if (this.frames != null)
+            this.frames.setLimiter(this.limiter);
+    }
+
+    // Set the number of bytes of feeds the caches of all topics together may
+    // hold on the heap before spilling to disk (see AggregationTopics).
+    public void setMemoryBudget(long budget) {
+        this.topics.setMemoryBudget(budget);
+    }
+
+    // Choose whether the caches of all topics store feeds as compressed
+    // blocks.
+    public void setCompressed(boolean isCompressed) {
+        this.topics.setCompressed(isCompressed);
+    }
+
+    // Set the number of feeds beyond which the aggregated feed of any topic
+    // is assembled in parallel. Used for testing.
+    public void setRenderThreshold(int threshold) {
+        this.topics.setRenderThreshold(threshold);
+    }
+
+    // Set the number of named topics that may be created. Used for testing.
+    public void setTopicLimit(int limit) {
+        this.topics.setTopicLimit(limit);
+    }
+
+    // Get the memory budget of a topic's cache. Used for testing.
+    public long memoryBudget(String topic) {
+        return this.topics.memoryBudget(topic);
+    }
+
+    // Determine whether the feed cached for a ContentServer has been spilled
+    // to disk. Used for testing.
+    public boolean isSpilled(UUID uuid) {
         synchronized (this.cache) {
-            try {
-                Files.delete(this.cache.backupFile.toPath());
-            }
-            catch (Exception e) {
-                e.printStackTrace();
-            }
+            return this.cache.feeds.isSpilled(uuid);
         }
     }
 
+    // Remove the backup cache of every topic, and any feeds spilled by them,
+    // from the file system.
+    public void cleanBackup() {
+        this.topics.cleanBackup();
+    }
+
     // Construct and run the AggregationServer from the command line. The port
     // can optionally be specified; if left unspecified, the default constructor
-    // will be called, which uses the default port as defined in Common.
+    // will be called, which uses the default port as defined in Common. A
+    // memory budget for cached feeds, in bytes, shared by all topics, can
+    // optionally follow the port, and then a port on which to accept binary
+    // frames.
     public static void main(String[] args) {
-        if (args.length > 1) {
-            System.err.println("Usage: java AggregationServer[, port]");
+        if (args.length > 3) {
+            System.err.println("Usage: java AggregationServer[, port[, memoryBudget[, framePort]]]");
             System.exit(1);
         }
 
         AggregationServer server;
 
-        if (args.length == 1) {
+        if (args.length >= 1) {
             int port = Integer.parseInt(args[0]);
             server = new AggregationServer(port);
         }
@@ -109,6 +234,20 @@ public class AggregationServer implements Runnable {
             server = new AggregationServer();
         }
 
+        if (args.length >= 2) {
+            server.setMemoryBudget(Long.parseLong(args[1]));
+        }
+
+        if (args.length == 3) {
+            try {
+                server.listenForFrames(Integer.parseInt(args[2]));
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+
         server.run();
     }
 }
@@ -0,0 +1,225 @@
+/*
+    :: src/AggregationTopics.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    The set of named topics aggregated by the AggregationServer. Each topic is
+    a partition of its own, with its own AggregationCache (and so its own
+    lock, Lamport clock, aggregated feed and backup file) and its own
+    AggregationJanitor, so that publishers in one topic never contend with
+    those in another. The default topic, served at /feed, uses the original
+    backup file; a named topic, served at /feed/{topic}, is created by the
+    first feed PUT to it, and is restored from its backup file on startup.
+
+    Since any publisher can create a topic, the number of named topics is
+    capped, and the memory budget for cached feeds is shared between all
+    topics rather than given to each in full: every topic holds an equal
+    share, rebalanced whenever a topic is created. Settings made for the
+    server's caches apply to every topic, including those created later.
+*/
+
+package rjww.atom;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class AggregationTopics {
+    public static final String DEFAULT_TOPIC = "";
+
+    private ConcurrentHashMap<String,Topic> topics;
+    private boolean isRunning;
+    private int topicLimit;
+    private long budget;
+    private boolean isCompressed;
+    private int renderThreshold;
+
+    // A single topic's partition.
+    private static class Topic {
+        AggregationCache cache;
+        AggregationJanitor janitor;
+
+        Topic(AggregationCache cache) {
+            this.cache = cache;
+            this.janitor = new AggregationJanitor(cache);
+        }
+    }
+
+    // Construct the default topic, and restore every named topic with a
+    // backup file.
+    public AggregationTopics() {
+        this.topics = new ConcurrentHashMap<>();
+        this.topics.put(DEFAULT_TOPIC, new Topic(new AggregationCache()));
+        this.isRunning = false;
+        this.topicLimit = Common.AGGREGATION_TOPIC_LIMIT;
+        this.budget = Common.AGGREGATION_CACHE_MEMORY_BUDGET;
+        this.isCompressed = Common.AGGREGATION_CACHE_COMPRESSION;
+        this.renderThreshold = Common.AGGREGATION_RENDER_THRESHOLD;
+
+        File prefix = new File(Common.AGGREGATION_TOPIC_PATH);
+        File[] backupFiles = prefix.getAbsoluteFile().getParentFile().listFiles(file ->
+            file.getName().startsWith(prefix.getName()) &&
+            file.getName().endsWith(".lock"));
+
+        if (backupFiles != null) {
+            for (File backupFile : backupFiles) {
+                String name = backupFile.getName();
+                restore(name.substring(prefix.getName().length(), name.length() - ".lock".length()));
+            }
+        }
+        rebalance();
+    }
+
+    // Get the cache of the default topic.
+    public AggregationCache defaultCache() {
+        return get(DEFAULT_TOPIC);
+    }
+
+    // Get the cache of a topic, or null if no such topic exists.
+    public AggregationCache get(String topic) {
+        Topic t = this.topics.get(topic);
+        return t != null ? t.cache : null;
+    }
+
+    // Get the cache of a topic, creating the topic if it doesn't exist yet,
+    // or return null if it doesn't and no more topics may be created.
+    public AggregationCache getOrCreate(String topic) {
+        AggregationCache cache = get(topic);
+        return cache != null ? cache : create(topic);
+    }
+
+    // Start the janitors of every topic, including any created later.
+    public synchronized void start() {
+        this.isRunning = true;
+        for (Topic topic : this.topics.values()) {
+            new Thread(topic.janitor).start();
+        }
+    }
+
+    // Stop the janitors of every topic.
+    public synchronized void stop() {
+        this.isRunning = false;
+        for (Topic topic : this.topics.values()) {
+            topic.janitor.stop();
+        }
+    }
+
+    // Set the number of bytes of feeds all topics together may hold on the
+    // heap before spilling to disk, shared equally between them.
+    public synchronized void setMemoryBudget(long budget) {
+        this.budget = budget;
+        rebalance();
+    }
+
+    // Choose whether every topic stores feeds as compressed blocks.
+    public synchronized void setCompressed(boolean isCompressed) {
+        this.isCompressed = isCompressed;
+        for (Topic topic : this.topics.values()) {
+            synchronized (topic.cache) {
+                try {
+                    topic.cache.feeds.setCompressed(isCompressed);
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Set the number of feeds beyond which every topic's aggregated feed is
+    // assembled in parallel.
+    public synchronized void setRenderThreshold(int threshold) {
+        this.renderThreshold = threshold;
+        for (Topic topic : this.topics.values()) {
+            synchronized (topic.cache) {
+                topic.cache.renderThreshold = threshold;
+            }
+        }
+    }
+
+    // Set the number of named topics that may be created. Topics restored
+    // from backup on startup are never refused. Used for testing.
+    public synchronized void setTopicLimit(int limit) {
+        this.topicLimit = limit;
+    }
+
+    // Get the memory budget of a topic's cache. Used for testing.
+    public long memoryBudget(String topic) {
+        AggregationCache cache = get(topic);
+        synchronized (cache) {
+            return cache.feeds.budget();
+        }
+    }
+
+    // Remove the backup files of every topic, and any feeds spilled or
+    // published by them, from the file system.
+    public void cleanBackup() {
+        for (Topic topic : this.topics.values()) {
+            synchronized (topic.cache) {
+                try {
+                    topic.cache.feeds.deleteSpills();
+                    topic.cache.clearRenders();
+                    Files.deleteIfExists(topic.cache.backupFile.toPath());
+                    Files.deleteIfExists(LamportClock.getLeaseFile(topic.cache.backupFile).toPath());
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Create a named topic, unless the limit on named topics (which doesn't
+    // count the default topic) has been reached, and rebalance the memory
+    // budget to give it its share.
+    private synchronized AggregationCache create(String name) {
+        Topic topic = this.topics.get(name);
+        if (topic != null) return topic.cache;
+        if (this.topics.size() - 1 >= this.topicLimit) return null;
+
+        AggregationCache cache = restore(name);
+        rebalance();
+        return cache;
+    }
+
+    // Construct a named topic with its backup file, spill path and render
+    // path derived from its name, and the settings made for every topic,
+    // starting its janitor if the topics are running.
+    private synchronized AggregationCache restore(String name) {
+        String path = Common.AGGREGATION_TOPIC_PATH + name;
+        Topic topic = new Topic(new AggregationCache(new File(path + ".lock"),
+                                                     path + "-spill-", path + "-render-"));
+
+        synchronized (topic.cache) {
+            try {
+                topic.cache.feeds.setCompressed(this.isCompressed);
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+            topic.cache.renderThreshold = this.renderThreshold;
+        }
+
+        this.topics.put(name, topic);
+        if (this.isRunning)
+            new Thread(topic.janitor).start();
+        return topic.cache;
+    }
+
+    // Give every topic an equal share of the memory budget, spilling feeds
+    // from any topic left over its share.
+    private synchronized void rebalance() {
+        long share = this.budget / this.topics.size();
+        for (Topic topic : this.topics.values()) {
+            synchronized (topic.cache) {
+                try {
+                    topic.cache.feeds.setBudget(share);
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+    :: src/AggregationWatchdog.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    Enforces the AggregationServer's per-connection deadlines. A request is
+    handled in phases (reading its head, reading its body, writing its
+    response), and each phase must finish within a deadline of its own, as
+    must the wait for the next request on a connection kept alive. A
+    socket timeout only bounds the wait for each read, so a client trickling
+    a byte at a time would never trip it; instead the watchdog closes the
+    socket of any connection whose current phase outlives its deadline,
+    which unblocks the worker stuck on it. Missed deadlines are counted per
+    phase, except for idle connections, which are closed without being
+    counted, since a client leaving a kept-alive connection unused is doing
+    nothing wrong. A single timer thread serves every connection.
+*/
+
+package rjww.atom;
+
+import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class AggregationWatchdog {
+    public static final int HEAD = 0;
+    public static final int BODY = 1;
+    public static final int WRITE = 2;
+    public static final int IDLE = 3;
+
+    private static final int[] DEADLINES = {
+        Common.AGGREGATION_HEAD_TIMEOUT,
+        Common.AGGREGATION_BODY_TIMEOUT,
+        Common.AGGREGATION_WRITE_TIMEOUT,
+        Common.AGGREGATION_IDLE_TIMEOUT
+    };
+
+    private ScheduledThreadPoolExecutor timer;
+    private AtomicLongArray timeouts;
+
+    public AggregationWatchdog() {
+        this.timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "AggregationWatchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer.setRemoveOnCancelPolicy(true);
+        this.timeouts = new AtomicLongArray(DEADLINES.length);
+    }
+
+    // The deadline of a single connection's current phase.
+    public class Deadline {
+        private Socket socket;
+        private ScheduledFuture<?> expiry;
+        private int phase;
+        private boolean isExpired;
+
+        private Deadline(Socket socket) {
+            this.socket = socket;
+        }
+
+        // Begin a phase, replacing the deadline of the phase before.
+        public synchronized void begin(int phase) {
+            end();
+            this.phase = phase;
+            if (this.isExpired) return;
+
+            try {
+                this.expiry = AggregationWatchdog.this.timer.schedule(this::expire,
+                                                                      DEADLINES[phase],
+                                                                      TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e) {
+                // The watchdog has been stopped along with the server.
+            }
+        }
+
+        // End the current phase, if any, within its deadline.
+        public synchronized void end() {
+            if (this.expiry != null)
+                this.expiry.cancel(false);
+            this.expiry = null;
+        }
+
+        // Count the current phase as having missed its deadline, unless the
+        // connection was only idle, and close the connection. Also called by
+        // the worker when a single read outlasts the socket timeout.
+        public synchronized void expire() {
+            if (this.isExpired) return;
+            this.isExpired = true;
+            this.expiry = null;
+            if (this.phase != IDLE)
+                AggregationWatchdog.this.timeouts.incrementAndGet(this.phase);
+
+            try {
+                this.socket.close();
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Determine whether the connection has missed a deadline.
+        public synchronized boolean isExpired() {
+            return this.isExpired;
+        }
+    }
+
+    // Watch a newly accepted connection, starting with its head.
+    public Deadline watch(Socket socket) {
+        Deadline deadline = new Deadline(socket);
+        deadline.begin(HEAD);
+        return deadline;
+    }
+
+    // Get the number of connections closed for missing the deadline of a
+    // supplied phase.
+    public long timeouts(int phase) {
+        return this.timeouts.get(phase);
+    }
+
+    // Stop the timer. Connections still being handled are left to finish
+    // without deadlines.
+    public void stop() {
+        this.timer.shutdownNow();
+    }
+}
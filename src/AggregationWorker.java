@@ -4,7 +4,8 @@
     Author   Robert Woods <hi@robertwoods.me>
     Source   https://github.com/rjww/atom
 
-    Handles and services an individual request to the AggregationServer. Updates
+    Handles and services the requests on a connection to the AggregationServer
+    (usually just the one, unless the client keeps the connection alive). Updates
     all cached feeds PUT to the server by ContentServers, registers empty PUTs
     from ContentHeartbeats to the cache, and collects and transmits the
     aggregated feed in response to GETClient requests.
@@ -13,59 +14,189 @@
 package rjww.atom;
 
 import java.io.BufferedReader;
-import java.io.PrintWriter;
+import java.io.File;
+import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.UUID;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.xml.bind.JAXBException;
 
 public class AggregationWorker implements Runnable {
+    private AggregationTopics topics;
     private AggregationCache cache;
+    private AggregationAdmission admission;
+    private AggregationRateLimiter limiter;
+    private AggregationWatchdog watchdog;
+    private AggregationWatchdog.Deadline deadline;
     private Socket socket;
 
-    public AggregationWorker(AggregationCache cache, Socket socket) {
-        this.cache = cache;
+    public AggregationWorker(AggregationTopics topics,
+                             AggregationAdmission admission,
+                             AggregationRateLimiter limiter,
+                             AggregationWatchdog watchdog,
+                             Socket socket) {
+        this.topics = topics;
+        this.cache = topics.defaultCache();
+        this.admission = admission;
+        this.limiter = limiter;
+        this.watchdog = watchdog;
         this.socket = socket;
     }
 
-    // The AggregationWorker runs by handling a single request on the socket
-    // passed to it by the AggregationServer.
+    // The AggregationWorker runs by handling a request on the socket passed
+    // to it by the AggregationServer, within the watchdog's deadline for each
+    // phase. A client that misses one, or leaves a single read waiting past
+    // the socket timeout, has its connection closed; only that connection is
+    // affected. A request asking to keep the connection alive is followed by
+    // the next on the same socket, until the client closes its end, so a
+    // client can pipeline its requests, writing them all before reading any
+    // response. The wait for the next request is held to the deadline for
+    // idle connections only until its first character arrives, after which
+    // its head is held to the deadline for heads, as the first request's is.
     public void run() {
+        this.deadline = this.watchdog.watch(this.socket);
+
         try (
-            BufferedReader in = Common.getBufferedReader(this.socket);
-            PrintWriter out = Common.getPrintWriter(this.socket);
+            Socket socket = this.socket;
+            BufferedReader in = Common.getBufferedReader(socket);
         ) {
-            this.socket.setSoTimeout(Common.SOCKET_TIMEOUT);
-            handleRequest(in, out);
+            socket.setSoTimeout(Common.SOCKET_TIMEOUT);
+            ResponseWriter out = new ResponseWriter(socket);
+            while (handleRequest(in, out) && awaitRequest(in)) {
+                this.cache = this.topics.defaultCache();
+            }
         }
         catch (SocketTimeoutException e) {
-            System.out.println("AggregationWorker: Client unresponsive.");
-            System.exit(0);
+            this.deadline.expire();
         }
         catch (Exception e) {
-            e.printStackTrace();
+            // Reads from a connection closed by the watchdog fail, as
+            // expected.
+            if (!this.deadline.isExpired())
+                e.printStackTrace();
+        }
+        finally {
+            this.deadline.end();
         }
     }
 
-    // Dispatch on request method and, if a PUT, on target resource. Anything
-    // that isn't a GET or a PUT is responded to with a 400 Bad Request.
-    private void handleRequest(BufferedReader in,
-                               PrintWriter out) throws Exception {
-        HTTPRequest request = Common.readHTTPRequest(in);
+    // Wait for the next request on a connection kept alive, within the
+    // watchdog's deadline for idle connections, and begin the deadline for
+    // its head as soon as its first character arrives. Return false if the
+    // client closes the connection instead.
+    private boolean awaitRequest(BufferedReader in) throws Exception {
+        this.deadline.begin(AggregationWatchdog.IDLE);
+        in.mark(1);
+        if (in.read() == -1)
+            return false;
+        in.reset();
+        this.deadline.begin(AggregationWatchdog.HEAD);
+        return true;
+    }
+
+    // Read the head of a request, and dispatch the request if it's admitted
+    // (see AggregationAdmission). A request that isn't admitted in time is
+    // shed: it's responded to with a 503 Service Unavailable, asking the
+    // client to retry later, and its connection is closed once its body has
+    // been skipped unread (see skipBody()). Return whether the connection is
+    // to be kept alive for another request.
+    private boolean handleRequest(BufferedReader in,
+                                  ResponseWriter out) throws Exception {
+        HTTPRequest request = Common.readHTTPRequestHead(in);
+        this.deadline.end();
+        if (request == null)
+            return false;
+
+        int kind = AggregationAdmission.classify(request.method.toLowerCase(),
+                                                 request.resource.toLowerCase());
+
+        if (!this.admission.acquire(kind)) {
+            skipBody(in);
+            sendUnavailable(out);
+            return false;
+        }
+
+        try {
+            dispatchRequest(request, in, out);
+        }
+        finally {
+            this.admission.release(kind);
+        }
+        return request.isKeptAlive;
+    }
+
+    // Dispatch on request method and on target resource. GETs of the search
+    // resource are searches, and all other GETs are for the aggregated feed.
+    // Anything that isn't a GET, a PUT or a feed PATCH is responded to with a
+    // 400 Bad Request. Feed PUTs read their own body, since an unchanged feed
+    // needn't be kept. A request naming a topic is served from that topic's
+    // cache; a feed PUT creates the topic if need be (or is responded to with
+    // a 403 Forbidden if no more topics may be created), and any other
+    // request for an unknown topic is responded to with a 404 Not Found.
+    // Feed writes may be refused before their body is read (see
+    // refuseWrite()), and any body that runs past the size limit is
+    // responded to with a 413 Payload Too Large.
+    private void dispatchRequest(HTTPRequest request, BufferedReader in,
+                                 ResponseWriter out) throws Exception {
         String method = request.method.toLowerCase();
         String resource = request.resource.toLowerCase();
 
-        if (method.equals("get"))
+        boolean isWrite = resource.equals("feed") &&
+                          (method.equals("put") || method.equals("patch"));
+        if (isWrite && refuseWrite(request, in, out))
+            return;
+
+        if (request.topic != null) {
+            AggregationCache cache;
+            if (method.equals("put") && resource.equals("feed"))
+                cache = this.topics.getOrCreate(request.topic);
+            else
+                cache = this.topics.get(request.topic);
+
+            // Send 403 Forbidden response to the client for a topic that
+            // can't be created, or 404 Not Found for one that doesn't exist.
+            if (cache == null) {
+                request.body = readBody(in);
+                if (request.body == null)
+                    request.isKeptAlive = false;
+                sendResponse(method.equals("put") && resource.equals("feed") ? 403 : 404, out);
+                return;
+            }
+            this.cache = cache;
+        }
+
+        if (method.equals("put") && resource.equals("feed")) {
+            updateContentCache(request, in, out);
+            return;
+        }
+
+        request.body = readBody(in);
+
+        // Send 413 Payload Too Large response to the client. The rest of
+        // the body is left unread, so the connection can't be kept.
+        if (request.body == null) {
+            request.isKeptAlive = false;
+            sendResponse(413, out);
+            return;
+        }
+
+        if (method.equals("get") && resource.equals("search"))
+            sendSearchResults(request, out);
+
+        else if (method.equals("get"))
             sendAggregatedFeed(request, out);
 
-        if (method.equals("put") && resource.equals("feed"))
-            updateContentCache(request, out);
+        else if (method.equals("patch") && resource.equals("feed"))
+            patchContentCache(request, out);
 
-        if (method.equals("put") && resource.equals("heartbeat"))
+        else if (method.equals("put") && resource.equals("heartbeat"))
             registerHeartbeat(request, out);
 
         // Send 400 Bad Request response to the client.
@@ -75,49 +206,281 @@ public class AggregationWorker implements Runnable {
 
     // Service a GET request by sending the aggregated feed. If the content
     // cache is dirty (i.e. if it has been updated since the last GET), then an
-    // aggregate operation is performed first.
+    // aggregate operation is performed first. Each variant of the feed is
+    // assembled from the cached entry fragments once per change to the cache
+    // and then served from it, as long as it stays among the most recently
+    // used variants (see AggregationCache.putRender()); the "dedup" query
+    // parameter selects the variant keeping only the newest copy of each
+    // entry id. With "order=updated", entries are ordered newest first
+    // across all feeds instead, and "limit" keeps only that many of the
+    // newest.
+    //
+    // The "author", "source" (a feed id), "since" and "until" (inclusive
+    // RFC 3339 times) parameters filter the entries sent. Filtered feeds are
+    // assembled through the cache's filter index for each request rather
+    // than kept, and are also cut short by "limit" in either order.
+    //
+    // The "fields" and "view" parameters project each entry onto only some
+    // of its fields (see queryFields()); each projection is kept as its own
+    // variant. The feed is sent as JSON Feed if the Accept header asks for
+    // JSON, and otherwise as XML, unindented if the "compact" parameter is
+    // set; each format is also kept as its own variant.
+    //
+    // Every feed is sent with an entity tag, the digest of its body. A GET
+    // whose If-None-Match header names the tag of the feed as it stands is
+    // responded to with a 304 Not Modified and no body.
+    //
+    // Any other order, a limit that isn't a non-negative number, a malformed
+    // time or an unknown field is responded to with a 400 Bad Request.
     private void sendAggregatedFeed(HTTPRequest request,
-                                    PrintWriter out) throws Exception {
+                                    ResponseWriter out) throws Exception {
+        boolean isDeduplicated = queryFlag(request, "dedup",
+                                           Common.AGGREGATION_DEDUPLICATE_DEFAULT);
+        String order = request.query.getOrDefault("order", "lamport").toLowerCase();
+        int fields = queryFields(request);
+        int format = FeedFormat.negotiate(request.accept, queryFlag(request, "compact", false));
+        FeedFilter filter = new FeedFilter();
+        int limit;
+
+        try {
+            limit = Integer.parseInt(request.query.getOrDefault("limit",
+                                     String.valueOf(Integer.MAX_VALUE)));
+            filter.author = request.query.get("author");
+            filter.source = request.query.get("source");
+            filter.since = queryMillis(request, "since");
+            filter.until = queryMillis(request, "until");
+        }
+        catch (NumberFormatException | DateTimeParseException e) {
+            limit = -1;
+        }
+
+        if (limit < 0 || fields < 0 || !(order.equals("lamport") || order.equals("updated"))) {
+            sendResponse(400, out);
+            return;
+        }
+
+        String variant = (isDeduplicated ? "dedup" : "all") +
+                         (order.equals("updated") ? "/updated/" + limit : "") +
+                         (fields != CompactFeed.ALL_FIELDS ? "/fields/" + fields : "") +
+                         (format != FeedFormat.XML ? "/format/" + format : "");
+
+        byte[] body = null;
+        FileChannel published = null;
+        String etag;
+
         synchronized (this.cache) {
             // Update shared Lamport clock for request receipt.
             this.cache.clock.update(request.lamportTime);
 
-            // If cache is dirty, aggregate the feed by clearing all entries
-            // from the shared feed, then accessing each content feed using the
-            // set of stored UUIDs streamed in Lamport-time order.
+            // If cache is dirty, discard the feeds assembled since the last
+            // aggregation.
             if (this.cache.isDirty) {
-                this.cache.aggregatedFeed.clearEntries();
-
-                ArrayList<UUID> sortedUUIDs = new ArrayList<>();
-                this.cache.lamports.entrySet().stream()
-                    .sorted(HashMap.Entry.comparingByValue())
-                    .forEach(e -> sortedUUIDs.add(e.getKey()));
-
-                for (UUID uuid : sortedUUIDs) {
-                    AtomFeed feed = this.cache.feeds.get(uuid);
-                    if (feed != null) {
-                        for (AtomEntry entry : feed.getEntries()) {
-                            this.cache.aggregatedFeed.addEntry(entry);
-                        }
-                    }
-                }
-
+                this.cache.clearRenders();
                 this.cache.isDirty = false;
-                this.cache.writeToFile();
             }
+
+            // Assemble a filtered feed afresh, or else the requested variant
+            // if it hasn't been already, publishing it to a file and keeping
+            // its entity tag. The file is opened before the lock is
+            // released, so it can't be discarded before it's sent, unless
+            // the client already has it.
+            if (!filter.isEmpty()) {
+                body = this.cache.renderFiltered(filter, isDeduplicated,
+                                                 order.equals("updated"), limit,
+                                                 fields, format);
+                etag = "\"" + Common.digest(body) + "\"";
+            }
+            else {
+                File file = this.cache.getRender(variant);
+                if (file == null) {
+                    byte[] rendered;
+                    if (order.equals("updated"))
+                        rendered = this.cache.renderByUpdated(isDeduplicated, limit,
+                                                              fields, format);
+                    else
+                        rendered = this.cache.render(isDeduplicated, fields, format);
+                    file = this.cache.publish(rendered);
+                    this.cache.putRender(variant, file, "\"" + Common.digest(rendered) + "\"");
+                }
+                etag = this.cache.etags.get(variant);
+                if (!etag.equals(request.ifNoneMatch))
+                    published = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            }
+        }
+
+        // Send 304 Not Modified response to the client, if it already has
+        // the feed as it stands.
+        if (etag.equals(request.ifNoneMatch)) {
+            sendResponse(304, out, new byte[0], null, etag);
+            return;
         }
 
         // Send 200 OK response to the client with the aggregated feed in the
         // response body.
-        sendResponse(200, out, Common.marshalXML(this.cache.aggregatedFeed));
+        if (published == null) {
+            sendResponse(200, out, body, FeedFormat.contentTypeHeader(format), etag);
+            return;
+        }
+        try {
+            sendResponse(200, out, published, FeedFormat.contentTypeHeader(format), etag);
+        }
+        finally {
+            published.close();
+        }
+    }
+
+    // Service a GET of the search resource by sending a feed of the entries
+    // best matching the terms of the "q" query parameter, best first, and at
+    // most "limit" of them, projected and formatted as for the aggregated
+    // feed. The search itself runs against the cache's search index without
+    // holding the cache's lock, which is only taken to collect the matching
+    // entries. A missing query, malformed limit or unknown field is responded
+    // to with a 400 Bad Request.
+    private void sendSearchResults(HTTPRequest request,
+                                   ResponseWriter out) throws Exception {
+        String query = request.query.get("q");
+        int fields = queryFields(request);
+        int format = FeedFormat.negotiate(request.accept, queryFlag(request, "compact", false));
+        int limit;
+
+        try {
+            limit = Integer.parseInt(request.query.getOrDefault("limit",
+                                     String.valueOf(Common.AGGREGATION_SEARCH_LIMIT)));
+        }
+        catch (NumberFormatException e) {
+            limit = -1;
+        }
+
+        if (query == null || limit < 0 || fields < 0) {
+            sendResponse(400, out);
+            return;
+        }
+
+        List<SearchIndex.Hit> hits = this.cache.searchIndex.search(query, limit);
+        byte[] body;
+
+        synchronized (this.cache) {
+            // Update shared Lamport clock for request receipt.
+            this.cache.clock.update(request.lamportTime);
+
+            body = this.cache.renderHits(hits, fields, format);
+        }
+
+        // Send 200 OK response to the client with the matching entries in the
+        // response body.
+        sendResponse(200, out, body, FeedFormat.contentTypeHeader(format), null);
+    }
+
+    // Get the entry fields requested, as a mask of CompactFeed field bits.
+    // The "fields" parameter lists them by element name, separated by
+    // commas; failing that, "view=summary" asks for the lightweight listing
+    // of title, link and updated time, and "view=full" (the default) for
+    // every field. Returns -1 for an unknown field or view.
+    private int queryFields(HTTPRequest request) {
+        String list = request.query.get("fields");
+        if (list == null) {
+            String view = request.query.getOrDefault("view", "full").toLowerCase();
+            if (view.equals("full"))
+                return CompactFeed.ALL_FIELDS;
+            if (view.equals("summary"))
+                return CompactFeed.TITLE | CompactFeed.LINK | CompactFeed.UPDATED;
+            return -1;
+        }
+
+        int fields = 0;
+        for (String field : list.toLowerCase().split(",")) {
+            switch (field.trim()) {
+                case "title":   fields |= CompactFeed.TITLE;   break;
+                case "link":    fields |= CompactFeed.LINK;    break;
+                case "id":      fields |= CompactFeed.ID;      break;
+                case "updated": fields |= CompactFeed.UPDATED; break;
+                case "author":  fields |= CompactFeed.AUTHOR;  break;
+                case "summary": fields |= CompactFeed.SUMMARY; break;
+                default:        return -1;
+            }
+        }
+        return fields;
+    }
+
+    // Get the value of an RFC 3339 time query parameter in millis since
+    // epoch, or null if the parameter is absent.
+    private Long queryMillis(HTTPRequest request, String name) {
+        String value = request.query.get(name);
+        if (value == null) return null;
+        return OffsetDateTime.parse(value).toInstant().toEpochMilli();
+    }
+
+    // Get the value of a boolean query parameter, which may be given as
+    // true/false, on/off or 1/0, falling back to a supplied default if the
+    // parameter is absent or unrecognised.
+    private boolean queryFlag(HTTPRequest request, String name, boolean fallback) {
+        String value = request.query.get(name);
+        if (value == null) return fallback;
+
+        value = value.toLowerCase();
+        if (value.equals("true") || value.equals("on") || value.equals("1") || value.isEmpty())
+            return true;
+        if (value.equals("false") || value.equals("off") || value.equals("0"))
+            return false;
+        return fallback;
     }
 
     // Service a PUT from a ContentServer by updating its record in the shared
-    // cache.
+    // cache. If the feed was sent with the same digest as the cached copy,
+    // its body is discarded unread and the PUT is treated like a heartbeat:
+    // the record is kept alive, but the aggregated feed stays clean, and the
+    // cache isn't written out again for a PUT that changed nothing; the new
+    // timestamp is written out with the cache's next change.
     private void updateContentCache(HTTPRequest request,
-                                    PrintWriter out) throws Exception {
+                                    BufferedReader in,
+                                    ResponseWriter out) throws Exception {
+        boolean isUnchanged;
+
+        synchronized (this.cache) {
+            isUnchanged = this.cache.hasDigest(request.uuid, request.digest);
+        }
+
+        if (isUnchanged) {
+            // Send 413 Payload Too Large response to the client. The rest
+            // of the body is left unread, so the connection can't be kept.
+            if (!skipBody(in)) {
+                request.isKeptAlive = false;
+                sendResponse(413, out);
+                return;
+            }
+
+            synchronized (this.cache) {
+                // Update shared Lamport clock for request receipt.
+                this.cache.clock.update(request.lamportTime);
+
+                // The feed may have expired since it was checked, in which
+                // case the body is needed after all; ask for a full PUT.
+                isUnchanged = this.cache.hasDigest(request.uuid, request.digest);
+
+                // Update cached timestamp.
+                if (isUnchanged)
+                    this.cache.millis.put(request.uuid, System.currentTimeMillis());
+            }
+
+            if (isUnchanged)
+                sendResponse(200, out);
+            else
+                sendResponse(409, out);
+            return;
+        }
+
         try {
-            AtomFeed feed = Common.unmarshalXML(request.body);
+            String body = readBody(in);
+
+            // Send 413 Payload Too Large response to the client. The rest
+            // of the body is left unread, so the connection can't be kept.
+            if (body == null) {
+                request.isKeptAlive = false;
+                sendResponse(413, out);
+                return;
+            }
+
+            AtomFeed feed = Common.unmarshalXML(body);
             boolean isNewFeed;
 
             synchronized (this.cache) {
@@ -128,10 +491,7 @@ public class AggregationWorker implements Runnable {
                 isNewFeed = !this.cache.feeds.containsKey(request.uuid);
 
                 // Update cached records and write to file.
-                this.cache.feeds.put(request.uuid, feed);
-                this.cache.lamports.put(request.uuid, this.cache.clock.peek());
-                this.cache.millis.put(request.uuid, System.currentTimeMillis());
-                this.cache.isDirty = true;
+                this.cache.putFeed(request.uuid, feed, request.digest);
                 this.cache.writeToFile();
             }
 
@@ -148,12 +508,55 @@ public class AggregationWorker implements Runnable {
         }
     }
 
+    // Service a PATCH from a ContentServer by applying the delta in its body
+    // to the cached copy of its feed. The delta is only valid against the
+    // version it was computed from, so if the cached feed's digest doesn't
+    // match the request's base digest (or the feed isn't cached at all), the
+    // PATCH is refused with a 412 Precondition Failed and the ContentServer
+    // falls back to a full PUT.
+    private void patchContentCache(HTTPRequest request,
+                                   ResponseWriter out) throws Exception {
+        try {
+            AtomDelta delta = Common.unmarshalXML(request.body, AtomDelta.class);
+            boolean isApplicable;
+
+            synchronized (this.cache) {
+                // Update shared Lamport clock for request receipt.
+                this.cache.clock.update(request.lamportTime);
+
+                // Update cached records and write to file. A delta between
+                // identical versions only keeps the record alive, as for an
+                // unchanged PUT, without writing the cache out again.
+                isApplicable = this.cache.hasDigest(request.uuid, request.baseDigest);
+                if (isApplicable) {
+                    if (request.baseDigest.equals(request.digest)) {
+                        this.cache.millis.put(request.uuid, System.currentTimeMillis());
+                    }
+                    else {
+                        this.cache.patchFeed(request.uuid, delta, request.digest);
+                        this.cache.writeToFile();
+                    }
+                }
+            }
+
+            if (isApplicable)
+                sendResponse(200, out);
+            else
+                sendResponse(412, out);
+        }
+        // As for a PUT, a malformed delta is responded to with a 500 Internal
+        // Server Error.
+        catch (JAXBException e) {
+            sendResponse(500, out);
+        }
+    }
+
     // Service a PUT by a ContentHeartbeat by updating the time-since-epoch (in
     // millis) since last contact in the shared cache. The AggregationJanitor
     // uses this time when determining whether a cached record should be cleaned
     // up, so registering the heartbeat prevents that from happening.
     private void registerHeartbeat(HTTPRequest request,
-                                   PrintWriter out) throws Exception {
+                                   ResponseWriter out) throws Exception {
         synchronized (this.cache) {
             // Update shared Lamport clock for request receipt.
             this.cache.clock.update(request.lamportTime);
@@ -168,48 +571,114 @@ public class AggregationWorker implements Runnable {
     }
 
     // Send the appropriate response to the client by status code, including the
-    // supplied body string (which can be empty).
-    private void sendResponse(int statusCode, PrintWriter out, String body) throws Exception {
-        String startLine;
-
-        // Determine HTTP response start-line from the supplied status code.
-        switch(statusCode) {
-            case 200:
-                startLine = "HTTP/1.1 200 OK\n";
-                break;
-            case 201:
-                startLine = "HTTP/1.1 201 Created\n";
-                break;
-            case 204:
-                startLine = "HTTP/1.1 204 No Content\n";
-                break;
-            case 500:
-                startLine = "HTTP/1.1 500 Internal Server Error\n";
-                break;
-            default:
-                startLine = "HTTP/1.1 400 Bad Request\n";
-        }
-
-        // Update shared Lamport clock for response transmission.
-        int localLamport;
-        synchronized (this.cache) {
-            localLamport = this.cache.clock.update();
-            this.cache.writeToFile();
+    // supplied body bytes (which can be empty) and their pre-encoded
+    // Content-Type header line and entity tag, if supplied, in a single
+    // write. A client that has hung up without reading its response (such as
+    // a ContentHeartbeat) is ignored.
+    private void sendResponse(int statusCode, ResponseWriter out, byte[] body,
+                              byte[] contentType, String etag) throws Exception {
+        long lamportTime = responseLamport();
+        this.deadline.begin(AggregationWatchdog.WRITE);
+        try {
+            out.send(statusCode, lamportTime, contentType, etag, body);
+        }
+        catch (SocketException e) {
+            // The client has hung up, so there's no one to respond to.
+        }
+        finally {
+            this.deadline.end();
+        }
+    }
+
+    // Send a response as above, with the body read from a file published by
+    // the cache (which ends with its terminating newline). The file is
+    // transferred to the socket's channel directly, which the operating
+    // system can do without the body ever being copied into the process.
+    private void sendResponse(int statusCode, ResponseWriter out, FileChannel body,
+                              byte[] contentType, String etag) throws Exception {
+        long lamportTime = responseLamport();
+        this.deadline.begin(AggregationWatchdog.WRITE);
+        try {
+            out.send(statusCode, lamportTime, contentType, etag, body);
         }
+        catch (IOException e) {
+            // The client has hung up, so there's no one to respond to.
+        }
+        finally {
+            this.deadline.end();
+        }
+    }
+
+    // Refuse a feed write before reading its body, if it declares a body
+    // longer than the size limit, with a 413 Payload Too Large, or if its
+    // publisher has used up its rate (see AggregationRateLimiter), with a
+    // 429 Too Many Requests asking it to retry later. Return whether the
+    // write was refused. The connection of a refused write is closed once
+    // its body has been skipped unread (see skipBody()).
+    private boolean refuseWrite(HTTPRequest request, BufferedReader in,
+                                ResponseWriter out) throws Exception {
+        int statusCode;
+        if (request.contentLength > Common.AGGREGATION_MAX_BODY_LENGTH)
+            statusCode = 413;
+        else if (!this.limiter.tryAcquire(request.uuid))
+            statusCode = 429;
+        else
+            return false;
+
+        sendResponse(statusCode, out, new byte[0],
+                     statusCode == 429 ? AggregationAdmission.RETRY_AFTER_HEADER : null, null);
+
+        skipBody(in);
+        request.isKeptAlive = false;
+        return true;
+    }
+
+    // Skip the body of the request unread within the watchdog's deadline for
+    // bodies, so that the client can finish sending it and read the
+    // response, but no further than the size limit, whatever length the
+    // client claims for it. Return false if it runs past the limit.
+    private boolean skipBody(BufferedReader in) throws Exception {
+        this.deadline.begin(AggregationWatchdog.BODY);
+        boolean isSkipped = Common.skipHTTPBody(in, Common.AGGREGATION_MAX_BODY_LENGTH);
+        this.deadline.end();
+        return isSkipped;
+    }
+
+    // Read the body of the request within the watchdog's deadline for
+    // bodies, or return null if it runs past the size limit.
+    private String readBody(BufferedReader in) throws Exception {
+        this.deadline.begin(AggregationWatchdog.BODY);
+        String body = Common.readHTTPBody(in, Common.AGGREGATION_MAX_BODY_LENGTH);
+        this.deadline.end();
+        return body;
+    }
+
+    // Update the shared Lamport clock for response transmission. The clock
+    // leases its times from file itself (see LamportClock), so neither the
+    // cache lock nor a write of the cache is needed.
+    private long responseLamport() {
+        return this.cache.clock.update();
+    }
 
-        // Construct HTTP response and send to client.
-        out.println(new StringBuffer()
-           .append(startLine)
-           .append("Server: AggregationServer\n")
-           .append("Lamport: " + localLamport + "\n")
-           .append("\n")
-           .append(body)
-           .toString());
+    // Send a 503 Service Unavailable response to a shed request, without
+    // taking the cache lock, whose queue the request is being shed from.
+    private void sendUnavailable(ResponseWriter out) throws Exception {
+        long lamportTime = responseLamport();
+        this.deadline.begin(AggregationWatchdog.WRITE);
+        try {
+            out.send(503, lamportTime, AggregationAdmission.RETRY_AFTER_HEADER, null, new byte[0]);
+        }
+        catch (SocketException e) {
+            // The client has hung up, so there's no one to respond to.
+        }
+        finally {
+            this.deadline.end();
+        }
     }
 
     // Send a response without a body by dispatching to sendResponse with an
-    // empty body string.
-    private void sendResponse(int statusCode, PrintWriter out) throws Exception {
-        sendResponse(statusCode, out, "");
+    // empty body.
+    private void sendResponse(int statusCode, ResponseWriter out) throws Exception {
+        sendResponse(statusCode, out, new byte[0], null, null);
     }
 }
@@ -0,0 +1,312 @@
+/*
+    :: src/AsyncGETClient.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    An asynchronous GET client for services making many GETs of an
+    AggregationServer at once. Each GET returns a CompletableFuture at once,
+    and is sent on one of a small pool of connections kept alive to the
+    server. Requests are pipelined: a GET is written to its connection
+    straight away, behind any still awaiting their responses, and a single
+    thread per connection reads the responses in order and completes their
+    futures. However many GETs are in flight, the client uses no more than
+    one thread per pooled connection. A client talks to one server; a
+    service fetching from several uses a client for each.
+
+    The last response to each GET is kept, and the next GET of the same
+    resource asks the server for it only if it has changed since, by its
+    entity tag. A feed that hasn't changed is answered with a 304 Not
+    Modified, and the kept response completes the GET instead. Only the
+    responses to the resources most recently fetched are kept, so that a
+    client fetching ever different queries doesn't keep every answer.
+
+    A connection the server closes (as it does once one is left idle) is
+    dropped from the pool, and each GET still awaiting a response on it is
+    sent once more on another.
+*/
+
+package rjww.atom;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AsyncGETClient {
+    private LamportClock clock;
+    private String host;
+    private int port;
+    private Connection[] pool;
+    private int next;
+    private boolean isClosed;
+    private LinkedHashMap<String,HTTPResponse> responses;
+    private AtomicLong revalidations;
+
+    // A single GET, from its sending to its completion.
+    private static class Request {
+        String resource;
+        String accept;
+        HTTPResponse cached;
+        CompletableFuture<HTTPResponse> future = new CompletableFuture<>();
+        boolean isRetried;
+    }
+
+    public AsyncGETClient(String host, int port) {
+        this.clock = new LamportClock();
+        this.host = host;
+        this.port = port;
+        this.pool = new Connection[Common.CLIENT_POOL_SIZE];
+        this.next = 0;
+        this.isClosed = false;
+        this.responses = new LinkedHashMap<>(16, 0.75f, true);
+        this.revalidations = new AtomicLong();
+    }
+
+    // GET the aggregated feed from the AggregationServer.
+    public CompletableFuture<HTTPResponse> get() {
+        return get("feed");
+    }
+
+    // GET a supplied resource, which may carry a query string, from the
+    // AggregationServer.
+    public CompletableFuture<HTTPResponse> get(String resource) {
+        return get(resource, null);
+    }
+
+    // GET a supplied resource as for get(resource), asking for it in the
+    // supplied media type, or in any if null. The future completes with the
+    // response, or exceptionally if the server can't be reached. Its
+    // dependent actions run on the thread reading the response, and so
+    // shouldn't block.
+    public CompletableFuture<HTTPResponse> get(String resource, String accept) {
+        Request request = new Request();
+        request.resource = resource;
+        request.accept = accept;
+        request.cached = getResponse(key(resource, accept));
+        submit(request);
+        return request.future;
+    }
+
+    // Get the number of GETs answered from a kept response after a 304 Not
+    // Modified. Used for testing.
+    public long revalidations() {
+        return this.revalidations.get();
+    }
+
+    // Get the number of responses kept. Used for testing.
+    public int responses() {
+        synchronized (this.responses) {
+            return this.responses.size();
+        }
+    }
+
+    // Close every pooled connection. GETs still awaiting their responses
+    // complete exceptionally.
+    public void close() {
+        Connection[] connections;
+        synchronized (this) {
+            this.isClosed = true;
+            connections = this.pool.clone();
+        }
+
+        for (Connection connection : connections) {
+            if (connection == null) continue;
+            for (Request request : connection.close()) {
+                request.future.completeExceptionally(new IOException("AsyncGETClient is closed"));
+            }
+        }
+    }
+
+    // Send a request on the next pooled connection, in turn, opening a new
+    // connection in place of one that has been closed.
+    private void submit(Request request) {
+        try {
+            for (int attempt = 0; attempt <= this.pool.length; attempt++) {
+                if (connection().send(request))
+                    return;
+            }
+            throw new IOException("No connection to the AggregationServer");
+        }
+        catch (Exception e) {
+            request.future.completeExceptionally(e);
+        }
+    }
+
+    private synchronized Connection connection() throws Exception {
+        if (this.isClosed)
+            throw new IOException("AsyncGETClient is closed");
+
+        int i = this.next;
+        this.next = (this.next + 1) % this.pool.length;
+        if (this.pool[i] == null || this.pool[i].isClosed())
+            this.pool[i] = new Connection();
+        return this.pool[i];
+    }
+
+    // Complete a request with its response. A 304 Not Modified is completed
+    // with the response kept from before; any other response carrying an
+    // entity tag is kept in its place.
+    private void complete(Request request, HTTPResponse response) {
+        this.clock.update(response.lamportTime);
+
+        if (response.statusCode == 304 && request.cached != null) {
+            this.revalidations.incrementAndGet();
+            request.future.complete(request.cached);
+            return;
+        }
+
+        if (response.statusCode == 200 && response.etag != null)
+            putResponse(key(request.resource, request.accept), response);
+        request.future.complete(response);
+    }
+
+    // Get the response kept for a supplied key, if any, marking it as most
+    // recently used.
+    private HTTPResponse getResponse(String key) {
+        synchronized (this.responses) {
+            return this.responses.get(key);
+        }
+    }
+
+    // Keep a response for a supplied key, dropping the least recently used
+    // once more than the limit are kept.
+    private void putResponse(String key, HTTPResponse response) {
+        synchronized (this.responses) {
+            this.responses.put(key, response);
+            Iterator<Map.Entry<String,HTTPResponse>> eldest = this.responses.entrySet().iterator();
+            while (this.responses.size() > Common.CLIENT_RESPONSE_LIMIT) {
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+
+    // Send a request left without a response by a failed connection once
+    // more, or fail it if it has already been sent once more.
+    private void retry(Request request, Exception e) {
+        boolean isClosed;
+        synchronized (this) {
+            isClosed = this.isClosed;
+        }
+
+        if (request.isRetried || isClosed) {
+            request.future.completeExceptionally(e);
+            return;
+        }
+        request.isRetried = true;
+        submit(request);
+    }
+
+    private static String key(String resource, String accept) {
+        return accept != null ? resource + "\n" + accept : resource;
+    }
+
+    // A pooled connection, with the requests sent on it that await their
+    // responses, in the order they were sent.
+    private class Connection implements Runnable {
+        private Socket socket;
+        private BufferedReader in;
+        private PrintWriter out;
+        private ArrayDeque<Request> inFlight;
+        private boolean isClosed;
+
+        Connection() throws Exception {
+            this.socket = new Socket(AsyncGETClient.this.host, AsyncGETClient.this.port);
+            this.socket.setSoTimeout(Common.SOCKET_TIMEOUT);
+            this.in = Common.getBufferedReader(this.socket);
+            this.out = new PrintWriter(this.socket.getOutputStream());
+            this.inFlight = new ArrayDeque<>();
+            this.isClosed = false;
+
+            Thread thread = new Thread(this, "AsyncGETClient");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // Write a request behind those already in flight, without waiting for
+        // their responses. Return false if the connection has been closed.
+        synchronized boolean send(Request request) {
+            if (this.isClosed) return false;
+
+            long localLamport = AsyncGETClient.this.clock.update();
+            StringBuilder head = new StringBuilder()
+               .append("GET /" + request.resource + " HTTP/1.1\n")
+               .append("User-Agent: ATOMClient/1/0\n")
+               .append("Connection: keep-alive\n");
+            if (request.accept != null)
+                head.append("Accept: " + request.accept + "\n");
+            if (request.cached != null)
+                head.append("If-None-Match: " + request.cached.etag + "\n");
+            head.append("Lamport: " + localLamport + "\n")
+                .append("\n")
+                .append("\n");
+
+            this.inFlight.add(request);
+            this.out.print(head);
+            this.out.flush();
+            return true;
+        }
+
+        synchronized boolean isClosed() {
+            return this.isClosed;
+        }
+
+        // Read responses until the connection is closed, completing the
+        // request each answers. A read timing out while no request is in
+        // flight only means the connection is idle.
+        public void run() {
+            try {
+                while (true) {
+                    HTTPResponse response;
+                    try {
+                        response = Common.readHTTPResponse(this.in);
+                    }
+                    catch (SocketTimeoutException e) {
+                        if (isIdle()) continue;
+                        throw e;
+                    }
+
+                    Request request;
+                    synchronized (this) {
+                        request = this.inFlight.poll();
+                    }
+                    if (request != null)
+                        AsyncGETClient.this.complete(request, response);
+                }
+            }
+            catch (Exception e) {
+                for (Request request : close()) {
+                    AsyncGETClient.this.retry(request, e);
+                }
+            }
+        }
+
+        // Close the connection, returning the requests left without their
+        // responses.
+        synchronized ArrayDeque<Request> close() {
+            this.isClosed = true;
+            try {
+                this.socket.close();
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+
+            ArrayDeque<Request> unanswered = this.inFlight;
+            this.inFlight = new ArrayDeque<>();
+            return unanswered;
+        }
+
+        private synchronized boolean isIdle() {
+            return this.inFlight.isEmpty();
+        }
+    }
+}
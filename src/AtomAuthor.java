@@ -10,6 +10,7 @@
 package rjww.atom;
 
 import java.io.Serializable;
+import java.util.Objects;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlType;
@@ -27,4 +28,15 @@ public class AtomAuthor implements Serializable {
     public void setName(String name)   { this.name = name;   }
     @XmlElement
     public void setEmail(String email) { this.email = email; }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof AtomAuthor)) return false;
+        AtomAuthor other = (AtomAuthor) o;
+        return Objects.equals(this.name, other.name) &&
+               Objects.equals(this.email, other.email);
+    }
+
+    public int hashCode() {
+        return Objects.hash(this.name, this.email);
+    }
 }
@@ -0,0 +1,170 @@
+/*
+    :: src/AtomDelta.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    Representation of the difference between two versions of an Atom feed,
+    keyed by entry id, for serialization with JAXB. Carries the feed-level
+    fields of the new version, every entry that was added or changed, and the
+    ids of every entry that was removed. If the new version's entries aren't
+    simply the surviving entries in their old order followed by the new ones
+    (as when new entries are added at the top of the feed, as is usual), it
+    also carries the ids of all of the new version's entries, in order. Sent
+    by a ContentServer in a PATCH request in place of the whole feed.
+*/
+
+package rjww.atom;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+@XmlRootElement(name = "delta")
+@XmlType(propOrder = {"head", "entries", "removals", "order"})
+public class AtomDelta {
+    private AtomFeed             head;
+    private ArrayList<AtomEntry> entries;
+    private ArrayList<String>    removals;
+    private ArrayList<String>    order;
+
+    public AtomFeed             getHead()     { return this.head;     }
+    public ArrayList<AtomEntry> getEntries()  { return this.entries;  }
+    public ArrayList<String>    getRemovals() { return this.removals; }
+    public ArrayList<String>    getOrder()    { return this.order;    }
+
+    @XmlElement(name = "feed")
+    public void setHead(AtomFeed head)       { this.head = head;         }
+    @XmlElement(name = "entry")
+    public void setEntries(ArrayList<AtomEntry> entries)
+                                             { this.entries = entries;   }
+    @XmlElement(name = "remove")
+    public void setRemovals(ArrayList<String> removals)
+                                             { this.removals = removals; }
+    @XmlElement(name = "order")
+    public void setOrder(ArrayList<String> order)
+                                             { this.order = order;       }
+
+    public AtomDelta() {
+        this.entries = new ArrayList<AtomEntry>();
+        this.removals = new ArrayList<String>();
+        this.order = new ArrayList<String>();
+    }
+
+    // Compute the delta that turns the base feed into the target feed, or
+    // return null if there isn't one. New entries may be added, and existing
+    // ones moved, anywhere in the feed, but a feed whose ids are missing or
+    // repeated must be sent in full instead.
+    public static AtomDelta diff(AtomFeed base, AtomFeed target) {
+        HashMap<String,AtomEntry> baseEntries = new HashMap<>();
+        for (AtomEntry entry : base.getEntries()) {
+            if (entry.getId() == null || baseEntries.put(entry.getId(), entry) != null)
+                return null;
+        }
+
+        HashSet<String> targetIds = new HashSet<>();
+        for (AtomEntry entry : target.getEntries()) {
+            if (entry.getId() == null || !targetIds.add(entry.getId()))
+                return null;
+        }
+
+        AtomDelta delta = new AtomDelta();
+        delta.setHead(headOf(target));
+
+        for (AtomEntry entry : base.getEntries()) {
+            if (!targetIds.contains(entry.getId()))
+                delta.removals.add(entry.getId());
+        }
+
+        // The order the entries would have without an explicit one: the
+        // surviving base entries in their old order, then the new entries.
+        ArrayList<String> appended = new ArrayList<>();
+        for (AtomEntry entry : base.getEntries()) {
+            if (targetIds.contains(entry.getId()))
+                appended.add(entry.getId());
+        }
+
+        ArrayList<String> order = new ArrayList<>();
+        for (AtomEntry entry : target.getEntries()) {
+            AtomEntry baseEntry = baseEntries.get(entry.getId());
+            if (baseEntry == null) {
+                appended.add(entry.getId());
+                delta.entries.add(entry);
+            }
+            else if (!baseEntry.equals(entry)) {
+                delta.entries.add(entry);
+            }
+            order.add(entry.getId());
+        }
+
+        if (!order.equals(appended))
+            delta.order = order;
+        return delta;
+    }
+
+    // Apply the delta to a supplied feed in place. Changed entries replace
+    // their predecessors at the same position, new entries are appended, and
+    // removed entries are dropped; entries the delta doesn't name are left
+    // untouched. The entries are then put in the delta's order, if it has
+    // one.
+    public void applyTo(AtomFeed feed) {
+        if (this.head != null) {
+            feed.setTitle(this.head.getTitle());
+            feed.setSubtitle(this.head.getSubtitle());
+            feed.setLink(this.head.getLink());
+            feed.setUpdated(this.head.getUpdated());
+            feed.setAuthor(this.head.getAuthor());
+            feed.setId(this.head.getId());
+        }
+
+        ArrayList<AtomEntry> entries = feed.getEntries();
+        HashMap<String,Integer> positions = new HashMap<>();
+        for (int i = 0; i < entries.size(); i++) {
+            positions.put(entries.get(i).getId(), i);
+        }
+
+        for (AtomEntry entry : this.entries) {
+            Integer position = positions.get(entry.getId());
+            if (position != null) {
+                entries.set(position, entry);
+            }
+            else {
+                positions.put(entry.getId(), entries.size());
+                entries.add(entry);
+            }
+        }
+
+        if (!this.removals.isEmpty()) {
+            HashSet<String> removals = new HashSet<>(this.removals);
+            entries.removeIf(entry -> removals.contains(entry.getId()));
+        }
+
+        if (!this.order.isEmpty()) {
+            HashMap<String,AtomEntry> byId = new HashMap<>();
+            for (AtomEntry entry : entries) {
+                byId.put(entry.getId(), entry);
+            }
+            entries.clear();
+            for (String id : this.order) {
+                AtomEntry entry = byId.get(id);
+                if (entry != null)
+                    entries.add(entry);
+            }
+        }
+    }
+
+    // Copy the feed-level fields of a supplied feed, without its entries.
+    private static AtomFeed headOf(AtomFeed feed) {
+        AtomFeed head = new AtomFeed();
+        head.setTitle(feed.getTitle());
+        head.setSubtitle(feed.getSubtitle());
+        head.setLink(feed.getLink());
+        head.setUpdated(feed.getUpdated());
+        head.setAuthor(feed.getAuthor());
+        head.setId(feed.getId());
+        return head;
+    }
+}
@@ -10,6 +10,7 @@
 package rjww.atom;
 
 import java.io.Serializable;
+import java.util.Objects;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlType;
@@ -43,4 +44,19 @@ public class AtomEntry implements Serializable {
     public void setId(String id)             { this.id = id;           }
     @XmlElement
     public void setSummary(String summary)   { this.summary = summary; }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof AtomEntry)) return false;
+        AtomEntry other = (AtomEntry) o;
+        return Objects.equals(this.title, other.title) &&
+               Objects.equals(this.link, other.link) &&
+               Objects.equals(this.updated, other.updated) &&
+               Objects.equals(this.author, other.author) &&
+               Objects.equals(this.id, other.id) &&
+               Objects.equals(this.summary, other.summary);
+    }
+
+    public int hashCode() {
+        return Objects.hash(this.title, this.link, this.updated, this.author, this.id, this.summary);
+    }
 }
@@ -10,6 +10,7 @@
 package rjww.atom;
 
 import java.io.Serializable;
+import java.util.Objects;
 import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlType;
@@ -31,4 +32,16 @@ public class AtomLink implements Serializable {
     public void setHref(String href) { this.href = href; }
     @XmlAttribute
     public void setRel(String rel)   { this.rel = rel;   }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof AtomLink)) return false;
+        AtomLink other = (AtomLink) o;
+        return Objects.equals(this.type, other.type) &&
+               Objects.equals(this.href, other.href) &&
+               Objects.equals(this.rel, other.rel);
+    }
+
+    public int hashCode() {
+        return Objects.hash(this.type, this.href, this.rel);
+    }
 }
@@ -0,0 +1,151 @@
+/*
+    :: src/Benchmark.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    A benchmark of the AggregationCache's feed storage, comparing feeds stored
+    as plain CompactFeeds against feeds stored compressed. For each, it
+    reports the heap taken by the store (measured as the growth in heap in
+    use after garbage collection, so including the hot set of inflated
+    feeds), alongside the store's own estimate of its resident bytes, which
+    is what its budget is enforced against. It also reports the size of a
+    snapshot of the store (as written to the cache's backup), and the time
+    taken to PUT every feed, to read every feed back as in aggregation, and
+    to write a snapshot. Feeds are generated with the shape of the example
+    inputs. Heap measurements are only as steady as System.gc() allows, so
+    are best compared over several runs.
+*/
+
+package rjww.atom;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.UUID;
+
+public class Benchmark {
+    private static final int ROUNDS = 5;
+
+    // Generate a feed with a supplied number of entries. Authors and links
+    // repeat across feeds, as they would among real ContentServers.
+    private static AtomFeed generateFeed(int n, int entries) {
+        AtomFeed feed = new AtomFeed();
+        feed.setTitle("Example Feed " + n);
+        feed.setSubtitle("For benchmarking purposes");
+        feed.setUpdated("2019-10-10T14:27:01Z");
+        feed.setId("urn:uuid:" + UUID.randomUUID());
+        AtomLink feedLink = new AtomLink();
+        feedLink.setHref("http://www.example.com/" + (n % 16));
+        feed.setLink(feedLink);
+        AtomAuthor feedAuthor = new AtomAuthor();
+        feedAuthor.setName("Author " + (n % 32));
+        feed.setAuthor(feedAuthor);
+
+        for (int i = 0; i < entries; i++) {
+            AtomEntry entry = new AtomEntry();
+            entry.setTitle("Entry " + i + " of Example Feed " + n);
+            entry.setId("urn:uuid:" + UUID.randomUUID());
+            entry.setUpdated("2019-10-10T14:" + String.format("%02d", i % 60) + ":01Z");
+            entry.setSummary("This is the content for Entry " + i + " of Example Feed " + n +
+                             ", which goes on for a sentence or two, as summaries do.");
+            AtomLink link = new AtomLink();
+            link.setHref("http://www.example.com/" + (n % 16) + "/entries");
+            entry.setLink(link);
+            AtomAuthor author = new AtomAuthor();
+            author.setName("Author " + (n % 32));
+            author.setEmail("author" + (n % 32) + "@example.com");
+            entry.setAuthor(author);
+            feed.addEntry(entry);
+        }
+
+        return feed;
+    }
+
+    // Run every measurement against a store with compression on or off,
+    // reporting the results unless this is a warm-up.
+    private static void run(boolean isCompressed, ArrayList<UUID> uuids,
+                            ArrayList<AtomFeed> feeds, boolean isReported) throws Exception {
+        long putNanos = 0, readNanos = 0, snapshotNanos = 0;
+        long heapBytes = 0, estimatedBytes = 0, snapshotBytes = 0;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long baseline = usedHeap();
+            FeedStore store = new FeedStore(Common.AGGREGATION_SPILL_PATH, Long.MAX_VALUE, isCompressed);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < feeds.size(); i++) {
+                store.put(uuids.get(i), new CompactFeed(feeds.get(i)));
+            }
+            putNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (UUID uuid : uuids) {
+                CompactFeed feed = store.peek(uuid);
+                for (int i = 0; i < feed.size(); i++) {
+                    feed.entry(i);
+                }
+            }
+            readNanos += System.nanoTime() - start;
+
+            heapBytes += usedHeap() - baseline;
+            estimatedBytes = store.residentBytes();
+
+            start = System.nanoTime();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(store);
+            out.close();
+            snapshotNanos += System.nanoTime() - start;
+
+            snapshotBytes = bytes.size();
+        }
+
+        if (!isReported) return;
+
+        System.out.println(isCompressed ? "Compressed:" : "Uncompressed:");
+        System.out.println("  Measured heap      " + heapBytes / ROUNDS / 1024 + " KiB");
+        System.out.println("  Estimated heap     " + estimatedBytes / 1024 + " KiB (store's estimate)");
+        System.out.println("  Snapshot size      " + snapshotBytes / 1024 + " KiB");
+        System.out.println("  PUT all feeds      " + putNanos / ROUNDS / 1000000 + " ms");
+        System.out.println("  Read all feeds     " + readNanos / ROUNDS / 1000000 + " ms");
+        System.out.println("  Write snapshot     " + snapshotNanos / ROUNDS / 1000000 + " ms");
+    }
+
+    // Get the bytes of heap in use once garbage has been collected, as far as
+    // a few requests for collection will collect it.
+    private static long usedHeap() throws Exception {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Usage: java rjww.atom.Benchmark [feeds[, entries]]
+    public static void main(String[] args) {
+        int feedCount = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int entryCount = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        ArrayList<UUID> uuids = new ArrayList<>(feedCount);
+        ArrayList<AtomFeed> feeds = new ArrayList<>(feedCount);
+        for (int i = 0; i < feedCount; i++) {
+            uuids.add(UUID.randomUUID());
+            feeds.add(generateFeed(i, entryCount));
+        }
+
+        System.out.println(feedCount + " feeds of " + entryCount + " entries, " +
+                           "averaged over " + ROUNDS + " rounds (after a warm-up)");
+
+        try {
+            run(false, uuids, feeds, false);
+            run(true, uuids, feeds, false);
+            run(false, uuids, feeds, true);
+            run(true, uuids, feeds, true);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
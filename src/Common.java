@@ -10,10 +10,12 @@
 package rjww.atom;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -21,7 +23,12 @@ import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.net.Socket;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.HashMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.xml.bind.JAXBContext;
@@ -29,12 +36,51 @@ import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
 
 public class Common {
+    private static final ConcurrentHashMap<Class<?>,JAXBContext> contexts = new ConcurrentHashMap<>();
+
+    public static final int AGGREGATION_BODY_TIMEOUT = 5000;
     public static final String AGGREGATION_CACHE_BACKUP_PATH = "./data/AggregationServer/cache.lock";
+    public static final boolean AGGREGATION_CACHE_COMPRESSION = false;
+    public static final int AGGREGATION_CACHE_HOT_FEEDS = 8;
+    public static final int AGGREGATION_CACHE_PROJECTIONS = 4;
+    public static final long AGGREGATION_CACHE_MEMORY_BUDGET = 64L * 1024 * 1024;
+    public static final int AGGREGATION_CONNECTION_LIMIT = 2048;
+    public static final boolean AGGREGATION_DEDUPLICATE_DEFAULT = false;
+    public static final int AGGREGATION_GET_LIMIT = 64;
+    public static final int AGGREGATION_GET_QUEUE_TIMEOUT = 500;
+    public static final int AGGREGATION_HEAD_TIMEOUT = 2000;
+    public static final int AGGREGATION_HEARTBEAT_LIMIT = 1024;
+    public static final int AGGREGATION_HEARTBEAT_QUEUE_TIMEOUT = 5000;
+    public static final int AGGREGATION_IDLE_TIMEOUT = 5000;
     public static final int AGGREGATION_JANITOR_CLEANUP_INTERVAL = 1000;
     public static final int AGGREGATION_JANITOR_EXPIRATION_THRESHOLD = 15000;
+    public static final int AGGREGATION_MAX_BODY_LENGTH = 4 * 1024 * 1024;
+    public static final int AGGREGATION_PUT_BURST = 10;
+    public static final int AGGREGATION_PUT_LIMIT = 16;
+    public static final int AGGREGATION_PUT_QUEUE_TIMEOUT = 500;
+    public static final int AGGREGATION_PUT_RATE = 5;
+    public static final String AGGREGATION_RENDER_PATH = "./data/AggregationServer/render-";
+    public static final int AGGREGATION_RENDER_THRESHOLD = 32;
+    public static final int AGGREGATION_RENDER_VARIANTS = 16;
+    public static final int AGGREGATION_RETRY_AFTER = 1;
+    public static final int AGGREGATION_SEARCH_LIMIT = 20;
     public static final int AGGREGATION_SERVER_DEFAULT_PORT = 4567;
+    public static final String AGGREGATION_SPILL_PATH = "./data/AggregationServer/spill-";
+    public static final int AGGREGATION_TOPIC_LIMIT = 64;
+    public static final String AGGREGATION_TOPIC_PATH = "./data/AggregationServer/topic-";
+    public static final int AGGREGATION_WRITE_TIMEOUT = 5000;
+    public static final int CLIENT_POOL_SIZE = 4;
+    public static final int CLIENT_RESPONSE_LIMIT = 64;
+    public static final int CLIENT_RETRY_ATTEMPTS = 4;
+    public static final int CLIENT_RETRY_BACKOFF = 250;
+    public static final int CLIENT_RETRY_BACKOFF_LIMIT = 4000;
     public static final int CONTENT_HEARTBEAT_INTERVAL = 1000;
+    public static final int CONTENT_HOST_POOL_SIZE = 4;
     public static final String CONTENT_SERVER_BACKUP_PATH = "./data/ContentServer/records/";
+    public static final int CONTENT_WATCH_DEBOUNCE = 250;
+    public static final int FRAME_MAX_LENGTH = AGGREGATION_MAX_BODY_LENGTH;
+    public static final long LAMPORT_LEASE_BLOCK = 10000;
+    public static final long LAMPORT_MAX_SKEW = 1L << 32;
     public static final int SOCKET_TIMEOUT = 5000;
 
     // Construct a BufferedReader from the input stream of a supplied socket.
@@ -72,17 +118,55 @@ public class Common {
         return file.getPath();
     }
 
+    // Get the ContentCache backup file for a ContentServer publishing the
+    // supplied input file.
+    public static File getContentBackupFile(File inputFile) {
+        return new File(CONTENT_SERVER_BACKUP_PATH +
+                        getFilenameWithoutExtension(inputFile) +
+                        ".lock");
+    }
+
+    // Get the request path of a supplied resource within a topic, or of the
+    // resource itself for the default (null) topic.
+    public static String getTopicPath(String resource, String topic) {
+        return topic == null ? "/" + resource : "/" + resource + "/" + topic;
+    }
+
+    // Compute the SHA-256 digest of the supplied bytes, as a hex string.
+    public static String digest(byte[] bytes) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes);
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+               .append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
     // Read a supplied BufferedReader into an HTTPRequest object.
     public static HTTPRequest readHTTPRequest(BufferedReader in) throws Exception {
+        HTTPRequest request = readHTTPRequestHead(in);
+        request.body = readHTTPBody(in);
+        return request;
+    }
+
+    // Read the start-line and headers of a request from a supplied
+    // BufferedReader into an HTTPRequest object, leaving the body unread.
+    public static HTTPRequest readHTTPRequestHead(BufferedReader in) throws Exception {
         HTTPRequest request = new HTTPRequest();
         String inputLine;
 
         inputLine = in.readLine();
-        Matcher matcher = Pattern.compile("\\A(\\w+) /(\\w+)")
+        if (inputLine == null)
+            return null;
+        Matcher matcher = Pattern.compile("\\A(\\w+) /(\\w+)(?:/(\\w+))?(?:\\?(\\S*))?")
                                  .matcher(inputLine);
         if (matcher.find()) {
             request.method = matcher.group(1);
             request.resource = matcher.group(2);
+            request.topic = matcher.group(3);
+            if (matcher.group(4) != null)
+                request.query = parseQuery(matcher.group(4));
         }
 
         while ((inputLine = in.readLine()) != null && !inputLine.equals("")) {
@@ -90,15 +174,130 @@ public class Common {
             if (tokens[0].equalsIgnoreCase("uuid"))
                 request.uuid = UUID.fromString(tokens[1]);
             if (tokens[0].equalsIgnoreCase("lamport"))
-                request.lamportTime = Integer.parseInt(tokens[1]);
+                request.lamportTime = Long.parseLong(tokens[1]);
+            if (tokens[0].equalsIgnoreCase("digest"))
+                request.digest = tokens[1];
+            if (tokens[0].equalsIgnoreCase("base-digest"))
+                request.baseDigest = tokens[1];
+            if (tokens[0].equalsIgnoreCase("accept"))
+                request.accept = tokens[1];
+            if (tokens[0].equalsIgnoreCase("content-length"))
+                request.contentLength = Long.parseLong(tokens[1]);
+            if (tokens[0].equalsIgnoreCase("connection"))
+                request.isKeptAlive = tokens[1].equalsIgnoreCase("keep-alive");
+            if (tokens[0].equalsIgnoreCase("if-none-match"))
+                request.ifNoneMatch = tokens[1];
+        }
+
+        return request;
+    }
+
+    // Parse a URL query string into a map of decoded names to values. A name
+    // without a value maps to the empty string.
+    public static HashMap<String,String> parseQuery(String queryString) throws Exception {
+        HashMap<String,String> query = new HashMap<>();
+
+        for (String parameter : queryString.split("&")) {
+            if (parameter.isEmpty()) continue;
+            String[] tokens = parameter.split("=", 2);
+            query.put(URLDecoder.decode(tokens[0], "UTF-8"),
+                      tokens.length > 1 ? URLDecoder.decode(tokens[1], "UTF-8") : "");
         }
 
-        request.body = "";
+        return query;
+    }
+
+    // Read a message body, which is terminated by an empty line, from a
+    // supplied BufferedReader.
+    public static String readHTTPBody(BufferedReader in) throws Exception {
+        StringBuilder body = new StringBuilder();
+        String inputLine;
+
         while ((inputLine = in.readLine()) != null && !inputLine.equals("")) {
-            request.body += inputLine + "\n";
+            body.append(inputLine).append("\n");
         }
 
-        return request;
+        return body.toString();
+    }
+
+    // Read a message body as above, unless it runs to more than a supplied
+    // number of characters, in which case stop and return null, leaving
+    // the rest unread. The body is read a character at a time rather than a
+    // line at a time, so that no more than the limit is ever buffered,
+    // however long its lines and whatever length the client claims for it.
+    public static String readHTTPBody(BufferedReader in, long maxLength) throws Exception {
+        StringBuilder body = new StringBuilder();
+        int lineStart = 0;
+        int c;
+
+        while ((c = readChar(in)) != -1) {
+            if (c == '\n' && body.length() == lineStart)
+                return body.toString();
+
+            body.append((char) c);
+            if (c == '\n')
+                lineStart = body.length();
+            if (body.length() > maxLength)
+                return null;
+        }
+
+        // The stream ended without an empty line, as readLine() allows.
+        if (body.length() > lineStart)
+            body.append('\n');
+        return body.length() > maxLength ? null : body.toString();
+    }
+
+    // Consume a message body from a supplied BufferedReader without keeping
+    // it, so that the connection is left in a clean state, unless it runs to
+    // more than a supplied number of characters, in which case stop and
+    // return false, leaving the rest unread. As above, it's read a character
+    // at a time, so that no line of it is ever buffered.
+    public static boolean skipHTTPBody(BufferedReader in, long maxLength) throws Exception {
+        boolean isLineStart = true;
+        long length = 0;
+        int c;
+
+        while ((c = readChar(in)) != -1) {
+            if (c == '\n' && isLineStart)
+                return true;
+            isLineStart = c == '\n';
+            if (++length > maxLength)
+                return false;
+        }
+        return true;
+    }
+
+    // Read a character from a supplied BufferedReader, reading any line
+    // terminator as a single '\n', or return -1 at the end of the stream.
+    private static int readChar(BufferedReader in) throws IOException {
+        int c = in.read();
+        if (c != '\r')
+            return c;
+
+        in.mark(1);
+        if (in.read() != '\n')
+            in.reset();
+        return '\n';
+    }
+
+    // Get the time to wait before retrying a request that was shed with a
+    // 503 Service Unavailable or refused with a 429 Too Many Requests, on a
+    // supplied retry (counting from 0): at least the response's Retry-After,
+    // plus a random jitter of up to an exponentially growing backoff, so
+    // that clients turned away together don't all return together.
+    public static long getRetryDelay(HTTPResponse response, int retry) {
+        long retryAfter = Math.max(response.retryAfter, 0) * 1000L;
+        long backoff = (long) Common.CLIENT_RETRY_BACKOFF << retry;
+        return retryAfter + ThreadLocalRandom.current().nextLong(backoff + 1);
+    }
+
+    // Get a random backoff before a supplied retry (counting from 0) of a
+    // request that failed outright: between half and all of a delay that
+    // doubles with each retry, up to a limit.
+    public static long getBackoff(int retry) {
+        long backoff = (long) Common.CLIENT_RETRY_BACKOFF << Math.min(retry, 16);
+        backoff = Math.min(backoff, Common.CLIENT_RETRY_BACKOFF_LIMIT);
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
     }
 
     // Read a supplied BufferedReader into an HTTPResponse object.
@@ -107,6 +306,8 @@ public class Common {
         String inputLine;
 
         inputLine = in.readLine();
+        if (inputLine == null)
+            throw new EOFException("Connection closed before a response");
         Matcher matcher = Pattern.compile("\\A\\S+ (\\d+)")
                                  .matcher(inputLine);
         if (matcher.find()) {
@@ -116,24 +317,29 @@ public class Common {
         while ((inputLine = in.readLine()) != null && !inputLine.equals("")) {
             String[] tokens = inputLine.split(": ");
             if (tokens[0].equalsIgnoreCase("lamport"))
-                response.lamportTime = Integer.parseInt(tokens[1]);
+                response.lamportTime = Long.parseLong(tokens[1]);
+            if (tokens[0].equalsIgnoreCase("content-type"))
+                response.contentType = tokens[1];
+            if (tokens[0].equalsIgnoreCase("content-length"))
+                response.contentLength = Long.parseLong(tokens[1]);
+            if (tokens[0].equalsIgnoreCase("retry-after"))
+                response.retryAfter = Integer.parseInt(tokens[1]);
+            if (tokens[0].equalsIgnoreCase("etag"))
+                response.etag = tokens[1];
         }
 
-        response.body = "";
-        while ((inputLine = in.readLine()) != null && !inputLine.equals("")) {
-            response.body += inputLine + "\n";
-        }
+        response.body = readHTTPBody(in);
 
         return response;
     }
 
-    // Marshal a supplied AtomFeed into an XML string.
-    public static String marshalXML(AtomFeed feed) throws Exception {
+    // Marshal a supplied AtomFeed (or other JAXB object, such as an AtomDelta)
+    // into an XML string.
+    public static String marshalXML(Object feed) throws Exception {
         StringWriter writer = new StringWriter();
 
         try {
-            JAXBContext context = JAXBContext.newInstance(AtomFeed.class);
-            Marshaller marshaller = context.createMarshaller();
+            Marshaller marshaller = getJAXBContext(feed.getClass()).createMarshaller();
             marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
             marshaller.marshal(feed, writer);
         }
@@ -144,12 +350,57 @@ public class Common {
         return writer.toString();
     }
 
+    // Marshal a supplied AtomEntry into an XML fragment exactly as it is
+    // marshalled within an AtomFeed, indented as a child of the feed and
+    // ending in a newline. The entry is marshalled inside an otherwise empty
+    // feed and cut out of it, so that JAXB writes the indentation itself,
+    // only between elements, and text that spans several lines (or holds
+    // blank lines) is left as it is.
+    public static String marshalXMLEntry(AtomEntry entry) throws Exception {
+        AtomFeed wrapper = new AtomFeed();
+        wrapper.addEntry(entry);
+
+        StringWriter writer = new StringWriter();
+        Marshaller marshaller = getJAXBContext(AtomFeed.class).createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+        marshaller.marshal(wrapper, writer);
+
+        // Cut from the line after the feed's start tag to its end tag.
+        String xml = writer.toString();
+        return xml.substring(xml.indexOf('\n') + 1, xml.lastIndexOf("</feed>"));
+    }
+
+    // Marshal a supplied JAXB object into an XML fragment, without an XML
+    // declaration, indentation or line breaks.
+    public static String marshalXMLCompact(Object object) throws Exception {
+        StringWriter writer = new StringWriter();
+        Marshaller marshaller = getJAXBContext(object.getClass()).createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+        marshaller.marshal(object, writer);
+        return writer.toString();
+    }
+
+    // Get the JAXB context for a supplied class, creating it on first use.
+    // Contexts are expensive to create but thread-safe, so are shared.
+    private static JAXBContext getJAXBContext(Class<?> type) throws Exception {
+        JAXBContext context = contexts.get(type);
+        if (context == null) {
+            context = JAXBContext.newInstance(type);
+            contexts.putIfAbsent(type, context);
+        }
+        return context;
+    }
+
     // Unmarshal a supplied XML string into an AtomFeed object.
     public static AtomFeed unmarshalXML(String xmlString) throws Exception {
-        AtomFeed feed = null;
-        JAXBContext context = JAXBContext.newInstance(AtomFeed.class);
-        Unmarshaller unmarshaller = context.createUnmarshaller();
-        feed = (AtomFeed) unmarshaller.unmarshal(new StringReader(xmlString));
-        return feed;
+        return unmarshalXML(xmlString, AtomFeed.class);
+    }
+
+    // Unmarshal a supplied XML string into an object of the supplied JAXB
+    // class.
+    public static <T> T unmarshalXML(String xmlString, Class<T> type) throws Exception {
+        Unmarshaller unmarshaller = getJAXBContext(type).createUnmarshaller();
+        return type.cast(unmarshaller.unmarshal(new StringReader(xmlString)));
     }
 }
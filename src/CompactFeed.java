@@ -0,0 +1,495 @@
+/*
+    :: src/CompactFeed.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    The compact form in which the AggregationCache holds a content feed. Rather
+    than an AtomEntry, AtomLink and AtomAuthor object per entry, each entry
+    field is stored in a column: free text (title, id, updated, summary) as
+    UTF-8 byte arrays, and author and link attributes as strings from the
+    shared StringPool, since these repeat across entries and feeds. Each
+    entry's XML is also marshalled once, when the feed is cached, and kept as
+    a UTF-8 fragment, so that the aggregated feed can be assembled from
+    fragments without marshalling anything. Entries' updated times are also
+    parsed to epoch millis, and the entries ranked newest first, so that the
+    aggregated feed can be ordered by time without sorting. The JAXB beans
+    are only rebuilt when a feed is patched.
+*/
+
+package rjww.atom;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.List;
+import java.util.stream.IntStream;
+
+public class CompactFeed implements Serializable {
+    public static final int TITLE = 1;
+    public static final int LINK = 2;
+    public static final int ID = 4;
+    public static final int UPDATED = 8;
+    public static final int AUTHOR = 16;
+    public static final int SUMMARY = 32;
+    public static final int ALL_FIELDS = 63;
+
+    private static final byte HAS_LINK = 1;
+    private static final byte HAS_AUTHOR = 2;
+
+    private AtomFeed head;
+    private byte[][] titles;
+    private byte[][] ids;
+    private byte[][] updated;
+    private byte[][] summaries;
+    private String[] linkTypes;
+    private String[] linkHrefs;
+    private String[] linkRels;
+    private String[] authorNames;
+    private String[] authorEmails;
+    private byte[] flags;
+    private byte[][] fragments;
+    private long[] millis;
+    private int[] newest;
+    private transient LinkedHashMap<Integer,byte[][]> projections;
+    private transient volatile long projectionBytes;
+
+    // Construct the compact form of a supplied feed. The feed's own fields
+    // are kept in an AtomFeed without entries, with its attributes pooled.
+    public CompactFeed(AtomFeed feed) throws Exception {
+        this.head = new AtomFeed();
+        this.head.setTitle(feed.getTitle());
+        this.head.setSubtitle(feed.getSubtitle());
+        this.head.setLink(poolLink(feed.getLink()));
+        this.head.setUpdated(feed.getUpdated());
+        this.head.setAuthor(poolAuthor(feed.getAuthor()));
+        this.head.setId(feed.getId());
+
+        int size = feed.getEntries().size();
+        this.titles = new byte[size][];
+        this.ids = new byte[size][];
+        this.updated = new byte[size][];
+        this.summaries = new byte[size][];
+        this.linkTypes = new String[size];
+        this.linkHrefs = new String[size];
+        this.linkRels = new String[size];
+        this.authorNames = new String[size];
+        this.authorEmails = new String[size];
+        this.flags = new byte[size];
+        this.fragments = new byte[size][];
+
+        for (int i = 0; i < size; i++) {
+            AtomEntry entry = feed.getEntries().get(i);
+            this.fragments[i] = encode(Common.marshalXMLEntry(entry));
+            this.titles[i] = encode(entry.getTitle());
+            this.ids[i] = encode(entry.getId());
+            this.updated[i] = encode(entry.getUpdated());
+            this.summaries[i] = encode(entry.getSummary());
+
+            if (entry.getLink() != null) {
+                this.flags[i] |= HAS_LINK;
+                this.linkTypes[i] = StringPool.intern(entry.getLink().getType());
+                this.linkHrefs[i] = StringPool.intern(entry.getLink().getHref());
+                this.linkRels[i] = StringPool.intern(entry.getLink().getRel());
+            }
+
+            if (entry.getAuthor() != null) {
+                this.flags[i] |= HAS_AUTHOR;
+                this.authorNames[i] = StringPool.intern(entry.getAuthor().getName());
+                this.authorEmails[i] = StringPool.intern(entry.getAuthor().getEmail());
+            }
+        }
+
+        rank();
+    }
+
+    // Construct an empty feed, to be filled in by readFrom().
+    private CompactFeed() {
+        this.head = new AtomFeed();
+    }
+
+    // Get the number of entries in the feed.
+    public int size() {
+        return this.flags.length;
+    }
+
+    // Get the id of the feed itself.
+    public String feedId() {
+        return this.head.getId();
+    }
+
+    // Get the author name of the entry at the supplied position, which is
+    // the feed's author if the entry doesn't have its own.
+    public String author(int i) {
+        if ((this.flags[i] & HAS_AUTHOR) != 0)
+            return this.authorNames[i];
+        return this.head.getAuthor() != null ? this.head.getAuthor().getName() : null;
+    }
+
+    // Get the id of the entry at the supplied position.
+    public String id(int i) {
+        return decode(this.ids[i]);
+    }
+
+    // Get the ids of all entries, in feed order.
+    public List<String> ids() {
+        ArrayList<String> ids = new ArrayList<>(size());
+        for (int i = 0; i < size(); i++) {
+            ids.add(id(i));
+        }
+        return ids;
+    }
+
+    // Get the XML fragment for the entry at the supplied position, as it
+    // appears within the aggregated feed.
+    public byte[] fragment(int i) {
+        return this.fragments[i];
+    }
+
+    // Get the fragment for the entry at the supplied position in a supplied
+    // FeedFormat, with only the supplied fields (a mask of field bits).
+    // Fragments other than the full XML are encoded on first use and kept
+    // for as long as the feed stays on the heap, one set per format and
+    // mask. Only the most recently used few sets are kept, and they're
+    // counted by sizeOf(), so that the FeedStore can hold them to its
+    // budget (see FeedStore.remeasure()). JSON Feed items always keep their
+    // id, which the format requires, whatever the mask.
+    public synchronized byte[] fragment(int i, int fields, int format) throws Exception {
+        if (format == FeedFormat.JSON) fields |= ID;
+        if (fields == ALL_FIELDS && format == FeedFormat.XML) return this.fragments[i];
+
+        if (this.projections == null) this.projections = new LinkedHashMap<>(16, 0.75f, true);
+        byte[][] projection = this.projections.get(format << 8 | fields);
+        if (projection == null) {
+            projection = new byte[size()][];
+            this.projections.put(format << 8 | fields, projection);
+            this.projectionBytes += 16 + 8L * size();
+
+            Iterator<Map.Entry<Integer,byte[][]>> eldest = this.projections.entrySet().iterator();
+            while (this.projections.size() > Common.AGGREGATION_CACHE_PROJECTIONS) {
+                this.projectionBytes -= sizeOf(eldest.next().getValue());
+                eldest.remove();
+            }
+        }
+
+        if (projection[i] == null) {
+            AtomEntry entry = entry(i);
+            if ((fields & TITLE) == 0)   entry.setTitle(null);
+            if ((fields & LINK) == 0)    entry.setLink(null);
+            if ((fields & ID) == 0)      entry.setId(null);
+            if ((fields & UPDATED) == 0) entry.setUpdated(null);
+            if ((fields & AUTHOR) == 0)  entry.setAuthor(null);
+            if ((fields & SUMMARY) == 0) entry.setSummary(null);
+            projection[i] = encode(FeedFormat.fragment(entry, format));
+            this.projectionBytes += sizeOf(projection[i]);
+        }
+        return projection[i];
+    }
+
+    // Get the number of projected fragment sets kept. Used for testing.
+    public synchronized int projections() {
+        return this.projections != null ? this.projections.size() : 0;
+    }
+
+    // Get the title of the entry at the supplied position.
+    public String title(int i) {
+        return decode(this.titles[i]);
+    }
+
+    // Get the summary of the entry at the supplied position.
+    public String summary(int i) {
+        return decode(this.summaries[i]);
+    }
+
+    // Get the updated time of the entry at the supplied position, in millis
+    // since epoch, or Long.MIN_VALUE if it has none that can be parsed.
+    public long updatedMillis(int i) {
+        return this.millis[i];
+    }
+
+    // Get the position of the entry with the supplied rank by updated time,
+    // rank 0 being the newest. Entries with the same time keep feed order.
+    public int newest(int rank) {
+        return this.newest[rank];
+    }
+
+    // Rebuild the JAXB bean for the entry at the supplied position.
+    public AtomEntry entry(int i) {
+        AtomEntry entry = new AtomEntry();
+        entry.setTitle(decode(this.titles[i]));
+        entry.setId(decode(this.ids[i]));
+        entry.setUpdated(decode(this.updated[i]));
+        entry.setSummary(decode(this.summaries[i]));
+
+        if ((this.flags[i] & HAS_LINK) != 0) {
+            AtomLink link = new AtomLink();
+            link.setType(this.linkTypes[i]);
+            link.setHref(this.linkHrefs[i]);
+            link.setRel(this.linkRels[i]);
+            entry.setLink(link);
+        }
+
+        if ((this.flags[i] & HAS_AUTHOR) != 0) {
+            AtomAuthor author = new AtomAuthor();
+            author.setName(this.authorNames[i]);
+            author.setEmail(this.authorEmails[i]);
+            entry.setAuthor(author);
+        }
+
+        return entry;
+    }
+
+    // Rebuild the JAXB bean for the whole feed.
+    public AtomFeed toAtomFeed() {
+        AtomFeed feed = new AtomFeed();
+        feed.setTitle(this.head.getTitle());
+        feed.setSubtitle(this.head.getSubtitle());
+        feed.setLink(this.head.getLink());
+        feed.setUpdated(this.head.getUpdated());
+        feed.setAuthor(this.head.getAuthor());
+        feed.setId(this.head.getId());
+        for (int i = 0; i < size(); i++) {
+            feed.addEntry(entry(i));
+        }
+        return feed;
+    }
+
+    // Estimate the number of heap bytes taken by the feed: array headers and
+    // byte lengths for the text columns and kept projections, but only a
+    // reference for each pooled string, whose storage is shared with other
+    // entries and feeds.
+    public long sizeOf() {
+        long size = 256 + FeedStore.sizeOf(this.head) + 10L * 16 + 4L * 24 +
+                    this.projectionBytes;
+        for (int i = 0; i < size(); i++) {
+            size += 1 + 8 + 4 + 5L * 8 + 5L * 8 +
+                    sizeOf(this.titles[i]) + sizeOf(this.ids[i]) +
+                    sizeOf(this.updated[i]) + sizeOf(this.summaries[i]) +
+                    sizeOf(this.fragments[i]);
+        }
+        return size;
+    }
+
+    // Write the feed in a plain binary encoding: the head's fields, the entry
+    // count, then each entry's flags and fields. Much smaller and faster than
+    // Java serialization, and used wherever a feed is compressed.
+    public void writeTo(DataOutputStream out) throws IOException {
+        writeString(out, this.head.getTitle());
+        writeString(out, this.head.getSubtitle());
+        writeString(out, this.head.getUpdated());
+        writeString(out, this.head.getId());
+        writeLink(out, this.head.getLink());
+        writeAuthor(out, this.head.getAuthor());
+
+        out.writeInt(size());
+        for (int i = 0; i < size(); i++) {
+            out.writeByte(this.flags[i]);
+            writeBytes(out, this.titles[i]);
+            writeBytes(out, this.ids[i]);
+            writeBytes(out, this.updated[i]);
+            writeBytes(out, this.summaries[i]);
+            writeBytes(out, this.fragments[i]);
+            if ((this.flags[i] & HAS_LINK) != 0) {
+                writeString(out, this.linkTypes[i]);
+                writeString(out, this.linkHrefs[i]);
+                writeString(out, this.linkRels[i]);
+            }
+            if ((this.flags[i] & HAS_AUTHOR) != 0) {
+                writeString(out, this.authorNames[i]);
+                writeString(out, this.authorEmails[i]);
+            }
+        }
+    }
+
+    // Read a feed written by writeTo(), pooling its attributes.
+    public static CompactFeed readFrom(DataInputStream in) throws IOException {
+        CompactFeed feed = new CompactFeed();
+        feed.head.setTitle(readString(in));
+        feed.head.setSubtitle(readString(in));
+        feed.head.setUpdated(readString(in));
+        feed.head.setId(readString(in));
+        feed.head.setLink(readLink(in));
+        feed.head.setAuthor(readAuthor(in));
+
+        int size = in.readInt();
+        feed.titles = new byte[size][];
+        feed.ids = new byte[size][];
+        feed.updated = new byte[size][];
+        feed.summaries = new byte[size][];
+        feed.linkTypes = new String[size];
+        feed.linkHrefs = new String[size];
+        feed.linkRels = new String[size];
+        feed.authorNames = new String[size];
+        feed.authorEmails = new String[size];
+        feed.flags = new byte[size];
+        feed.fragments = new byte[size][];
+
+        for (int i = 0; i < size; i++) {
+            feed.flags[i] = in.readByte();
+            feed.titles[i] = readBytes(in);
+            feed.ids[i] = readBytes(in);
+            feed.updated[i] = readBytes(in);
+            feed.summaries[i] = readBytes(in);
+            feed.fragments[i] = readBytes(in);
+            if ((feed.flags[i] & HAS_LINK) != 0) {
+                feed.linkTypes[i] = StringPool.intern(readString(in));
+                feed.linkHrefs[i] = StringPool.intern(readString(in));
+                feed.linkRels[i] = StringPool.intern(readString(in));
+            }
+            if ((feed.flags[i] & HAS_AUTHOR) != 0) {
+                feed.authorNames[i] = StringPool.intern(readString(in));
+                feed.authorEmails[i] = StringPool.intern(readString(in));
+            }
+        }
+
+        feed.rank();
+        return feed;
+    }
+
+    // Parse the updated time of every entry, and rank the entries by it,
+    // newest first.
+    private void rank() {
+        this.millis = new long[size()];
+        for (int i = 0; i < size(); i++) {
+            this.millis[i] = parseMillis(decode(this.updated[i]));
+        }
+
+        this.newest = IntStream.range(0, size()).boxed()
+            .sorted((a, b) -> Long.compare(this.millis[b], this.millis[a]))
+            .mapToInt(Integer::intValue)
+            .toArray();
+    }
+
+    // Parse an RFC 3339 timestamp (as used by Atom) to millis since epoch,
+    // giving Long.MIN_VALUE for a missing or malformed timestamp, so that
+    // such entries are ranked oldest.
+    private static long parseMillis(String timestamp) {
+        if (timestamp == null) return Long.MIN_VALUE;
+
+        try {
+            return OffsetDateTime.parse(timestamp).toInstant().toEpochMilli();
+        }
+        catch (DateTimeParseException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    // Re-intern the pooled columns of a feed read back from a backup or spill
+    // file, since deserialization produces fresh copies of every string.
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.head.setLink(poolLink(this.head.getLink()));
+        this.head.setAuthor(poolAuthor(this.head.getAuthor()));
+        StringPool.internAll(this.linkTypes);
+        StringPool.internAll(this.linkHrefs);
+        StringPool.internAll(this.linkRels);
+        StringPool.internAll(this.authorNames);
+        StringPool.internAll(this.authorEmails);
+    }
+
+    private static AtomLink poolLink(AtomLink link) {
+        if (link == null) return null;
+        AtomLink pooled = new AtomLink();
+        pooled.setType(StringPool.intern(link.getType()));
+        pooled.setHref(StringPool.intern(link.getHref()));
+        pooled.setRel(StringPool.intern(link.getRel()));
+        return pooled;
+    }
+
+    private static AtomAuthor poolAuthor(AtomAuthor author) {
+        if (author == null) return null;
+        AtomAuthor pooled = new AtomAuthor();
+        pooled.setName(StringPool.intern(author.getName()));
+        pooled.setEmail(StringPool.intern(author.getEmail()));
+        return pooled;
+    }
+
+    private static void writeLink(DataOutputStream out, AtomLink link) throws IOException {
+        out.writeBoolean(link != null);
+        if (link == null) return;
+        writeString(out, link.getType());
+        writeString(out, link.getHref());
+        writeString(out, link.getRel());
+    }
+
+    private static AtomLink readLink(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) return null;
+        AtomLink link = new AtomLink();
+        link.setType(StringPool.intern(readString(in)));
+        link.setHref(StringPool.intern(readString(in)));
+        link.setRel(StringPool.intern(readString(in)));
+        return link;
+    }
+
+    private static void writeAuthor(DataOutputStream out, AtomAuthor author) throws IOException {
+        out.writeBoolean(author != null);
+        if (author == null) return;
+        writeString(out, author.getName());
+        writeString(out, author.getEmail());
+    }
+
+    private static AtomAuthor readAuthor(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) return null;
+        AtomAuthor author = new AtomAuthor();
+        author.setName(StringPool.intern(readString(in)));
+        author.setEmail(StringPool.intern(readString(in)));
+        return author;
+    }
+
+    // Strings and byte arrays are written as a length (-1 for null) followed
+    // by their UTF-8 bytes.
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        writeBytes(out, encode(string));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return decode(readBytes(in));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static byte[] encode(String string) {
+        return string == null ? null : string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String decode(byte[] bytes) {
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long sizeOf(byte[] bytes) {
+        return bytes == null ? 0 : 16 + bytes.length;
+    }
+
+    private static long sizeOf(byte[][] projection) {
+        long size = 16 + 8L * projection.length;
+        for (byte[] fragment : projection) {
+            size += sizeOf(fragment);
+        }
+        return size;
+    }
+}
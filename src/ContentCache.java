@@ -5,7 +5,8 @@
     Source   https://github.com/rjww/atom
 
     Cached records of the ContentServer's Lamport clock and UUID, with read-from
-    and write-to file operations.
+    and write-to file operations. The clock leases its times from a file of
+    its own (see LamportClock), so the cache is only written when created.
 */
 
 package rjww.atom;
@@ -38,6 +39,7 @@ public class ContentCache implements Serializable {
                 this.uuid = UUID.randomUUID();
                 writeToFile();
             }
+            this.clock.lease(LamportClock.getLeaseFile(this.backupFile));
         }
         catch (Exception e) {
             e.printStackTrace();
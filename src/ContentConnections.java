@@ -0,0 +1,153 @@
+/*
+    :: src/ContentConnections.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    A small pool of connections kept alive to the AggregationServer, shared
+    by the ContentServers of a ContentHost and their heartbeats, so that the
+    PUTs and heartbeats of any number of feeds are sent over a few
+    long-lived connections rather than each on a new one. A request is sent
+    on an idle connection from the pool, or on a new one if none is idle,
+    and no more requests are in flight at once than the pool holds. Each
+    request asks for its connection to be kept alive, and the connection is
+    returned to the pool once the response has been read.
+
+    The AggregationServer closes connections it has left idle, and some it
+    has refused a request on, without saying so. A request that fails on a
+    pooled connection is therefore sent once more on a new one, and a
+    connection is only pooled again after a response that wasn't a refusal.
+*/
+
+package rjww.atom;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ContentConnections {
+    private String host;
+    private int port;
+    private ArrayDeque<Connection> idle;
+    private Semaphore permits;
+    private boolean isClosed;
+    private AtomicLong opened;
+    private AtomicLong sent;
+
+    // A request and the reading of its response, made on a connection's
+    // streams. The request must ask for the connection to be kept alive.
+    public interface Exchange {
+        HTTPResponse exchange(BufferedReader in, PrintWriter out) throws Exception;
+    }
+
+    // A single pooled connection.
+    private static class Connection {
+        Socket socket;
+        BufferedReader in;
+        PrintWriter out;
+
+        Connection(String host, int port) throws Exception {
+            this.socket = new Socket(host, port);
+            this.socket.setSoTimeout(Common.SOCKET_TIMEOUT);
+            this.in = Common.getBufferedReader(this.socket);
+            this.out = Common.getPrintWriter(this.socket);
+        }
+
+        void close() {
+            try {
+                this.socket.close();
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public ContentConnections(String host, int port, int size) {
+        this.host = host;
+        this.port = port;
+        this.idle = new ArrayDeque<>();
+        this.permits = new Semaphore(size, true);
+        this.isClosed = false;
+        this.opened = new AtomicLong();
+        this.sent = new AtomicLong();
+    }
+
+    // Make a supplied exchange on a pooled connection, waiting for one to be
+    // free if the pool's are all in use, and return its response.
+    public HTTPResponse send(Exchange exchange) throws Exception {
+        this.permits.acquire();
+        try {
+            Connection connection = poll();
+            if (connection != null) {
+                try {
+                    return exchange(connection, exchange);
+                }
+                catch (IOException e) {
+                    // The server has closed the connection; try a new one.
+                }
+            }
+
+            connection = new Connection(this.host, this.port);
+            this.opened.incrementAndGet();
+            return exchange(connection, exchange);
+        }
+        finally {
+            this.permits.release();
+        }
+    }
+
+    // Close every idle connection, and each one in use once its exchange is
+    // done.
+    public synchronized void close() {
+        this.isClosed = true;
+        for (Connection connection : this.idle) {
+            connection.close();
+        }
+        this.idle.clear();
+    }
+
+    // Get the number of connections opened so far. Used for testing.
+    public long opened() {
+        return this.opened.get();
+    }
+
+    // Get the number of exchanges made so far. Used for testing.
+    public long sent() {
+        return this.sent.get();
+    }
+
+    // Make an exchange on a supplied connection, then return the connection
+    // to the pool, or close it if the server may have.
+    private HTTPResponse exchange(Connection connection, Exchange exchange) throws Exception {
+        HTTPResponse response;
+        try {
+            response = exchange.exchange(connection.in, connection.out);
+        }
+        catch (Exception e) {
+            connection.close();
+            throw e;
+        }
+
+        this.sent.incrementAndGet();
+        if (response.statusCode >= 400 || !offer(connection))
+            connection.close();
+        return response;
+    }
+
+    // Take an idle connection from the pool, or return null if there is none.
+    private synchronized Connection poll() {
+        return this.idle.poll();
+    }
+
+    // Return a connection to the pool, unless the pool has been closed.
+    private synchronized boolean offer(Connection connection) {
+        if (this.isClosed) return false;
+        this.idle.push(connection);
+        return true;
+    }
+}
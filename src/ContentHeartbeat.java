@@ -8,13 +8,16 @@
     behalf, by periodically sending an empty PUT request, and thus keeps the
     ContentServer's record fresh in the AggregationServer's cache. PUTs
     increment a shared Lamport clock on transmission, but are send-and-forget,
-    so no response is read.
+    so no response is read, unless they are sent on a kept-alive connection
+    shared with other feeds (see ContentConnections), whose response must be
+    read before the connection can be used again.
 */
 
 package rjww.atom;
 
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.PrintWriter;
-import java.net.ConnectException;
 import java.net.Socket;
 import java.util.UUID;
 
@@ -22,49 +25,129 @@ public class ContentHeartbeat implements Runnable {
     private ContentCache cache;
     private String host;
     private int port;
+    private String topic;
+    private FrameClient frames;
+    private ContentConnections connections;
     private boolean isRunning;
 
     public ContentHeartbeat(ContentCache cache,
                             String host,
-                            int port) {
+                            int port,
+                            String topic) {
         this.cache = cache;
         this.host = host;
         this.port = port;
+        this.topic = topic;
         this.isRunning = true;
     }
 
-    // While running, the ContentHeartbeat periodically opens a new socket with
-    // the AggregationServer, and then constructs and sends an empty PUT request.
+    // While running, the ContentHeartbeat periodically sends a single beat to
+    // the AggregationServer. Beats that fail, whether the server can't be
+    // reached or the connection times out or is reset, are skipped, and
+    // beating resumes once the server is back.
     public void run() {
         try {
             while (isRunning()) {
-                Socket socket = new Socket(this.host, this.port);
-                PrintWriter out = Common.getPrintWriter(socket);
-
-                synchronized (this.cache) {
-                    int localLamport = this.cache.clock.update();
-
-                    out.println(new StringBuffer()
-                       .append("PUT /heartbeat HTTP/1.1\n")
-                       .append("User-Agent: ATOMClient/1/0\n")
-                       .append("UUID: " + this.cache.uuid + "\n")
-                       .append("Lamport: " + localLamport + "\n")
-                       .toString());
+                try {
+                    beat();
+                }
+                catch (IOException e) {
+                    System.out.println("ContentHeartbeat: Unable to contact server.");
                 }
-
-                socket.close();
                 Thread.sleep(Common.CONTENT_HEARTBEAT_INTERVAL);
             }
         }
-        catch (ConnectException e) {
-            System.out.println("ContentHeartbeat: Unable to contact server.");
-            System.exit(0);
-        }
         catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    // Send heartbeats as frames on a supplied FrameClient, rather than as
+    // HTTP requests.
+    public synchronized void useFrames(FrameClient frames) {
+        this.frames = frames;
+    }
+
+    // Send heartbeats on a supplied pool of kept-alive connections, rather
+    // than each on a new one.
+    public synchronized void useConnections(ContentConnections connections) {
+        this.connections = connections;
+    }
+
+    // Open a new socket with the AggregationServer, and then construct and send
+    // an empty PUT request. Also called directly by the ContentHost, which
+    // schedules beats for many feeds on a shared executor instead of running a
+    // thread per feed, and sends them on its pool of connections.
+    public void beat() throws Exception {
+        FrameClient frames;
+        ContentConnections connections;
+        synchronized (this) {
+            frames = this.frames;
+            connections = this.connections;
+        }
+        if (frames != null) {
+            beatFrame(frames);
+            return;
+        }
+        if (connections != null) {
+            connections.send(this::beatKeptAlive);
+            return;
+        }
+
+        Socket socket = new Socket(this.host, this.port);
+        PrintWriter out = Common.getPrintWriter(socket);
+
+        synchronized (this.cache) {
+            long localLamport = this.cache.clock.update();
+
+            out.println(new StringBuffer()
+               .append("PUT " + Common.getTopicPath("heartbeat", this.topic) + " HTTP/1.1\n")
+               .append("User-Agent: ATOMClient/1/0\n")
+               .append("UUID: " + this.cache.uuid + "\n")
+               .append("Lamport: " + localLamport + "\n")
+               .toString());
+        }
+
+        socket.close();
+    }
+
+    // Send an empty PUT request on a kept-alive connection, and read its
+    // response. The request is followed by the empty line that ends its
+    // (empty) body, since the connection isn't closed to end it.
+    private HTTPResponse beatKeptAlive(BufferedReader in, PrintWriter out) throws Exception {
+        synchronized (this.cache) {
+            long localLamport = this.cache.clock.update();
+
+            out.print(new StringBuffer()
+               .append("PUT " + Common.getTopicPath("heartbeat", this.topic) + " HTTP/1.1\n")
+               .append("User-Agent: ATOMClient/1/0\n")
+               .append("Connection: keep-alive\n")
+               .append("UUID: " + this.cache.uuid + "\n")
+               .append("Lamport: " + localLamport + "\n")
+               .append("\n")
+               .append("\n")
+               .toString());
+            out.flush();
+        }
+
+        HTTPResponse response = Common.readHTTPResponse(in);
+
+        synchronized (this.cache) {
+            this.cache.clock.update(response.lamportTime);
+        }
+        return response;
+    }
+
+    // Send a heartbeat frame on a supplied FrameClient, waiting for its ack.
+    private void beatFrame(FrameClient frames) throws Exception {
+        synchronized (this.cache) {
+            long localLamport = this.cache.clock.update();
+            Frame ack = frames.send(new Frame(Frame.HEARTBEAT, this.cache.uuid,
+                                              localLamport, new byte[0]));
+            this.cache.clock.update(ack.lamportTime);
+        }
+    }
+
     // Get the value of isRunning. Used in the main loop of run().
     private synchronized boolean isRunning() {
         return this.isRunning;
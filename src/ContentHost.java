@@ -0,0 +1,313 @@
+/*
+    :: src/ContentHost.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    Hosts many ContentServer feeds in a single process. Each feed file in an
+    input directory is given its own ContentServer, and therefore its own
+    ContentCache identity, but no threads or connections of its own: all
+    PUTs and heartbeats are driven from a small shared scheduler, and sent
+    on a pool of as many connections kept alive to the AggregationServer
+    (see ContentConnections). Feeds that can't be delivered share a single
+    ContentOutbox, which drains them together on one connection. Optionally watches the directory and re-PUTs only those
+    feeds whose content has actually changed.
+*/
+
+package rjww.atom;
+
+import java.io.File;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class ContentHost {
+    private String host;
+    private int port;
+    private String topic;
+    private File inputDirectory;
+    private LinkedHashMap<String,HostedFeed> feeds;
+    private ScheduledExecutorService scheduler;
+    private ContentOutbox outbox;
+    private ContentConnections connections;
+    private WatchService watcher;
+
+    // Per-feed state. The ContentServer holds the feed's cache and heartbeat
+    // objects. The digest is that of the file content last accepted by the
+    // AggregationServer, and is null until the feed has been published. The
+    // futures are the feed's periodic tick and any pending debounced publish.
+    private static class HostedFeed {
+        File inputFile;
+        ContentServer server;
+        String digest;
+        ScheduledFuture<?> ticker;
+        ScheduledFuture<?> pending;
+    }
+
+    // Construct the ContentHost with the address of the AggregationServer, the
+    // topic to publish to (null for the default topic), and the directory
+    // holding the feed files to publish.
+    public ContentHost(String host, int port, String topic, File inputDirectory) {
+        this.host = host;
+        this.port = port;
+        this.topic = topic;
+        this.inputDirectory = inputDirectory;
+        this.feeds = new LinkedHashMap<>();
+    }
+
+    // Call the primary constructor with the default topic.
+    public ContentHost(String host, int port, File inputDirectory) {
+        this(host, port, null, inputDirectory);
+    }
+
+    // Load a ContentServer for every file in the input directory and schedule
+    // its work. Each feed ticks once per heartbeat interval: until its feed
+    // has been PUT successfully the tick retries the PUT, and afterwards it
+    // sends a heartbeat. Ticks are staggered across the interval so that the
+    // pool sees an even load rather than a burst once per second.
+    public synchronized void start() {
+        File[] inputFiles = this.inputDirectory.listFiles(File::isFile);
+        if (inputFiles == null) inputFiles = new File[0];
+        Arrays.sort(inputFiles);
+
+        this.scheduler = Executors.newScheduledThreadPool(Common.CONTENT_HOST_POOL_SIZE);
+        this.outbox = new ContentOutbox(this.host, this.port);
+        this.connections = new ContentConnections(this.host, this.port,
+                                                  Common.CONTENT_HOST_POOL_SIZE);
+
+        for (int i = 0; i < inputFiles.length; i++) {
+            long delay = (Common.CONTENT_HEARTBEAT_INTERVAL * i) / inputFiles.length;
+            addFeed(inputFiles[i], delay);
+        }
+    }
+
+    // Start the ContentHost as above, then watch the input directory for
+    // changes on a separate thread. Bursts of events for a file are debounced
+    // into a single publish, which re-PUTs the feed only if the file's content
+    // hash differs from that of the last accepted PUT.
+    public synchronized void watch() throws Exception {
+        start();
+
+        this.watcher = this.inputDirectory.toPath().getFileSystem().newWatchService();
+        this.inputDirectory.toPath().register(this.watcher,
+                                              StandardWatchEventKinds.ENTRY_CREATE,
+                                              StandardWatchEventKinds.ENTRY_MODIFY,
+                                              StandardWatchEventKinds.ENTRY_DELETE);
+        new Thread(this::watchLoop).start();
+    }
+
+    // Stop all scheduled work and the directory watcher, if any. Any in-flight
+    // request is allowed to finish.
+    public synchronized void stop() {
+        try {
+            if (this.watcher != null) {
+                this.watcher.close();
+            }
+            if (this.scheduler != null) {
+                this.scheduler.shutdown();
+            }
+            if (this.outbox != null) {
+                this.outbox.stop();
+            }
+            if (this.connections != null) {
+                this.connections.close();
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Get the number of feeds hosted. Used for testing.
+    public synchronized int size() {
+        return this.feeds.size();
+    }
+
+    // Get the pool of connections the hosted feeds are sent on. Used for
+    // testing.
+    public ContentConnections connections() {
+        return this.connections;
+    }
+
+    // Remove the ContentCache backup files of all hosted feeds.
+    public synchronized void cleanBackup() {
+        for (HostedFeed feed : this.feeds.values()) {
+            feed.server.cleanBackup();
+        }
+    }
+
+    // Begin hosting the feed in the supplied file, with its first tick after
+    // the supplied delay.
+    private synchronized void addFeed(File inputFile, long delay) {
+        HostedFeed feed = new HostedFeed();
+        feed.inputFile = inputFile;
+        feed.server = new ContentServer(this.host, this.port, this.topic,
+                                        Common.getContentBackupFile(inputFile), this.outbox);
+        feed.server.useConnections(this.connections);
+        feed.digest = null;
+        feed.ticker = this.scheduler.scheduleAtFixedRate(() -> tick(feed), delay,
+                                                         Common.CONTENT_HEARTBEAT_INTERVAL,
+                                                         TimeUnit.MILLISECONDS);
+        this.feeds.put(inputFile.getName(), feed);
+    }
+
+    // Stop hosting the feed in the supplied file. No further heartbeats are
+    // sent, so the AggregationServer will expire the feed in due course.
+    private synchronized void removeFeed(File inputFile) {
+        HostedFeed feed = this.feeds.remove(inputFile.getName());
+        if (feed != null) {
+            feed.ticker.cancel(false);
+            if (feed.pending != null) feed.pending.cancel(false);
+        }
+    }
+
+    // Schedule a publish of the feed in the supplied file once its events
+    // have settled, replacing any publish already pending for it. A file
+    // that appears for the first time is added to the hosted feeds instead,
+    // which publishes it on its first tick.
+    private synchronized void schedulePublish(File inputFile) {
+        HostedFeed feed = this.feeds.get(inputFile.getName());
+
+        if (feed == null) {
+            addFeed(inputFile, Common.CONTENT_WATCH_DEBOUNCE);
+            return;
+        }
+
+        if (feed.pending != null) {
+            feed.pending.cancel(false);
+        }
+        feed.pending = this.scheduler.schedule(() -> publish(feed),
+                                               Common.CONTENT_WATCH_DEBOUNCE,
+                                               TimeUnit.MILLISECONDS);
+    }
+
+    // Take events from the WatchService until it is closed, dispatching on
+    // event kind. An overflow means events were lost, so every file in the
+    // directory is re-checked; unchanged files are skipped by their digest.
+    private void watchLoop() {
+        try {
+            while (true) {
+                WatchKey key = this.watcher.take();
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        File[] inputFiles = this.inputDirectory.listFiles(File::isFile);
+                        if (inputFiles == null) continue;
+                        for (File inputFile : inputFiles) {
+                            schedulePublish(inputFile);
+                        }
+                        continue;
+                    }
+
+                    Path name = (Path) event.context();
+                    File inputFile = new File(this.inputDirectory, name.toString());
+
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+                        removeFeed(inputFile);
+                    else if (inputFile.isFile())
+                        schedulePublish(inputFile);
+                }
+
+                if (!key.reset()) break;
+            }
+        }
+        catch (ClosedWatchServiceException e) {
+            // The ContentHost was stopped.
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Perform one unit of scheduled work for a feed: publish it if it hasn't
+    // yet been accepted by the AggregationServer, or otherwise send a
+    // heartbeat.
+    private void tick(HostedFeed feed) {
+        synchronized (feed) {
+            if (feed.digest == null) {
+                publish(feed);
+                return;
+            }
+        }
+
+        try {
+            feed.server.beat();
+        }
+        catch (ConnectException e) {
+            System.out.println("ContentHost: Unable to contact server.");
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // PUT the feed if its file content differs from that of the last accepted
+    // PUT. Only then is the file parsed. Exceptions are caught here, because
+    // a task that throws is never rescheduled by the executor; a failed PUT
+    // clears the digest so that the next tick retries it. A PUT left in the
+    // shared outbox counts as accepted, since the outbox delivers it.
+    private void publish(HostedFeed feed) {
+        synchronized (feed) {
+            try {
+                String digest = Common.digest(Files.readAllBytes(feed.inputFile.toPath()));
+                if (digest.equals(feed.digest)) return;
+
+                feed.digest = null;
+                HTTPResponse response = feed.server.send(new AtomFeed(feed.inputFile));
+                if (response.statusCode == 200 || response.statusCode == 201 ||
+                    response.statusCode == 202)
+                    feed.digest = digest;
+            }
+            catch (ConnectException e) {
+                System.out.println("ContentHost: Unable to contact server.");
+            }
+            catch (SocketTimeoutException e) {
+                System.out.println("ContentHost: Server unresponsive.");
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Construct and start a ContentHost from the command line, optionally
+    // watching the input directory for changes. The process runs until
+    // killed.
+    public static void main(String[] args) {
+        boolean isWatching = args.length == 3 && args[2].equals("--watch");
+
+        if (args.length != 2 && !isWatching) {
+            System.err.println("Usage: java ContentHost host:port[/topic] inputDirectory[, --watch]");
+            System.exit(1);
+        }
+
+        String[] tokens = args[0].split("[:/]");
+        String host = tokens[0];
+        int port = Integer.parseInt(tokens[1]);
+        String topic = tokens.length > 2 ? tokens[2] : null;
+
+        ContentHost contentHost = new ContentHost(host, port, topic, new File(args[1]));
+
+        try {
+            if (isWatching)
+                contentHost.watch();
+            else
+                contentHost.start();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
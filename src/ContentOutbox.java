@@ -0,0 +1,200 @@
+/*
+    :: src/ContentOutbox.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    Holds the feed PUTs of ContentServers that couldn't reach the
+    AggregationServer, and delivers them once it is back. Only the latest
+    feed of each ContentServer is kept, since it supersedes any before it, so
+    the outbox never holds more than one PUT per UUID. Each pending feed is
+    written to a file next to its ContentServer's ContentCache backup, and
+    is restored from it if the ContentServer is restarted before the feed is
+    delivered.
+
+    Pending feeds are retried from a single thread, with exponential backoff
+    and jitter while the server stays out of reach. Every feed pending at a
+    retry is sent on one connection: the requests are pipelined, all written
+    before any response is read, so draining a backlog takes a single round
+    trip. An outbox can be shared between ContentServers publishing to the
+    same AggregationServer, as it is by the ContentHost.
+*/
+
+package rjww.atom;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class ContentOutbox {
+    private String host;
+    private int port;
+    private ConcurrentHashMap<UUID,Pending> pending;
+    private ScheduledThreadPoolExecutor scheduler;
+    private ScheduledFuture<?> drain;
+    private int retry;
+
+    // A feed waiting to be PUT on behalf of a ContentServer.
+    private static class Pending {
+        ContentServer server;
+        String body;
+        String digest;
+
+        Pending(ContentServer server, String body) throws Exception {
+            this.server = server;
+            this.body = body;
+            this.digest = Common.digest(body.getBytes());
+        }
+    }
+
+    public ContentOutbox(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.pending = new ConcurrentHashMap<>();
+        this.scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "ContentOutbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.retry = 0;
+    }
+
+    // Get the file in which the pending feed of a supplied ContentServer is
+    // kept.
+    public static File getOutboxFile(File backupFile) {
+        return new File(backupFile.getPath() + ".outbox");
+    }
+
+    // Queue a supplied marshalled feed for a supplied ContentServer,
+    // replacing any feed already pending for it, and write it to file.
+    public synchronized void put(ContentServer server, String body) throws Exception {
+        Pending pending = new Pending(server, body);
+        writeToFile(pending);
+        this.pending.put(server.uuid(), pending);
+        scheduleDrain(Common.getBackoff(this.retry));
+    }
+
+    // Restore the pending feed of a supplied ContentServer from file, if it
+    // has one, and queue it for delivery.
+    public synchronized void restore(ContentServer server) {
+        File outboxFile = getOutboxFile(server.backupFile());
+        if (!outboxFile.exists()) return;
+
+        try {
+            String body = new String(Files.readAllBytes(outboxFile.toPath()),
+                                     StandardCharsets.UTF_8);
+            this.pending.put(server.uuid(), new Pending(server, body));
+            scheduleDrain(0);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Determine whether a feed is pending for a supplied UUID.
+    public boolean contains(UUID uuid) {
+        return this.pending.containsKey(uuid);
+    }
+
+    // Get the number of feeds pending. Used for testing.
+    public int size() {
+        return this.pending.size();
+    }
+
+    // Stop retrying. Pending feeds stay on file, to be restored on restart.
+    public synchronized void stop() {
+        this.scheduler.shutdownNow();
+    }
+
+    // Schedule a drain after a supplied delay, unless one is already due.
+    private synchronized void scheduleDrain(long delay) {
+        if (this.drain != null && !this.drain.isDone()) return;
+        if (this.scheduler.isShutdown()) return;
+
+        this.drain = this.scheduler.schedule(this::drain, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Send every pending feed on a single connection, then read the response
+    // to each in turn. A feed the AggregationServer accepts, or refuses for
+    // good, is removed from the outbox, unless a newer one has replaced it
+    // in the meantime. A feed that was shed, rate-limited or found to be out
+    // of date is kept for the next drain, as are all of them if the server
+    // can't be reached, which backs off further for each failed drain.
+    private void drain() {
+        List<Pending> batch = new ArrayList<>(this.pending.values());
+        if (batch.isEmpty()) return;
+
+        int delivered = 0;
+
+        try (Socket socket = new Socket(this.host, this.port)) {
+            socket.setSoTimeout(Common.SOCKET_TIMEOUT);
+            BufferedReader in = Common.getBufferedReader(socket);
+            PrintWriter out = Common.getPrintWriter(socket);
+
+            for (Pending pending : batch) {
+                pending.server.sendRequest(out, "PUT", pending.body, pending.digest, null, true);
+            }
+            socket.shutdownOutput();
+
+            for (Pending pending : batch) {
+                HTTPResponse response = pending.server.receiveResponse(in);
+                int statusCode = response.statusCode;
+                if (statusCode == 503 || statusCode == 429 || statusCode == 409)
+                    continue;
+                if (statusCode != 200 && statusCode != 201)
+                    System.out.println("ContentOutbox: Feed refused with status " + statusCode + ".");
+                complete(pending);
+                delivered++;
+            }
+        }
+        catch (IOException e) {
+            // The server is still out of reach; back off and try again.
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        synchronized (this) {
+            this.retry = delivered == batch.size() ? 0 : this.retry + 1;
+            this.drain = null;
+            if (!this.pending.isEmpty())
+                scheduleDrain(this.retry == 0 ? 0 : Common.getBackoff(this.retry - 1));
+        }
+    }
+
+    // Remove a delivered feed from the outbox and its file, unless it has
+    // been replaced by a newer one.
+    private synchronized void complete(Pending pending) {
+        UUID uuid = pending.server.uuid();
+        if (!this.pending.remove(uuid, pending)) return;
+
+        try {
+            Files.deleteIfExists(getOutboxFile(pending.server.backupFile()).toPath());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Write a pending feed to its file. As for the ContentCache, the feed is
+    // written to a temporary file which then replaces the old one, so as to
+    // avoid a partial write.
+    private void writeToFile(Pending pending) throws Exception {
+        File outboxFile = getOutboxFile(pending.server.backupFile());
+        File tmp = new File(outboxFile.getAbsolutePath() + ".tmp");
+        Files.write(tmp.toPath(), pending.body.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), outboxFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -5,13 +5,16 @@
     Source   https://github.com/rjww/atom
 
     Simulates a server hosting a particular Atom feed, which is send to the
-    AggregationServer via a HTTP PUT request.
+    AggregationServer via a HTTP PUT request. A feed that can't be delivered
+    is left in a ContentOutbox, which delivers it once the AggregationServer
+    is back.
 */
 
 package rjww.atom;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
@@ -30,42 +33,84 @@ public class ContentServer implements Serializable {
     private transient ContentHeartbeat heartbeat;
     private transient String host;
     private transient int port;
+    private transient String topic;
+    private transient FrameClient frames;
+    private transient ContentConnections connections;
+    private transient ContentOutbox outbox;
+    private transient boolean isOutboxOwned;
     private transient boolean isRunning;
+    private transient AtomFeed lastFeed;
+    private transient String lastDigest;
 
     // Construct the ContentServer and initialize its heartbeat. The constructor
     // for ContentCache attempts a read-from-file, so the server will recover
-    // from a failure if its backup file is present.
-    public ContentServer(String host, int port, File backupFile) {
+    // from a failure if its backup file is present. The feed is published to
+    // the supplied topic, or to the default topic if it is null. Undelivered
+    // feeds are left in the supplied outbox, or in one of the ContentServer's
+    // own if it is null; a feed left undelivered by an earlier run is
+    // restored to it.
+    public ContentServer(String host, int port, String topic, File backupFile,
+                         ContentOutbox outbox) {
         this.cache = new ContentCache(backupFile);
         this.host = host;
         this.port = port;
-        this.heartbeat = new ContentHeartbeat(this.cache, host, port);
+        this.topic = topic;
+        this.heartbeat = new ContentHeartbeat(this.cache, host, port, topic);
         this.isRunning = false;
+        this.isOutboxOwned = outbox == null;
+        this.outbox = outbox != null ? outbox : new ContentOutbox(host, port);
+        this.outbox.restore(this);
+    }
+
+    // Call the primary constructor with an outbox of the ContentServer's own.
+    public ContentServer(String host, int port, String topic, File backupFile) {
+        this(host, port, topic, backupFile, null);
+    }
+
+    // Call the primary constructor with the default topic.
+    public ContentServer(String host, int port, File backupFile) {
+        this(host, port, null, backupFile);
     }
 
     // Initialize a ContentServer and do a single PUT with the input file
     // supplied as a command-line argument. The server must be manually killed,
-    // since its heartbeat thread will keep it alive indefinitely.
+    // since its heartbeat thread will keep it alive indefinitely. If a
+    // directory is supplied instead, every feed in it is published by a
+    // ContentHost, which with --watch also re-PUTs feeds as they change.
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.err.println("Usage: java ContentServer host:port inputFilename");
+        boolean isWatching = args.length == 3 && args[2].equals("--watch");
+
+        if (args.length != 2 && !isWatching) {
+            System.err.println("Usage: java ContentServer host:port[/topic] inputFilename|inputDirectory[, --watch]");
             System.exit(1);
         }
 
-        String[] tokens = args[0].split(":");
+        String[] tokens = args[0].split("[:/]");
         String host = tokens[0];
         int port = Integer.parseInt(tokens[1]);
+        String topic = tokens.length > 2 ? tokens[2] : null;
         String inputFilename = args[1];
 
         File inputFile = new File(inputFilename);
-        File backupFile = new File(Common.CONTENT_SERVER_BACKUP_PATH +
-                                   Common.getFilenameWithoutExtension(inputFile) +
-                                   ".lock");
 
-        ContentServer server = new ContentServer(host, port, backupFile);
+        if (inputFile.isDirectory()) {
+            ContentHost.main(args);
+            return;
+        }
+
+        if (isWatching) {
+            System.err.println("ContentServer: --watch requires an input directory.");
+            System.exit(1);
+        }
+
+        File backupFile = Common.getContentBackupFile(inputFile);
+
+        ContentServer server = new ContentServer(host, port, topic, backupFile);
 
         try {
-            server.put(inputFile);
+            HTTPResponse response = server.put(inputFile);
+            if (response.statusCode == 202)
+                System.out.println("ContentServer: Unable to connect to server; feed queued.");
         }
         catch (ConnectException e) {
             System.out.println("ContentServer: Unable to connect to server.");
@@ -80,6 +125,33 @@ public class ContentServer implements Serializable {
         }
     }
 
+    // Publish over the binary ingestion protocol (see Frame) to the supplied
+    // frame port of the AggregationServer, rather than over HTTP. The
+    // heartbeat shares the same connection. Frames always go to the default
+    // topic.
+    public synchronized void useFrames(int framePort) {
+        this.frames = new FrameClient(this.host, framePort);
+        this.heartbeat.useFrames(this.frames);
+    }
+
+    // Send PUTs, PATCHes and heartbeats on a supplied pool of kept-alive
+    // connections, shared with other ContentServers, rather than each on a
+    // new connection.
+    public synchronized void useConnections(ContentConnections connections) {
+        this.connections = connections;
+        this.heartbeat.useConnections(connections);
+    }
+
+    // Return the backup file of the ContentCache.
+    public File backupFile() {
+        return this.cache.backupFile;
+    }
+
+    // Get the number of feeds waiting in the outbox. Used for testing.
+    public int outboxSize() {
+        return this.outbox.size();
+    }
+
     // Return the UUID from the ContentCache.
     public UUID uuid() {
         synchronized (this.cache) {
@@ -96,41 +168,214 @@ public class ContentServer implements Serializable {
             this.isRunning = true;
         }
 
+        return send(new AtomFeed(inputFile));
+    }
+
+    // PUT a supplied feed to the AggregationServer without starting the
+    // heartbeat thread. Used directly by the ContentHost, which drives the
+    // heartbeats of all of its feeds from a shared scheduler. If the server
+    // holds the last feed this ContentServer sent, only the entries that have
+    // changed since are sent, as a PATCH; if the server's copy turns out to
+    // differ, it refuses the PATCH and the whole feed is PUT instead.
+    //
+    // If the server can't be reached, or still turns the feed away after
+    // retrying, the feed is queued in the outbox and a 202 Accepted is
+    // returned in place of the server's response. While a feed is queued,
+    // any newer one replaces it in the outbox rather than overtaking it. The
+    // same goes for feeds sent as frames, which the outbox delivers over
+    // HTTP.
+    public synchronized HTTPResponse send(AtomFeed feed) throws Exception {
+        if (this.frames != null) {
+            if (this.outbox.contains(uuid()))
+                return queue(Common.marshalXML(feed));
+
+            HTTPResponse response;
+            try {
+                response = sendFrame(feed);
+            }
+            catch (IOException e) {
+                return queue(Common.marshalXML(feed));
+            }
+
+            if (response.statusCode == 503 || response.statusCode == 429)
+                return queue(Common.marshalXML(feed));
+            return response;
+        }
+
+        // Build HTTP request body by marshalling the supplied Atom feed.
+        String body = Common.marshalXML(feed);
+        String digest = Common.digest(body.getBytes());
+        HTTPResponse response = null;
+
+        if (this.outbox.contains(uuid()))
+            return queue(body);
+
+        try {
+            AtomDelta delta = this.lastFeed != null ? AtomDelta.diff(this.lastFeed, feed) : null;
+            if (delta != null) {
+                String patch = Common.marshalXML(delta);
+                if (patch.length() < body.length()) {
+                    response = sendOnce("PATCH", patch, digest, this.lastDigest);
+                    if (response.statusCode == 412)
+                        response = null;
+                }
+            }
+
+            if (response == null) {
+                response = sendOnce("PUT", body, digest, null);
+
+                // A 409 Conflict means the server skipped the body of a feed
+                // it believed unchanged, then found its copy expired; send it
+                // again.
+                if (response.statusCode == 409)
+                    response = sendOnce("PUT", body, digest, null);
+            }
+        }
+        catch (IOException e) {
+            return queue(body);
+        }
+
+        if (response.statusCode == 503 || response.statusCode == 429)
+            return queue(body);
+
+        // Remember the feed as the base for the next delta only once the
+        // server has accepted it.
+        if (response.statusCode == 200 || response.statusCode == 201) {
+            this.lastFeed = feed;
+            this.lastDigest = digest;
+        }
+        else {
+            this.lastFeed = null;
+            this.lastDigest = null;
+        }
+
+        return response;
+    }
+
+    // Queue a marshalled feed in the outbox for send(), returning a 202
+    // Accepted. The server's copy of the feed is no longer known, so the
+    // next feed sent is PUT whole.
+    private HTTPResponse queue(String body) throws Exception {
+        this.outbox.put(this, body);
+        this.lastFeed = null;
+        this.lastDigest = null;
+
+        HTTPResponse response = new HTTPResponse();
+        response.statusCode = 202;
+        return response;
+    }
+
+    // Send a supplied feed as a feed frame for send(), returning its ack as
+    // an HTTPResponse. The whole feed is sent each time, since its compact
+    // encoding is cheap to produce; the server recognises a feed it already
+    // has by its digest.
+    private HTTPResponse sendFrame(AtomFeed feed) throws Exception {
+        byte[] body = Frame.encodeFeed(feed);
+        Frame ack;
+
+        synchronized (this.cache) {
+            // Update local Lamport clock for frame transmission.
+            long localLamport = this.cache.clock.update();
+            ack = this.frames.send(new Frame(Frame.FEED, this.cache.uuid, localLamport, body));
+
+            // Update local Lamport clock for ack receipt.
+            this.cache.clock.update(ack.lamportTime);
+        }
+
+        HTTPResponse response = new HTTPResponse();
+        response.statusCode = ack.statusCode();
+        response.lamportTime = ack.lamportTime;
+        return response;
+    }
+
+    // Do a PUT or PATCH of a marshalled body for send(). A request shed by
+    // the AggregationServer under load, or refused for exceeding this
+    // publisher's rate, is retried, after the delay it asks for plus a
+    // random backoff, a few times before its 503 Service Unavailable or 429
+    // Too Many Requests is returned.
+    private HTTPResponse sendOnce(String method,
+                                  String body,
+                                  String digest,
+                                  String baseDigest) throws Exception {
+        HTTPResponse response = sendAttempt(method, body, digest, baseDigest);
+        for (int retry = 0; retry < Common.CLIENT_RETRY_ATTEMPTS; retry++) {
+            if (response.statusCode != 503 && response.statusCode != 429) break;
+            Thread.sleep(Common.getRetryDelay(response, retry));
+            response = sendAttempt(method, body, digest, baseDigest);
+        }
+        return response;
+    }
+
+    // Make a single attempt at a PUT or PATCH for sendOnce(), on a pooled
+    // connection if there is a pool, or otherwise on a new one.
+    private HTTPResponse sendAttempt(String method,
+                                     String body,
+                                     String digest,
+                                     String baseDigest) throws Exception {
+        if (this.connections != null) {
+            return this.connections.send((in, out) -> {
+                sendRequest(out, method, body, digest, baseDigest, true);
+                return receiveResponse(in);
+            });
+        }
+
         Socket socket = new Socket(this.host, this.port);
         socket.setSoTimeout(Common.SOCKET_TIMEOUT);
         BufferedReader in = Common.getBufferedReader(socket);
         PrintWriter out = Common.getPrintWriter(socket);
-        AtomFeed feed = new AtomFeed(inputFile);
 
-        sendRequest(out, feed);
+        sendRequest(out, method, body, digest, baseDigest, false);
         HTTPResponse response = receiveResponse(in);
         socket.close();
-        this.cache.writeToFile();
 
         return response;
     }
 
-    // Send a stop message down to the ContentHeartbeat.
+    // Send a single heartbeat to the AggregationServer on the calling thread.
+    public void beat() throws Exception {
+        this.heartbeat.beat();
+    }
+
+    // Send a stop message down to the ContentHeartbeat, close the frame
+    // connection if there is one, and stop the outbox if it's the
+    // ContentServer's own.
     public void stop() {
         this.heartbeat.stop();
         this.isRunning = false;
+        if (this.frames != null)
+            this.frames.close();
+        if (this.isOutboxOwned)
+            this.outbox.stop();
     }
 
-    // Do the request send for put().
-    private void sendRequest(PrintWriter out, AtomFeed feed) throws Exception {
+    // Do the request send for put(). The digest of the whole feed is sent
+    // along with the body, so that the AggregationServer can recognise a feed
+    // it already has; a PATCH also names the digest of the feed its delta
+    // was computed against. A request asking to keep the connection alive
+    // can be followed by others on it; the ContentOutbox sends requests this
+    // way.
+    public void sendRequest(PrintWriter out,
+                            String method,
+                            String body,
+                            String digest,
+                            String baseDigest,
+                            boolean isKeptAlive) throws Exception {
         synchronized (this.cache) {
             // Update local Lamport clock for request transmission.
-            int localLamport = this.cache.clock.update();
-
-            // Build HTTP request body by marshalling the supplied Atom feed.
-            String body = Common.marshalXML(feed);
+            long localLamport = this.cache.clock.update();
 
             // Construct HTTP request and send to server.
-            out.println(new StringBuffer()
-               .append("PUT /feed HTTP/1.1\n")
+            StringBuffer request = new StringBuffer()
+               .append(method + " " + Common.getTopicPath("feed", this.topic) + " HTTP/1.1\n")
                .append("User-Agent: ATOMClient/1/0\n")
                .append("Content-Type: application/xml\n")
                .append("Content-Length: " + body.getBytes().length + "\n")
+               .append("Digest: " + digest + "\n");
+            if (baseDigest != null)
+                request.append("Base-Digest: " + baseDigest + "\n");
+            if (isKeptAlive)
+                request.append("Connection: keep-alive\n");
+            out.println(request
                .append("UUID: " + uuid() + "\n")
                .append("Lamport: " + localLamport + "\n")
                .append("\n")
@@ -140,8 +385,8 @@ public class ContentServer implements Serializable {
     }
 
     // Receive and parse an incoming response from the AggregationServer so that
-    // it can be returned in put().
-    private HTTPResponse receiveResponse(BufferedReader in) throws Exception {
+    // it can be returned in put(). Also used by the ContentOutbox.
+    public HTTPResponse receiveResponse(BufferedReader in) throws Exception {
         HTTPResponse response = Common.readHTTPResponse(in);
 
         synchronized (this.cache) {
@@ -153,11 +398,14 @@ public class ContentServer implements Serializable {
         return response;
     }
 
-    // Remove the ContentCache backup file from the file system.
+    // Remove the ContentCache backup file, and any undelivered feed, from the
+    // file system.
     public void cleanBackup() {
         synchronized (this.cache) {
             try {
                 Files.delete(this.cache.backupFile.toPath());
+                Files.deleteIfExists(ContentOutbox.getOutboxFile(this.cache.backupFile).toPath());
+                Files.deleteIfExists(LamportClock.getLeaseFile(this.cache.backupFile).toPath());
             }
             catch (Exception e) {
                 e.printStackTrace();
@@ -0,0 +1,106 @@
+/*
+    :: src/EntryIndex.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    An index of cached entries by Atom id, used to de-duplicate the aggregated
+    feed when the same entry is syndicated by several ContentServers. For each
+    id it records every cached copy along with the Lamport time at which that
+    copy was PUT, and keeps the newest copy as the id's owner. The index is
+    updated incrementally as feeds are PUT, PATCHed and expired, so that
+    de-duplicating the aggregated feed is a lookup per entry. Held transiently
+    by the AggregationCache, and guarded by the cache's lock.
+*/
+
+package rjww.atom;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+public class EntryIndex {
+    private HashMap<String,ArrayList<Copy>> copies;
+    private HashMap<String,Copy> owners;
+
+    // A single cached copy of an entry, as PUT by a particular ContentServer
+    // at a particular Lamport time. The entry itself isn't referenced, so
+    // that the index doesn't pin feeds the FeedStore has spilled.
+    private static class Copy {
+        UUID uuid;
+        long lamport;
+
+        Copy(UUID uuid, long lamport) {
+            this.uuid = uuid;
+            this.lamport = lamport;
+        }
+    }
+
+    public EntryIndex() {
+        this.copies = new HashMap<>();
+        this.owners = new HashMap<>();
+    }
+
+    // Record entries with the supplied ids as PUT by a ContentServer at the
+    // supplied Lamport time, replacing any copies it previously held under
+    // the same ids. Entries without an id can't be duplicates and aren't
+    // indexed.
+    public void add(UUID uuid, long lamport, Iterable<String> ids) {
+        for (String id : ids) {
+            if (id == null) continue;
+
+            ArrayList<Copy> idCopies = this.copies.computeIfAbsent(id, k -> new ArrayList<>(1));
+            idCopies.removeIf(copy -> copy.uuid.equals(uuid));
+            Copy copy = new Copy(uuid, lamport);
+            idCopies.add(copy);
+
+            Copy owner = this.owners.get(id);
+            if (owner == null || owner.uuid.equals(uuid) || owner.lamport <= lamport)
+                this.owners.put(id, copy);
+        }
+    }
+
+    // Forget the copies a ContentServer holds under the supplied ids, passing
+    // ownership of each id to the newest remaining copy.
+    public void remove(UUID uuid, Iterable<String> ids) {
+        for (String id : ids) {
+            if (id == null) continue;
+
+            ArrayList<Copy> idCopies = this.copies.get(id);
+            if (idCopies == null) continue;
+
+            idCopies.removeIf(copy -> copy.uuid.equals(uuid));
+            if (idCopies.isEmpty()) {
+                this.copies.remove(id);
+                this.owners.remove(id);
+                continue;
+            }
+
+            Copy owner = this.owners.get(id);
+            if (owner.uuid.equals(uuid)) {
+                Copy newest = idCopies.get(0);
+                for (Copy copy : idCopies) {
+                    if (copy.lamport > newest.lamport) newest = copy;
+                }
+                this.owners.put(id, newest);
+            }
+        }
+    }
+
+    // Get the ids of a supplied list of entries, in order.
+    public static ArrayList<String> idsOf(List<AtomEntry> entries) {
+        ArrayList<String> ids = new ArrayList<>(entries.size());
+        for (AtomEntry entry : entries) {
+            ids.add(entry.getId());
+        }
+        return ids;
+    }
+
+    // Determine whether a ContentServer holds the newest copy of the supplied
+    // id, and so its entry belongs in a de-duplicated feed.
+    public boolean isOwner(UUID uuid, String id) {
+        Copy owner = this.owners.get(id);
+        return owner != null && owner.uuid.equals(uuid);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+    :: src/FeedBlock.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    A feed as held by the FeedStore: either a CompactFeed as is, or the
+    CompactFeed's binary encoding compressed with deflate. A compressed block
+    is only inflated when its entries are needed, and is written to backup
+    and spill files as it stands, so persistence never has to inflate it.
+*/
+
+package rjww.atom;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Serializable;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+public class FeedBlock implements Serializable {
+    private CompactFeed feed;
+    private byte[] deflated;
+
+    // Construct a block holding a supplied feed, compressing it if asked to.
+    public FeedBlock(CompactFeed feed, boolean isCompressed) throws Exception {
+        if (!isCompressed) {
+            this.feed = feed;
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new DeflaterOutputStream(bytes, deflater)));
+        feed.writeTo(out);
+        out.close();
+        deflater.end();
+        this.deflated = bytes.toByteArray();
+    }
+
+    // Determine whether the block is compressed.
+    public boolean isCompressed() {
+        return this.deflated != null;
+    }
+
+    // Get the block's feed, inflating a fresh copy if it is compressed.
+    public CompactFeed feed() throws Exception {
+        if (this.feed != null) return this.feed;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new InflaterInputStream(new ByteArrayInputStream(this.deflated))));
+        CompactFeed feed = CompactFeed.readFrom(in);
+        in.close();
+        return feed;
+    }
+
+    // Estimate the number of heap bytes taken by the block.
+    public long sizeOf() {
+        return this.feed != null ? 16 + this.feed.sizeOf() : 32 + this.deflated.length;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+    :: src/FeedFilter.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    A filter over cached entries, as given by the query parameters of a GET
+    for the aggregated feed: an author name, the id of the feed an entry came
+    from, and an inclusive window of updated times in millis since epoch. Any
+    field may be null, in which case it matches every entry.
+*/
+
+package rjww.atom;
+
+public class FeedFilter {
+    public String author;
+    public String source;
+    public Long since;
+    public Long until;
+
+    // Determine whether the filter has any fields set.
+    public boolean isEmpty() {
+        return this.author == null && this.source == null &&
+               this.since == null && this.until == null;
+    }
+
+    // Determine whether the entry at the supplied position of a feed matches
+    // every field of the filter.
+    public boolean matches(CompactFeed feed, int i) {
+        long millis = feed.updatedMillis(i);
+        return (this.author == null || this.author.equals(feed.author(i))) &&
+               (this.source == null || this.source.equals(feed.feedId())) &&
+               (this.since == null || millis >= this.since) &&
+               (this.until == null || millis <= this.until);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+    :: src/FeedFormat.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    The formats in which the aggregated feed can be sent: indented XML (the
+    default), compact XML with no indentation or line breaks within an entry,
+    for machine clients, and JSON Feed. Each format gives the fixed header and
+    footer the feed's entry fragments are assembled between, and encodes the
+    fragment of a single entry. JSON Feed fragments each begin with the comma
+    separating them from the item before, which is dropped from the first.
+*/
+
+package rjww.atom;
+
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+public class FeedFormat {
+    public static final int XML = 0;
+    public static final int COMPACT_XML = 1;
+    public static final int JSON = 2;
+
+    private static final String TITLE = "Aggregated feed";
+    private static final String XML_DECLARATION =
+        "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+
+    private static final byte[][] HEADERS = {
+        (XML_DECLARATION + "<feed>\n").getBytes(StandardCharsets.UTF_8),
+        (XML_DECLARATION + "<feed>").getBytes(StandardCharsets.UTF_8),
+        jsonHeader().getBytes(StandardCharsets.UTF_8)
+    };
+    private static final byte[][] FOOTERS = {
+        "</feed>\n".getBytes(StandardCharsets.UTF_8),
+        "</feed>\n".getBytes(StandardCharsets.UTF_8),
+        jsonFooter().getBytes(StandardCharsets.UTF_8)
+    };
+    private static final byte[][] CONTENT_TYPE_HEADERS = {
+        ResponseWriter.ascii("Content-Type: application/xml\n"),
+        ResponseWriter.ascii("Content-Type: application/xml\n"),
+        ResponseWriter.ascii("Content-Type: application/feed+json\n")
+    };
+
+    // Choose a format from the media types listed in a request's Accept
+    // header, in the order listed: JSON Feed for a JSON type, or else XML,
+    // compact if asked to. Unrecognised types are passed over, and XML is
+    // the fallback, so a client that accepts anything still gets XML.
+    public static int negotiate(String accept, boolean isCompact) {
+        int xml = isCompact ? COMPACT_XML : XML;
+        if (accept == null) return xml;
+
+        for (String range : accept.split(",")) {
+            String type = range.split(";")[0].trim().toLowerCase();
+            if (type.equals("application/feed+json") || type.equals("application/json"))
+                return JSON;
+            if (type.endsWith("/xml") || type.endsWith("+xml") || type.endsWith("/*"))
+                return xml;
+        }
+        return xml;
+    }
+
+    // Get the header preceding the entries of a feed in a supplied format.
+    public static byte[] header(int format) {
+        return HEADERS[format];
+    }
+
+    // Get the footer following the entries of a feed in a supplied format.
+    public static byte[] footer(int format) {
+        return FOOTERS[format];
+    }
+
+    // Get the number of leading bytes to drop from the first entry fragment
+    // of a feed in a supplied format.
+    public static int separatorLength(int format) {
+        return format == JSON ? 1 : 0;
+    }
+
+    // Get the pre-encoded Content-Type header line giving the media type of a
+    // feed in a supplied format.
+    public static byte[] contentTypeHeader(int format) {
+        return CONTENT_TYPE_HEADERS[format];
+    }
+
+    // Encode the fragment of a supplied entry in a supplied format.
+    public static String fragment(AtomEntry entry, int format) throws Exception {
+        switch (format) {
+            case COMPACT_XML:
+                return Common.marshalXMLCompact(entry);
+            case JSON:
+                StringWriter writer = new StringWriter();
+                writer.write(",\n");
+                new JSONFeedWriter(writer).writeItem(entry);
+                return writer.toString();
+            default:
+                return Common.marshalXMLEntry(entry);
+        }
+    }
+
+    // Get the JSON Feed header, whose syntax is left to the JSONFeedWriter.
+    private static String jsonHeader() {
+        try {
+            StringWriter writer = new StringWriter();
+            new JSONFeedWriter(writer).writeFeedStart(TITLE);
+            return writer.toString();
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Get the JSON Feed footer, on a line of its own after the last item.
+    private static String jsonFooter() {
+        try {
+            StringWriter writer = new StringWriter();
+            writer.write('\n');
+            new JSONFeedWriter(writer).writeFeedEnd();
+            writer.write('\n');
+            return writer.toString();
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+    :: src/FeedStore.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    The AggregationCache's store of content feeds by ContentServer UUID, held
+    as FeedBlocks within a byte budget. The size of each feed is estimated on
+    entry, and whenever the feeds resident on the heap exceed the budget, the
+    least recently used are spilled to disk and dropped from the heap. A
+    spilled feed is still cached, and is read back on demand. Spilling has no
+    bearing on whether a feed is live: expiry remains entirely the
+    AggregationJanitor's business. Guarded by the cache's lock.
+
+    With compression on, feeds are stored as deflated blocks, and the most
+    recently read are also kept inflated in a small hot set, so that
+    aggregating an unchanged set of feeds doesn't inflate every one of them.
+*/
+
+package rjww.atom;
+
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+public class FeedStore implements Serializable {
+    private LinkedHashMap<UUID,FeedBlock> resident;
+    private HashSet<UUID> spilled;
+    private HashMap<UUID,Long> sizes;
+    private long residentBytes;
+    private transient long budget;
+    private transient String spillPath;
+    private transient boolean isCompressed;
+    private transient LinkedHashMap<UUID,CompactFeed> hot;
+
+    // Construct an empty FeedStore that spills feeds to files beginning with
+    // the supplied path prefix once more than budget bytes are resident. The
+    // resident feeds are kept in order of use, eldest first; only get() and
+    // put() count as a use.
+    public FeedStore(String spillPath, long budget, boolean isCompressed) {
+        this.resident = new LinkedHashMap<>();
+        this.spilled = new HashSet<>();
+        this.sizes = new HashMap<>();
+        this.residentBytes = 0;
+        configure(spillPath, budget, isCompressed);
+    }
+
+    // Set the spill path prefix, byte budget and compression option, which
+    // aren't part of the store's backup. Called on a store restored from
+    // backup, whose blocks keep whichever form they were stored in until
+    // they're next replaced.
+    public void configure(String spillPath, long budget, boolean isCompressed) {
+        this.spillPath = spillPath;
+        this.budget = budget;
+        this.isCompressed = isCompressed;
+        this.hot = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    // Change the byte budget, spilling feeds at once if necessary.
+    public void setBudget(long budget) throws Exception {
+        this.budget = budget;
+        enforceBudget(null);
+    }
+
+    // Turn compression on or off, re-encoding the resident feeds at once.
+    // Spilled feeds are re-encoded when they're next made resident.
+    public void setCompressed(boolean isCompressed) throws Exception {
+        this.isCompressed = isCompressed;
+        synchronized (this.hot) {
+            this.hot.clear();
+        }
+        for (Map.Entry<UUID,FeedBlock> e : this.resident.entrySet()) {
+            UUID uuid = e.getKey();
+            FeedBlock block = new FeedBlock(e.getValue().feed(), isCompressed);
+            e.setValue(block);
+            this.residentBytes += block.sizeOf() - this.sizes.get(uuid);
+            this.sizes.put(uuid, block.sizeOf());
+        }
+        enforceBudget(null);
+    }
+
+    // Re-estimate the size of every resident feed, which grows as projected
+    // fragments are kept for it (see CompactFeed.fragment()), spilling feeds
+    // if the store has outgrown its budget. Spilling drops a feed's
+    // projections along with it, since they aren't written out. Called once
+    // a feed has been assembled, after the feeds have been read.
+    public void remeasure() throws Exception {
+        for (Map.Entry<UUID,FeedBlock> e : this.resident.entrySet()) {
+            UUID uuid = e.getKey();
+            long size = e.getValue().sizeOf();
+            this.residentBytes += size - this.sizes.get(uuid);
+            this.sizes.put(uuid, size);
+        }
+        enforceBudget(null);
+    }
+
+    // Get the byte budget. Used for testing.
+    public long budget() {
+        return this.budget;
+    }
+
+    // Get the estimated number of bytes held on the heap. Used for testing.
+    public long residentBytes() {
+        return this.residentBytes;
+    }
+
+    // Determine whether a feed is cached for a ContentServer, whether
+    // resident or spilled.
+    public boolean containsKey(UUID uuid) {
+        return this.resident.containsKey(uuid) || this.spilled.contains(uuid);
+    }
+
+    // Determine whether the feed cached for a ContentServer has been spilled
+    // to disk. Used for testing.
+    public boolean isSpilled(UUID uuid) {
+        return this.spilled.contains(uuid);
+    }
+
+    // Get the UUIDs of all ContentServers with a cached feed.
+    public Set<UUID> keySet() {
+        HashSet<UUID> uuids = new HashSet<>(this.resident.keySet());
+        uuids.addAll(this.spilled);
+        return uuids;
+    }
+
+    // Get the feed cached for a ContentServer, making it resident and most
+    // recently used. Use this when the feed is about to be changed.
+    public CompactFeed get(UUID uuid) throws Exception {
+        FeedBlock block = this.resident.remove(uuid);
+        if (block != null) {
+            this.resident.put(uuid, block);
+        }
+        else if (this.spilled.contains(uuid)) {
+            block = readSpill(uuid);
+            deleteSpill(uuid);
+            this.resident.put(uuid, block);
+            this.residentBytes += this.sizes.get(uuid);
+            enforceBudget(uuid);
+        }
+        return inflate(uuid, block);
+    }
+
+    // Get the feed cached for a ContentServer without disturbing the store:
+    // a spilled feed is read from disk but not made resident, so that a scan
+    // over every feed (as in aggregation) doesn't churn the heap. Unlike the
+    // store's other methods, peek() may be called by several threads at once
+    // (while the cache's lock is held by the thread that started them), so
+    // the hot set is guarded by its own lock.
+    public CompactFeed peek(UUID uuid) throws Exception {
+        CompactFeed feed = getHot(uuid);
+        if (feed != null) return feed;
+
+        FeedBlock block = this.resident.get(uuid);
+        if (block == null && this.spilled.contains(uuid))
+            block = readSpill(uuid);
+        return inflate(uuid, block);
+    }
+
+    // Cache a feed for a ContentServer as resident and most recently used,
+    // replacing any existing copy, and return the copy replaced.
+    public CompactFeed put(UUID uuid, CompactFeed feed) throws Exception {
+        CompactFeed oldFeed = remove(uuid);
+        FeedBlock block = new FeedBlock(feed, this.isCompressed);
+        long size = block.sizeOf();
+        this.resident.put(uuid, block);
+        this.sizes.put(uuid, size);
+        this.residentBytes += size;
+        enforceBudget(uuid);
+        return oldFeed;
+    }
+
+    // Remove the feed cached for a ContentServer, and return it.
+    public CompactFeed remove(UUID uuid) throws Exception {
+        CompactFeed feed;
+        synchronized (this.hot) {
+            feed = this.hot.remove(uuid);
+        }
+        FeedBlock block = this.resident.remove(uuid);
+        if (block != null) {
+            this.residentBytes -= this.sizes.get(uuid);
+        }
+        else if (this.spilled.contains(uuid)) {
+            block = readSpill(uuid);
+            deleteSpill(uuid);
+        }
+        this.sizes.remove(uuid);
+        return feed != null ? feed : block != null ? block.feed() : null;
+    }
+
+    // Delete all spill files. Used when discarding a cache's backup.
+    public void deleteSpills() throws Exception {
+        for (UUID uuid : new HashSet<>(this.spilled)) {
+            deleteSpill(uuid);
+        }
+    }
+
+    // Get the feed held in a block, inflating it through the hot set if the
+    // block is compressed. The hot set is bounded by count rather than bytes,
+    // and isn't counted against the budget.
+    private CompactFeed inflate(UUID uuid, FeedBlock block) throws Exception {
+        if (block == null) return null;
+        if (!block.isCompressed()) return block.feed();
+
+        CompactFeed feed = getHot(uuid);
+        if (feed == null) {
+            feed = block.feed();
+            synchronized (this.hot) {
+                this.hot.put(uuid, feed);
+                if (this.hot.size() > Common.AGGREGATION_CACHE_HOT_FEEDS) {
+                    Iterator<UUID> eldest = this.hot.keySet().iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+        }
+        return feed;
+    }
+
+    // Get a feed from the hot set, marking it most recently used.
+    private CompactFeed getHot(UUID uuid) {
+        synchronized (this.hot) {
+            return this.hot.get(uuid);
+        }
+    }
+
+    // Spill least recently used feeds until the resident feeds fit within the
+    // budget. The feed just touched (if any) is never spilled by its own
+    // access, so a single feed larger than the budget stays resident until
+    // another takes its place.
+    private void enforceBudget(UUID exempt) throws Exception {
+        Iterator<Map.Entry<UUID,FeedBlock>> eldest = this.resident.entrySet().iterator();
+
+        while (this.residentBytes > this.budget && eldest.hasNext()) {
+            Map.Entry<UUID,FeedBlock> e = eldest.next();
+            UUID uuid = e.getKey();
+            if (uuid.equals(exempt)) continue;
+
+            writeSpill(uuid, e.getValue());
+            eldest.remove();
+            synchronized (this.hot) {
+                this.hot.remove(uuid);
+            }
+            this.spilled.add(uuid);
+            this.residentBytes -= this.sizes.get(uuid);
+        }
+    }
+
+    // Get the spill file for a ContentServer's feed.
+    private File spillFile(UUID uuid) {
+        return new File(this.spillPath + uuid + ".feed");
+    }
+
+    // Write a feed to its spill file, indirectly through a temporary file as
+    // for the cache's own backup. A compressed block is written compressed.
+    private void writeSpill(UUID uuid, FeedBlock block) throws Exception {
+        File file = spillFile(uuid);
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        ObjectOutputStream out = Common.getObjectOutputStream(tmp);
+        out.writeObject(block);
+        out.close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Read a feed back from its spill file.
+    private FeedBlock readSpill(UUID uuid) throws Exception {
+        ObjectInputStream in = Common.getObjectInputStream(spillFile(uuid));
+        FeedBlock block = (FeedBlock) in.readObject();
+        in.close();
+        return block;
+    }
+
+    // Forget that a feed was spilled, and delete its spill file.
+    private void deleteSpill(UUID uuid) throws Exception {
+        if (this.spilled.remove(uuid))
+            Files.deleteIfExists(spillFile(uuid).toPath());
+    }
+
+    // Estimate the number of heap bytes taken by a feed held as JAXB beans: a
+    // fixed overhead for each object, and two bytes per character for each
+    // string. Used for the head of a CompactFeed.
+    public static long sizeOf(AtomFeed feed) {
+        long size = 64 + sizeOf(feed.getTitle()) + sizeOf(feed.getSubtitle()) +
+                    sizeOf(feed.getLink()) + sizeOf(feed.getUpdated()) +
+                    sizeOf(feed.getAuthor()) + sizeOf(feed.getId());
+
+        for (AtomEntry entry : feed.getEntries()) {
+            size += 48 + sizeOf(entry.getTitle()) + sizeOf(entry.getLink()) +
+                    sizeOf(entry.getUpdated()) + sizeOf(entry.getAuthor()) +
+                    sizeOf(entry.getId()) + sizeOf(entry.getSummary());
+        }
+
+        return size;
+    }
+
+    private static long sizeOf(AtomLink link) {
+        return link == null ? 0 : 24 + sizeOf(link.getType()) +
+                                  sizeOf(link.getHref()) + sizeOf(link.getRel());
+    }
+
+    private static long sizeOf(AtomAuthor author) {
+        return author == null ? 0 : 24 + sizeOf(author.getName()) +
+                                        sizeOf(author.getEmail());
+    }
+
+    private static long sizeOf(String string) {
+        return string == null ? 0 : 40 + 2L * string.length();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+    :: src/FilterIndex.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    Secondary indexes over cached entries, used to answer filtered GETs for
+    the aggregated feed without scanning every entry: entries by author name,
+    feeds by feed id, and entries by updated time. Entries are referred to by
+    ContentServer UUID and position within the cached feed, rather than held
+    directly, so that the indexes don't pin feeds the FeedStore has spilled.
+    The indexes are updated incrementally as feeds are PUT, PATCHed and
+    expired. Held transiently by the AggregationCache, and guarded by the
+    cache's lock.
+*/
+
+package rjww.atom;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.UUID;
+
+public class FilterIndex {
+    private HashMap<String,HashSet<Ref>> authors;
+    private HashMap<String,HashSet<UUID>> sources;
+    private TreeMap<Long,HashSet<Ref>> times;
+
+    // A reference to the entry at a position within a ContentServer's feed.
+    public static class Ref {
+        public UUID uuid;
+        public int position;
+
+        Ref(UUID uuid, int position) {
+            this.uuid = uuid;
+            this.position = position;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Ref)) return false;
+            Ref ref = (Ref) o;
+            return this.position == ref.position && this.uuid.equals(ref.uuid);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.uuid, this.position);
+        }
+    }
+
+    public FilterIndex() {
+        this.authors = new HashMap<>();
+        this.sources = new HashMap<>();
+        this.times = new TreeMap<>();
+    }
+
+    // Index the entries of a feed cached for a ContentServer.
+    public void add(UUID uuid, CompactFeed feed) {
+        if (feed.feedId() != null)
+            this.sources.computeIfAbsent(feed.feedId(), k -> new HashSet<>()).add(uuid);
+
+        for (int i = 0; i < feed.size(); i++) {
+            Ref ref = new Ref(uuid, i);
+            if (feed.author(i) != null)
+                this.authors.computeIfAbsent(feed.author(i), k -> new HashSet<>()).add(ref);
+            this.times.computeIfAbsent(feed.updatedMillis(i), k -> new HashSet<>()).add(ref);
+        }
+    }
+
+    // Forget the entries of a feed previously indexed for a ContentServer.
+    // The feed must be the copy that was indexed.
+    public void remove(UUID uuid, CompactFeed feed) {
+        if (feed.feedId() != null)
+            removeFrom(this.sources, feed.feedId(), uuid);
+
+        for (int i = 0; i < feed.size(); i++) {
+            Ref ref = new Ref(uuid, i);
+            if (feed.author(i) != null)
+                removeFrom(this.authors, feed.author(i), ref);
+            removeFrom(this.times, feed.updatedMillis(i), ref);
+        }
+    }
+
+    // Get a set of entries which includes every entry matching a supplied
+    // filter, by looking up one of the filter's fields: the author or feed
+    // id, whichever matches fewer entries, or else the window of times.
+    // Entries still need to be checked against the rest of the filter.
+    // Returns null if the filter has no fields set.
+    public Collection<Ref> candidates(FeedFilter filter, FeedStore feeds) throws Exception {
+        Collection<Ref> best = null;
+
+        if (filter.author != null)
+            best = this.authors.getOrDefault(filter.author, new HashSet<>());
+
+        if (filter.source != null) {
+            // Peek at each feed only once, since a spilled or compressed
+            // feed is read back (and inflated) by every peek.
+            ArrayList<UUID> uuids = new ArrayList<>(this.sources.getOrDefault(filter.source,
+                                                                              new HashSet<>()));
+            int[] sizes = new int[uuids.size()];
+            int size = 0;
+            for (int j = 0; j < uuids.size(); j++) {
+                sizes[j] = feeds.peek(uuids.get(j)).size();
+                size += sizes[j];
+            }
+
+            if (best == null || size < best.size()) {
+                ArrayList<Ref> refs = new ArrayList<>(size);
+                for (int j = 0; j < uuids.size(); j++) {
+                    for (int i = 0; i < sizes[j]; i++) {
+                        refs.add(new Ref(uuids.get(j), i));
+                    }
+                }
+                best = refs;
+            }
+        }
+
+        if (best == null && (filter.since != null || filter.until != null)) {
+            long since = filter.since != null ? filter.since : Long.MIN_VALUE;
+            long until = filter.until != null ? filter.until : Long.MAX_VALUE;
+
+            ArrayList<Ref> refs = new ArrayList<>();
+            if (since <= until) {
+                for (HashSet<Ref> window : this.times.subMap(since, true, until, true).values()) {
+                    refs.addAll(window);
+                }
+            }
+            best = refs;
+        }
+
+        return best == null ? null : Collections.unmodifiableCollection(best);
+    }
+
+    private static <K,V> void removeFrom(Map<K,HashSet<V>> index, K key, V value) {
+        HashSet<V> values = index.get(key);
+        if (values == null) return;
+        values.remove(value);
+        if (values.isEmpty()) index.remove(key);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+    :: src/Frame.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    A frame of the binary ingestion protocol, an alternative to HTTP for
+    publishers that PUT many times a second. Frames are sent back to back on
+    a long-lived connection to the AggregationServer's frame port, each laid
+    out as its type (one byte), the length of its body (four bytes), the
+    sender's UUID (sixteen bytes) and Lamport time (eight bytes), and then the
+    body. A feed frame carries a feed in a compact field encoding rather than
+    XML, a heartbeat frame has no body, and every frame received is answered
+    with an ack frame whose body is an HTTP status code.
+*/
+
+package rjww.atom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+public class Frame {
+    public static final int FEED = 1;
+    public static final int HEARTBEAT = 2;
+    public static final int ACK = 3;
+
+    public int type;
+    public UUID uuid;
+    public long lamportTime;
+    public byte[] body;
+
+    public Frame(int type, UUID uuid, long lamportTime, byte[] body) {
+        this.type = type;
+        this.uuid = uuid;
+        this.lamportTime = lamportTime;
+        this.body = body;
+    }
+
+    // Construct an ack frame carrying a supplied status code.
+    public static Frame ack(UUID uuid, long lamportTime, int statusCode) {
+        return new Frame(ACK, uuid, lamportTime,
+                         new byte[] { (byte) (statusCode >> 8), (byte) statusCode });
+    }
+
+    // Get the status code carried by an ack frame.
+    public int statusCode() {
+        return (this.body[0] & 0xff) << 8 | (this.body[1] & 0xff);
+    }
+
+    // Write the frame to a supplied stream. The stream isn't flushed.
+    public void write(DataOutputStream out) throws IOException {
+        out.writeByte(this.type);
+        out.writeInt(this.body.length);
+        out.writeLong(this.uuid.getMostSignificantBits());
+        out.writeLong(this.uuid.getLeastSignificantBits());
+        out.writeLong(this.lamportTime);
+        out.write(this.body);
+    }
+
+    // Read a frame from a supplied stream, or return null if the stream ends
+    // cleanly before a frame begins. A body longer than the frame size limit
+    // is left unread, and the frame is returned without one.
+    public static Frame read(DataInputStream in) throws IOException {
+        int type = in.read();
+        if (type < 0) return null;
+
+        int length = in.readInt();
+        UUID uuid = new UUID(in.readLong(), in.readLong());
+        long lamportTime = in.readLong();
+        if (length < 0 || length > Common.FRAME_MAX_LENGTH)
+            return new Frame(type, uuid, lamportTime, null);
+
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return new Frame(type, uuid, lamportTime, body);
+    }
+
+    // Encode a feed as the body of a feed frame: the feed's own fields, then
+    // the number of entries and each entry's fields, as strings that may be
+    // absent.
+    public static byte[] encodeFeed(AtomFeed feed) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        writeString(out, feed.getTitle());
+        writeString(out, feed.getSubtitle());
+        writeLink(out, feed.getLink());
+        writeString(out, feed.getUpdated());
+        writeAuthor(out, feed.getAuthor());
+        writeString(out, feed.getId());
+
+        int size = feed.getEntries() != null ? feed.getEntries().size() : 0;
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            AtomEntry entry = feed.getEntries().get(i);
+            writeString(out, entry.getTitle());
+            writeLink(out, entry.getLink());
+            writeString(out, entry.getId());
+            writeString(out, entry.getUpdated());
+            writeAuthor(out, entry.getAuthor());
+            writeString(out, entry.getSummary());
+        }
+
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    // Decode the body of a feed frame into a feed. A body that ends early or
+    // runs on past the feed is malformed.
+    public static AtomFeed decodeFeed(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        AtomFeed feed = new AtomFeed();
+
+        feed.setTitle(readString(in));
+        feed.setSubtitle(readString(in));
+        feed.setLink(readLink(in));
+        feed.setUpdated(readString(in));
+        feed.setAuthor(readAuthor(in));
+        feed.setId(readString(in));
+
+        int size = in.readInt();
+        if (size < 0) throw new IOException("Negative entry count");
+        for (int i = 0; i < size; i++) {
+            AtomEntry entry = new AtomEntry();
+            entry.setTitle(readString(in));
+            entry.setLink(readLink(in));
+            entry.setId(readString(in));
+            entry.setUpdated(readString(in));
+            entry.setAuthor(readAuthor(in));
+            entry.setSummary(readString(in));
+            feed.addEntry(entry);
+        }
+
+        if (in.available() > 0) throw new IOException("Trailing bytes in feed frame");
+        return feed;
+    }
+
+    private static void writeLink(DataOutputStream out, AtomLink link) throws IOException {
+        out.writeBoolean(link != null);
+        if (link == null) return;
+        writeString(out, link.getType());
+        writeString(out, link.getHref());
+        writeString(out, link.getRel());
+    }
+
+    private static AtomLink readLink(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) return null;
+        AtomLink link = new AtomLink();
+        link.setType(readString(in));
+        link.setHref(readString(in));
+        link.setRel(readString(in));
+        return link;
+    }
+
+    private static void writeAuthor(DataOutputStream out, AtomAuthor author) throws IOException {
+        out.writeBoolean(author != null);
+        if (author == null) return;
+        writeString(out, author.getName());
+        writeString(out, author.getEmail());
+    }
+
+    private static AtomAuthor readAuthor(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) return null;
+        AtomAuthor author = new AtomAuthor();
+        author.setName(readString(in));
+        author.setEmail(readString(in));
+        return author;
+    }
+
+    // Write a string as its UTF-8 length and bytes, with a length of -1 for
+    // an absent string.
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        if (length > in.available()) throw new EOFException();
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+    :: src/FrameClient.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    The publisher's end of the binary ingestion protocol. Holds a single
+    connection to the AggregationServer's frame port, opened on first use, and
+    sends frames on it one at a time, waiting for each one's ack. A
+    ContentServer and its ContentHeartbeat share one client, and so one
+    connection.
+*/
+
+package rjww.atom;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+
+public class FrameClient {
+    private String host;
+    private int port;
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    public FrameClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    // Send a frame and return its ack. The server closes connections left
+    // idle, so if the connection turns out to have been closed, the frame is
+    // sent once more on a new one.
+    public synchronized Frame send(Frame frame) throws Exception {
+        try {
+            return sendOnce(frame);
+        }
+        catch (ConnectException e) {
+            throw e;
+        }
+        catch (IOException e) {
+            close();
+            return sendOnce(frame);
+        }
+    }
+
+    // Close the connection, if open. The next frame sent opens a new one.
+    public synchronized void close() {
+        try {
+            if (this.socket != null)
+                this.socket.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+        this.socket = null;
+    }
+
+    private Frame sendOnce(Frame frame) throws Exception {
+        if (this.socket == null) {
+            this.socket = new Socket(this.host, this.port);
+            this.socket.setSoTimeout(Common.SOCKET_TIMEOUT);
+            this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+        }
+
+        frame.write(this.out);
+        this.out.flush();
+
+        Frame ack = Frame.read(this.in);
+        if (ack == null || ack.type != Frame.ACK)
+            throw new EOFException("Connection closed without an ack");
+        return ack;
+    }
+}
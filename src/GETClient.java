@@ -62,12 +62,39 @@ public class GETClient {
     // GET the aggregated feed from the AggregationServer and return the
     // corresponding HTTPResponse object.
     public HTTPResponse get() throws Exception {
+        return get("feed");
+    }
+
+    // GET a supplied resource, which may carry a query string (e.g.
+    // "feed?dedup=true"), from the AggregationServer and return the
+    // corresponding HTTPResponse object.
+    public HTTPResponse get(String resource) throws Exception {
+        return get(resource, null);
+    }
+
+    // GET a supplied resource as for get(resource), asking for it in the
+    // supplied media type (e.g. "application/feed+json"), or in any if null.
+    // A GET shed by the AggregationServer under load is retried, after the
+    // delay it asks for plus a random backoff, a few times before its 503
+    // Service Unavailable is returned.
+    public HTTPResponse get(String resource, String accept) throws Exception {
+        HTTPResponse response = getOnce(resource, accept);
+        for (int retry = 0; retry < Common.CLIENT_RETRY_ATTEMPTS; retry++) {
+            if (response.statusCode != 503) break;
+            Thread.sleep(Common.getRetryDelay(response, retry));
+            response = getOnce(resource, accept);
+        }
+        return response;
+    }
+
+    // Do a single GET for get().
+    private HTTPResponse getOnce(String resource, String accept) throws Exception {
         Socket socket = new Socket(this.host, this.port);
         socket.setSoTimeout(Common.SOCKET_TIMEOUT);
         BufferedReader in = Common.getBufferedReader(socket);
         PrintWriter out = Common.getPrintWriter(socket);
 
-        sendRequest(out);
+        sendRequest(out, resource, accept);
         HTTPResponse response = receiveResponse(in);
         socket.close();
 
@@ -75,12 +102,14 @@ public class GETClient {
     }
 
     // Do the GET operation for get().
-    private void sendRequest(PrintWriter out) throws Exception {
-        int localLamport = this.clock.update();
+    private void sendRequest(PrintWriter out, String resource,
+                             String accept) throws Exception {
+        long localLamport = this.clock.update();
 
         out.println(new StringBuffer()
-           .append("GET /feed HTTP/1.1\n")
+           .append("GET /" + resource + " HTTP/1.1\n")
            .append("User-Agent: ATOMClient/1/0\n")
+           .append(accept != null ? "Accept: " + accept + "\n" : "")
            .append("Lamport: " + localLamport + "\n")
            .append("\n")
            .toString());
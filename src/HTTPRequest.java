@@ -9,12 +9,21 @@
 
 package rjww.atom;
 
+import java.util.HashMap;
 import java.util.UUID;
 
 public class HTTPRequest {
     public String method;
     public String resource;
+    public String topic;
+    public HashMap<String,String> query = new HashMap<>();
     public UUID uuid;
-    public int lamportTime;
+    public long lamportTime;
+    public String digest;
+    public String baseDigest;
+    public String accept;
+    public long contentLength = -1;
+    public boolean isKeptAlive;
+    public String ifNoneMatch;
     public String body;
 }
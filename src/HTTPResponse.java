@@ -11,6 +11,10 @@ package rjww.atom;
 
 public class HTTPResponse {
     public int statusCode;
-    public int lamportTime;
+    public long lamportTime;
+    public String contentType;
+    public long contentLength = -1;
+    public int retryAfter = -1;
+    public String etag;
     public String body;
 }
@@ -0,0 +1,122 @@
+/*
+    :: src/JSONFeedWriter.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    A streaming encoder of Atom entries as JSON Feed (version 1.1) items. Each
+    item is written straight to the underlying Writer as its fields are
+    visited, working directly against the AtomEntry bean rather than through
+    reflection or an intermediate tree. Fields that are absent (including
+    those projected away) are left out of the item, except for the id,
+    which JSON Feed requires of every item. All control characters are
+    escaped, so an item never spans more than one line.
+*/
+
+package rjww.atom;
+
+import java.io.IOException;
+import java.io.Writer;
+
+public class JSONFeedWriter {
+    public static final String VERSION = "https://jsonfeed.org/version/1.1";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Writer out;
+    private boolean isFirstMember;
+
+    public JSONFeedWriter(Writer out) {
+        this.out = out;
+    }
+
+    // Write the opening of a feed object, up to and including the opening of
+    // its items array.
+    public void writeFeedStart(String title) throws IOException {
+        this.out.write('{');
+        this.isFirstMember = true;
+        writeMember("version", VERSION);
+        writeMember("title", title);
+        writeName("items");
+        this.out.write('[');
+    }
+
+    // Write the closing of a feed object opened by writeFeedStart().
+    public void writeFeedEnd() throws IOException {
+        this.out.write("]}");
+    }
+
+    // Write a single entry as a JSON Feed item. The entry's link becomes the
+    // item's url, its updated time its date_modified, and its author the sole
+    // member of its authors, with any email address as a mailto: url. An
+    // entry without an id is given an empty one.
+    public void writeItem(AtomEntry entry) throws IOException {
+        this.out.write('{');
+        this.isFirstMember = true;
+        writeMember("id", entry.getId() != null ? entry.getId() : "");
+        if (entry.getLink() != null)
+            writeMember("url", entry.getLink().getHref());
+        writeMember("title", entry.getTitle());
+        writeMember("summary", entry.getSummary());
+        writeMember("date_modified", entry.getUpdated());
+
+        AtomAuthor author = entry.getAuthor();
+        if (author != null) {
+            writeName("authors");
+            this.out.write("[{");
+            this.isFirstMember = true;
+            writeMember("name", author.getName());
+            if (author.getEmail() != null)
+                writeMember("url", "mailto:" + author.getEmail());
+            this.out.write("}]");
+        }
+
+        this.out.write('}');
+    }
+
+    // Write a member with a string value, unless the value is absent.
+    private void writeMember(String name, String value) throws IOException {
+        if (value == null) return;
+        writeName(name);
+        writeString(value);
+    }
+
+    // Write a member's name, preceded by a comma unless it is the first
+    // member of its object.
+    private void writeName(String name) throws IOException {
+        if (!this.isFirstMember) this.out.write(',');
+        this.isFirstMember = false;
+        writeString(name);
+        this.out.write(':');
+    }
+
+    // Write a string literal, escaping quotes, backslashes, control
+    // characters and the line and paragraph separators.
+    private void writeString(String value) throws IOException {
+        this.out.write('"');
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029')
+                continue;
+
+            this.out.write(value, start, i - start);
+            start = i + 1;
+            switch (c) {
+                case '"':  this.out.write("\\\""); break;
+                case '\\': this.out.write("\\\\"); break;
+                case '\n': this.out.write("\\n");  break;
+                case '\r': this.out.write("\\r");  break;
+                case '\t': this.out.write("\\t");  break;
+                default:
+                    this.out.write("\\u");
+                    this.out.write(HEX[(c >> 12) & 0xf]);
+                    this.out.write(HEX[(c >> 8) & 0xf]);
+                    this.out.write(HEX[(c >> 4) & 0xf]);
+                    this.out.write(HEX[c & 0xf]);
+            }
+        }
+        this.out.write(value, start, value.length() - start);
+        this.out.write('"');
+    }
+}
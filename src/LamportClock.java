@@ -4,36 +4,135 @@
     Author   Robert Woods <hi@robertwoods.me>
     Source   https://github.com/rjww/atom
 
-    A convenience class representing a Lamport clock, with synchronized
-    methods for retrieving and updating/incrementing the current Lamport time.
-    Note that this object is often called from within synchronized blocks in
-    other classes. This will not cause deadlocks, provided these methods are
-    ALWAYS called as such for objects that share a clock, because Java
-    synchronized blocks are reentrant.
+    A convenience class representing a Lamport clock, with methods for
+    retrieving and updating/incrementing the current Lamport time. The time
+    is a 64-bit counter updated by compare-and-set, so ticking the clock
+    never blocks, and it saturates rather than wrapping around. Since the
+    times it's updated with come from other hosts, a time too far ahead of
+    the clock's own is taken as only the maximum skew ahead, so that no one
+    peer can push the clock to saturation.
+
+    A clock that must survive restarts leases its times from a file in
+    blocks, rather than being written out on every tick. Before the clock
+    issues a time past the end of its current block, it writes the end of
+    the next block to the lease file, and on restart it resumes from the end
+    of the last block leased. Every time issued after a restart is therefore
+    greater than any issued before it, whether or not the clock was written
+    out with its cache, and the clock only touches the file once a block. If
+    the next block can't be leased, the tick fails rather than issue a time
+    past the end of the last block written out.
 */
 
 package rjww.atom;
 
+import java.io.File;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class LamportClock implements Serializable {
-    private int time = 0;
+    private AtomicLong time = new AtomicLong();
+    private transient volatile long reserved;
+    private transient File leaseFile;
+
+    // Get the file from which a clock kept in a supplied backup file leases
+    // its times.
+    public static File getLeaseFile(File backupFile) {
+        return new File(backupFile.getPath() + ".clock");
+    }
 
     // Retrieve the current Lamport time without updating it.
-    public synchronized int peek() {
-        return this.time;
+    public long peek() {
+        return this.time.get();
     }
 
     // Increment the current Lamport time and return it.
-    public synchronized int update() {
-        this.time++;
-        return this.time;
+    public long update() {
+        return reserve(this.time.updateAndGet(time -> next(time, time)));
     }
 
     // Set the current Lamport time to the maximum of itself and a supplied
-    // value, increment the result, and return it.
-    public synchronized int update(int otherTime) {
-        this.time = Math.max(this.time, otherTime) + 1;
-        return this.time;
+    // value, no more than the maximum skew ahead of it, increment the result,
+    // and return it.
+    public long update(long otherTime) {
+        return reserve(this.time.accumulateAndGet(otherTime, (time, other) ->
+            next(time, Math.min(other, advance(time, Common.LAMPORT_MAX_SKEW)))));
+    }
+
+    // Lease the clock's times from a supplied file, first resuming from the
+    // end of the block last leased from it, if any.
+    public synchronized void lease(File leaseFile) {
+        this.leaseFile = leaseFile;
+
+        if (leaseFile.exists()) {
+            try {
+                String mark = new String(Files.readAllBytes(leaseFile.toPath()),
+                                         StandardCharsets.UTF_8);
+                long reserved = Long.parseLong(mark.trim());
+                this.time.accumulateAndGet(reserved, Math::max);
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        this.reserved = 0;
+        try {
+            reserve(this.time.get());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Return a supplied time once it falls within the leased block, leasing
+    // the next block first if it doesn't, or throw if the next block can't
+    // be leased. A clock without a lease file has every time reserved at
+    // once.
+    private long reserve(long time) {
+        if (time < this.reserved) return time;
+
+        synchronized (this) {
+            if (time < this.reserved) return time;
+
+            if (this.leaseFile == null) {
+                this.reserved = Long.MAX_VALUE;
+                return time;
+            }
+
+            long reserved = advance(time, Common.LAMPORT_LEASE_BLOCK);
+            try {
+                writeToFile(reserved);
+            }
+            catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            this.reserved = reserved;
+            return time;
+        }
+    }
+
+    // Write the end of a newly leased block to the lease file. As for the
+    // caches, it is written to a temporary file which then replaces the old
+    // one, so as to avoid a partial write.
+    private void writeToFile(long reserved) throws Exception {
+        File tmp = new File(this.leaseFile.getAbsolutePath() + ".tmp");
+        Files.write(tmp.toPath(), String.valueOf(reserved).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), this.leaseFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Get a supplied time advanced by a supplied amount, or the greatest time
+    // if there is none that far after it.
+    private static long advance(long time, long amount) {
+        return time < Long.MAX_VALUE - amount ? time + amount : Long.MAX_VALUE;
+    }
+
+    // Get the time following the maximum of two supplied times, or the
+    // greatest time if there is none after it.
+    private static long next(long time, long otherTime) {
+        long max = Math.max(time, otherTime);
+        return max < Long.MAX_VALUE ? max + 1 : max;
     }
 }
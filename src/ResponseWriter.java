@@ -0,0 +1,190 @@
+/*
+    :: src/ResponseWriter.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    Writes the AggregationServer's responses to a connection as bytes. Status
+    lines and header names are encoded once, up front, and numeric header
+    values are written as ASCII digits straight into a buffer kept for the
+    life of the connection, so that sending a response allocates nothing. A
+    response is assembled whole in the buffer and sent with a single write,
+    except for a body sent from a file, which follows its head by transfer.
+*/
+
+package rjww.atom;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class ResponseWriter {
+    private static final byte[] STATUS_200 = ascii("HTTP/1.1 200 OK\n");
+    private static final byte[] STATUS_201 = ascii("HTTP/1.1 201 Created\n");
+    private static final byte[] STATUS_204 = ascii("HTTP/1.1 204 No Content\n");
+    private static final byte[] STATUS_304 = ascii("HTTP/1.1 304 Not Modified\n");
+    private static final byte[] STATUS_400 = ascii("HTTP/1.1 400 Bad Request\n");
+    private static final byte[] STATUS_403 = ascii("HTTP/1.1 403 Forbidden\n");
+    private static final byte[] STATUS_404 = ascii("HTTP/1.1 404 Not Found\n");
+    private static final byte[] STATUS_409 = ascii("HTTP/1.1 409 Conflict\n");
+    private static final byte[] STATUS_412 = ascii("HTTP/1.1 412 Precondition Failed\n");
+    private static final byte[] STATUS_413 = ascii("HTTP/1.1 413 Payload Too Large\n");
+    private static final byte[] STATUS_429 = ascii("HTTP/1.1 429 Too Many Requests\n");
+    private static final byte[] STATUS_500 = ascii("HTTP/1.1 500 Internal Server Error\n");
+    private static final byte[] STATUS_503 = ascii("HTTP/1.1 503 Service Unavailable\n");
+
+    private static final byte[] SERVER = ascii("Server: AggregationServer\n");
+    private static final byte[] LAMPORT = ascii("Lamport: ");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] ETAG = ascii("ETag: ");
+
+    private OutputStream stream;
+    private WritableByteChannel channel;
+    private byte[] buffer;
+    private int length;
+
+    // Construct a writer for the connection on a supplied socket. Bodies sent
+    // from files are transferred to the socket's channel, if it has one.
+    public ResponseWriter(Socket socket) throws IOException {
+        this.stream = socket.getOutputStream();
+        this.channel = socket.getChannel() != null ? socket.getChannel()
+                                                   : Channels.newChannel(this.stream);
+        this.buffer = new byte[1024];
+    }
+
+    // Send a response with a supplied status code, Lamport time, pre-encoded
+    // header lines (such as a Content-Type, or null for none), entity tag
+    // (or null for none) and body, terminated by the empty line that ends
+    // every message, in a single write.
+    public void send(int statusCode, long lamportTime, byte[] headers,
+                     String etag, byte[] body) throws IOException {
+        writeHead(statusCode, lamportTime, headers, etag, body.length + 1);
+        append(body, body.length);
+        append((byte) '\n');
+        this.stream.write(this.buffer, 0, this.length);
+        this.stream.flush();
+    }
+
+    // Send a response as above, with its body (including its terminating
+    // newline) transferred from a file after its head is written.
+    public void send(int statusCode, long lamportTime, byte[] headers,
+                     String etag, FileChannel body) throws IOException {
+        long size = body.size();
+        writeHead(statusCode, lamportTime, headers, etag, size);
+
+        ByteBuffer head = ByteBuffer.wrap(this.buffer, 0, this.length);
+        while (head.hasRemaining()) {
+            this.channel.write(head);
+        }
+        long position = 0;
+        while (position < size) {
+            position += body.transferTo(position, size - position, this.channel);
+        }
+    }
+
+    // Encode a string as ASCII bytes, for pre-encoded lines and names.
+    public static byte[] ascii(String string) {
+        return string.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Assemble a response's start-line and headers at the start of the
+    // buffer.
+    private void writeHead(int statusCode, long lamportTime, byte[] headers,
+                           String etag, long contentLength) {
+        this.length = 0;
+        append(statusLine(statusCode));
+        append(SERVER);
+        append(LAMPORT);
+        appendDigits(lamportTime);
+        append((byte) '\n');
+        if (headers != null)
+            append(headers);
+        if (etag != null) {
+            append(ETAG);
+            appendASCII(etag);
+            append((byte) '\n');
+        }
+        append(CONTENT_LENGTH);
+        appendDigits(contentLength);
+        append((byte) '\n');
+        append((byte) '\n');
+    }
+
+    // Get the pre-encoded start-line for a supplied status code. Any code
+    // without one of its own is sent as a 400 Bad Request.
+    private static byte[] statusLine(int statusCode) {
+        switch (statusCode) {
+            case 200: return STATUS_200;
+            case 201: return STATUS_201;
+            case 204: return STATUS_204;
+            case 304: return STATUS_304;
+            case 403: return STATUS_403;
+            case 404: return STATUS_404;
+            case 409: return STATUS_409;
+            case 412: return STATUS_412;
+            case 413: return STATUS_413;
+            case 429: return STATUS_429;
+            case 500: return STATUS_500;
+            case 503: return STATUS_503;
+            default:  return STATUS_400;
+        }
+    }
+
+    private void append(byte[] bytes) {
+        append(bytes, bytes.length);
+    }
+
+    private void append(byte[] bytes, int count) {
+        ensureCapacity(count);
+        System.arraycopy(bytes, 0, this.buffer, this.length, count);
+        this.length += count;
+    }
+
+    private void append(byte b) {
+        ensureCapacity(1);
+        this.buffer[this.length++] = b;
+    }
+
+    // Append a string of ASCII characters, without encoding it to a new
+    // array.
+    private void appendASCII(String string) {
+        ensureCapacity(string.length());
+        for (int i = 0; i < string.length(); i++) {
+            this.buffer[this.length++] = (byte) string.charAt(i);
+        }
+    }
+
+    // Append a number as ASCII digits, without going through a string.
+    private void appendDigits(long value) {
+        if (value < 0) {
+            append((byte) '-');
+            value = -value;
+        }
+
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+
+        ensureCapacity(digits);
+        for (int i = this.length + digits - 1; i >= this.length; i--) {
+            this.buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        this.length += digits;
+    }
+
+    // Grow the buffer, if need be, to fit a supplied number more bytes. The
+    // buffer is kept at its largest size for the rest of the connection.
+    private void ensureCapacity(int count) {
+        if (this.length + count > this.buffer.length)
+            this.buffer = Arrays.copyOf(this.buffer,
+                                        Math.max(this.buffer.length * 2, this.length + count));
+    }
+}
@@ -0,0 +1,315 @@
+/*
+    :: src/SearchIndex.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    An inverted index of the terms in cached entries' titles and summaries,
+    used to serve full-text searches of the aggregated feed. Each indexed
+    entry is given an int document number, and each term a postings list of
+    document numbers and term frequencies, held in a primitive int array.
+
+    The index is updated incrementally as feeds are PUT, PATCHed and
+    expired, which always happens while holding the cache's lock, so there
+    is only ever one writer. Document numbers are handed out in increasing
+    order and never reused, so a feed's entries are added by appending to
+    the end of each of their terms' lists, which grow by doubling, rather
+    than by copying the lists. A removed entry is only marked dead in the
+    table of documents, and is left in its terms' lists, which searches
+    skip it in. Once dead entries outnumber the live ones, the index is
+    compacted: the live entries are numbered afresh and every list is
+    rebuilt without the dead, which costs about as much as the removals
+    did between compactions.
+
+    A search reads the lists without any lock, and so never holds up a
+    writer, or the requests queued behind it on the cache's lock: entries
+    are published by the lists' sizes, which are only written once the
+    entries are in place, and a compacted index replaces the old one whole.
+    A search may see a feed's update to some terms and not yet others,
+    which at worst misranks entries being changed at that moment; its hits
+    are resolved to entries under the cache's lock, and any whose feed has
+    since been replaced or removed are dropped.
+*/
+
+package rjww.atom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class SearchIndex {
+    public static final int COMPACTION_THRESHOLD = 1024;
+    private static final int TITLE_WEIGHT = 2;
+
+    private volatile Segment segment;
+    private HashMap<UUID,int[]> feedDocuments;
+    private HashMap<UUID,Integer> feedGenerations;
+    private int generation;
+
+    // A search hit: an indexed entry, identified by document number, by
+    // ContentServer UUID and position in the cached feed, and by the
+    // generation of the feed it was indexed from.
+    public static class Hit {
+        public int document;
+        public int generation;
+        public UUID uuid;
+        public int position;
+    }
+
+    // The postings list of a term: the documents it occurs in, in increasing
+    // order, each followed by its (weighted) frequency in the document.
+    // Entries are only ever appended, by the writer, and are published by
+    // the write of the size.
+    private static class Postings {
+        volatile int[] entries = new int[8];
+        volatile int size;
+        int liveCount;
+
+        // Append a document and its frequency to the list.
+        void append(int document, int frequency) {
+            int[] entries = this.entries;
+            if (2 * this.size + 2 > entries.length) {
+                entries = Arrays.copyOf(entries, entries.length * 2);
+                this.entries = entries;
+            }
+            entries[2 * this.size] = document;
+            entries[2 * this.size + 1] = frequency;
+            this.size++;
+            this.liveCount++;
+        }
+    }
+
+    // The table of documents, by number: the UUID of the feed each entry was
+    // indexed from (null once the entry is removed), its position in the
+    // feed, and the feed's generation. Replaced by a larger copy when full.
+    private static class Documents {
+        final UUID[] uuids;
+        final int[] positions;
+        final int[] generations;
+
+        Documents(int capacity) {
+            this.uuids = new UUID[capacity];
+            this.positions = new int[capacity];
+            this.generations = new int[capacity];
+        }
+    }
+
+    // The postings lists and table of documents between two compactions.
+    private static class Segment {
+        final ConcurrentHashMap<String,Postings> postings = new ConcurrentHashMap<>();
+        volatile Documents documents;
+        volatile int liveCount;
+        int count;
+        int deadCount;
+
+        Segment(int capacity) {
+            this.documents = new Documents(Math.max(capacity, 16));
+        }
+
+        // Number an entry with the next document number.
+        int allocate(UUID uuid, int position, int generation) {
+            Documents documents = this.documents;
+            if (this.count == documents.uuids.length) {
+                Documents larger = new Documents(this.count * 2);
+                System.arraycopy(documents.uuids, 0, larger.uuids, 0, this.count);
+                System.arraycopy(documents.positions, 0, larger.positions, 0, this.count);
+                System.arraycopy(documents.generations, 0, larger.generations, 0, this.count);
+                documents = larger;
+                this.documents = larger;
+            }
+
+            documents.uuids[this.count] = uuid;
+            documents.positions[this.count] = position;
+            documents.generations[this.count] = generation;
+            return this.count++;
+        }
+    }
+
+    public SearchIndex() {
+        this.segment = new Segment(16);
+        this.feedDocuments = new HashMap<>();
+        this.feedGenerations = new HashMap<>();
+        this.generation = 0;
+    }
+
+    // Index the entries of a feed cached for a ContentServer, appending each
+    // entry to its terms' postings. Must be called while holding the cache's
+    // lock.
+    public void add(UUID uuid, CompactFeed feed) {
+        Segment segment = this.segment;
+        int generation = ++this.generation;
+
+        int[] documents = new int[feed.size()];
+        for (int i = 0; i < feed.size(); i++) {
+            int document = segment.allocate(uuid, i, generation);
+            documents[i] = document;
+
+            HashMap<String,Integer> frequencies = new HashMap<>();
+            count(frequencies, feed.title(i), TITLE_WEIGHT);
+            count(frequencies, feed.summary(i), 1);
+            for (Map.Entry<String,Integer> e : frequencies.entrySet()) {
+                segment.postings.computeIfAbsent(e.getKey(), k -> new Postings())
+                                .append(document, e.getValue());
+            }
+        }
+
+        this.feedDocuments.put(uuid, documents);
+        this.feedGenerations.put(uuid, generation);
+        segment.liveCount += documents.length;
+    }
+
+    // Forget the entries of a feed previously indexed for a ContentServer,
+    // marking them dead, and compact the index if the dead now outnumber the
+    // live. The feed must be the copy that was indexed, since its entries
+    // give the terms whose live counts to lower. Must be called while
+    // holding the cache's lock.
+    public void remove(UUID uuid, CompactFeed feed) {
+        int[] documents = this.feedDocuments.remove(uuid);
+        if (documents == null) return;
+        this.feedGenerations.remove(uuid);
+
+        Segment segment = this.segment;
+        Documents table = segment.documents;
+        for (int i = 0; i < documents.length; i++) {
+            table.uuids[documents[i]] = null;
+
+            LinkedHashSet<String> terms = new LinkedHashSet<>();
+            terms.addAll(tokenize(feed.title(i)));
+            terms.addAll(tokenize(feed.summary(i)));
+            for (String term : terms) {
+                Postings termPostings = segment.postings.get(term);
+                if (termPostings != null && --termPostings.liveCount == 0)
+                    segment.postings.remove(term);
+            }
+        }
+
+        segment.liveCount -= documents.length;
+        segment.deadCount += documents.length;
+        if (segment.deadCount >= COMPACTION_THRESHOLD && segment.deadCount > segment.liveCount)
+            compact();
+    }
+
+    // Find the entries best matching the terms of a query, at most limit of
+    // them, best first. Entries are scored by the sum over the query's terms
+    // of the term's frequency in the entry (with title occurrences weighted
+    // above summary ones) times its inverse document frequency, so entries
+    // matching more, and rarer, terms rank higher. Ties go to the entry
+    // indexed first. Scores are kept only for the documents in the query
+    // terms' postings. Takes no lock (see above).
+    public List<Hit> search(String query, int limit) {
+        Segment segment = this.segment;
+        int liveCount = segment.liveCount;
+        HashMap<Integer,float[]> scores = new HashMap<>();
+        for (String term : new LinkedHashSet<>(tokenize(query))) {
+            Postings termPostings = segment.postings.get(term);
+            if (termPostings == null) continue;
+
+            int size = termPostings.size;
+            int[] entries = termPostings.entries;
+            float idf = (float) Math.log(1 + (double) liveCount / Math.max(termPostings.liveCount, 1));
+            for (int i = 0; i < size; i++) {
+                scores.computeIfAbsent(entries[2 * i], k -> new float[1])[0] +=
+                    entries[2 * i + 1] * idf;
+            }
+        }
+
+        // Read the table only now, so that it holds every document found.
+        Documents table = segment.documents;
+        PriorityQueue<Map.Entry<Integer,float[]>> best = new PriorityQueue<>((a, b) -> {
+            int byScore = Float.compare(a.getValue()[0], b.getValue()[0]);
+            return byScore != 0 ? byScore : Integer.compare(b.getKey(), a.getKey());
+        });
+        for (Map.Entry<Integer,float[]> e : scores.entrySet()) {
+            if (e.getValue()[0] <= 0 || table.uuids[e.getKey()] == null) continue;
+            best.add(e);
+            if (best.size() > limit) best.poll();
+        }
+
+        ArrayList<Hit> hits = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            int document = best.poll().getKey();
+            Hit hit = new Hit();
+            hit.document = document;
+            hit.generation = table.generations[document];
+            hit.uuid = table.uuids[document];
+            hit.position = table.positions[document];
+            if (hit.uuid != null)
+                hits.add(0, hit);
+        }
+        return hits;
+    }
+
+    // Determine whether a hit still refers to the entry it was found for, and
+    // not one of a feed indexed in its place since. Must be called while
+    // holding the cache's lock.
+    public boolean isCurrent(Hit hit) {
+        Integer generation = this.feedGenerations.get(hit.uuid);
+        return generation != null && generation == hit.generation;
+    }
+
+    // Get the number of documents numbered since the last compaction, live
+    // or dead. Used for testing.
+    public int documents() {
+        return this.segment.count;
+    }
+
+    // Split text into lower-case terms of letters and digits.
+    public static List<String> tokenize(String text) {
+        ArrayList<String> terms = new ArrayList<>();
+        if (text == null) return terms;
+
+        for (String term : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+            if (!term.isEmpty()) terms.add(term);
+        }
+        return terms;
+    }
+
+    private static void count(HashMap<String,Integer> frequencies, String text, int weight) {
+        for (String term : tokenize(text)) {
+            frequencies.merge(term, weight, Integer::sum);
+        }
+    }
+
+    // Number the live entries afresh, in the same order, and rebuild every
+    // postings list without the dead, then swap the compacted segment in
+    // for searches begun from now on.
+    private void compact() {
+        Segment old = this.segment;
+        Documents table = old.documents;
+        Segment segment = new Segment(old.liveCount * 2);
+
+        int[] numbers = new int[old.count];
+        for (int i = 0; i < old.count; i++) {
+            numbers[i] = table.uuids[i] != null
+                       ? segment.allocate(table.uuids[i], table.positions[i], table.generations[i])
+                       : -1;
+        }
+
+        for (Map.Entry<String,Postings> e : old.postings.entrySet()) {
+            Postings termPostings = e.getValue();
+            Postings compacted = new Postings();
+            for (int i = 0; i < termPostings.size; i++) {
+                int number = numbers[termPostings.entries[2 * i]];
+                if (number >= 0)
+                    compacted.append(number, termPostings.entries[2 * i + 1]);
+            }
+            if (compacted.size > 0)
+                segment.postings.put(e.getKey(), compacted);
+        }
+
+        for (int[] documents : this.feedDocuments.values()) {
+            for (int i = 0; i < documents.length; i++) {
+                documents[i] = numbers[documents[i]];
+            }
+        }
+
+        segment.liveCount = old.liveCount;
+        this.segment = segment;
+    }
+}
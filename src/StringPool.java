@@ -0,0 +1,41 @@
+/*
+    :: src/StringPool.java
+
+    Author   Robert Woods <hi@robertwoods.me>
+    Source   https://github.com/rjww/atom
+
+    A process-wide pool of canonical strings, used by CompactFeed to share
+    author names, emails and link attributes, which repeat heavily across
+    entries and feeds. Strings are held weakly, so a pooled string is dropped
+    once no cached feed refers to it.
+*/
+
+package rjww.atom;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+public class StringPool {
+    private static final WeakHashMap<String,WeakReference<String>> pool = new WeakHashMap<>();
+
+    // Return the canonical copy of a supplied string, making the supplied
+    // string canonical if the pool doesn't yet hold an equal one.
+    public static synchronized String intern(String string) {
+        if (string == null) return null;
+
+        WeakReference<String> ref = pool.get(string);
+        String pooled = ref != null ? ref.get() : null;
+        if (pooled == null) {
+            pool.put(string, new WeakReference<>(string));
+            pooled = string;
+        }
+        return pooled;
+    }
+
+    // Intern every string in a supplied array in place.
+    public static void internAll(String[] strings) {
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = intern(strings[i]);
+        }
+    }
+}
@@ -9,12 +9,30 @@
 
 package rjww.atom;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 public class Test {
@@ -22,6 +40,7 @@ public class Test {
     private static int port = 4444;
     private static String contentBackupPath = "./data/ContentServer/records/";
     private static String contentInputPath = "./data/ContentServer/input/";
+    private static String contentWatchPath = "./data/ContentServer/watch/";
 
     public static void main(String[] args) {
         try {
@@ -42,6 +61,81 @@ public class Test {
             testMultipleContentServerPUTs();
             Thread.sleep(testDelay);
 
+            testContentServerPATCH();
+            Thread.sleep(testDelay);
+
+            testDeduplicatedGET();
+            Thread.sleep(testDelay);
+
+            testParallelRender();
+            Thread.sleep(testDelay);
+
+            testEntryFragments();
+            Thread.sleep(testDelay);
+
+            testUpdatedOrderGET();
+            Thread.sleep(testDelay);
+
+            testFilteredGET();
+            Thread.sleep(testDelay);
+
+            testSearch();
+            Thread.sleep(testDelay);
+
+            testProjectedGET();
+            Thread.sleep(testDelay);
+
+            testTopics();
+            Thread.sleep(testDelay);
+
+            testFeedFormats();
+            Thread.sleep(testDelay);
+
+            testFrames();
+            Thread.sleep(testDelay);
+
+            testFrameFailures();
+            Thread.sleep(testDelay);
+
+            testPublishedGET();
+            Thread.sleep(testDelay);
+
+            testResponseHeaders();
+            Thread.sleep(testDelay);
+
+            testSlowClient();
+            Thread.sleep(testDelay);
+
+            testConnectionLimit();
+            Thread.sleep(testDelay);
+
+            testAdmissionControl();
+            Thread.sleep(testDelay);
+
+            testRateLimit();
+            Thread.sleep(testDelay);
+
+            testOutbox();
+            Thread.sleep(testDelay);
+
+            testAsyncGET();
+            Thread.sleep(testDelay);
+
+            testLamportLease();
+            Thread.sleep(testDelay);
+
+            testMemoryBudget();
+            Thread.sleep(testDelay);
+
+            testCompressedCache();
+            Thread.sleep(testDelay);
+
+            testContentHost();
+            Thread.sleep(testDelay);
+
+            testContentHostWatch();
+            Thread.sleep(testDelay);
+
             testAggregationJanitor();
             Thread.sleep(testDelay);
         }
@@ -53,7 +147,7 @@ public class Test {
     private static void testAggregationServerPersistence() {
         System.out.println("Testing that AggregationServer recovers from backup...");
 
-        int lamportTime1, lamportTime2;
+        long lamportTime1, lamportTime2;
 
         {
             System.out.println("✔ Initializing first AggregationServer");
@@ -89,11 +183,11 @@ public class Test {
             aggregationServer.cleanBackup();
         }
 
-        if (lamportTime1 == lamportTime2) {
-            System.out.println("✔ Lamport times match, indicating second server loaded from first server's backup");
+        if (lamportTime2 > lamportTime1) {
+            System.out.println("✔ Second server resumed past the Lamport time of the first, from its leased block");
         }
         else {
-            System.out.println("✗ Lamport times don't match");
+            System.out.println("✗ Second server didn't resume past the Lamport time of the first");
             System.exit(1);
         }
     }
@@ -406,6 +500,2042 @@ public class Test {
         contentServer2.cleanBackup();
     }
 
+    private static void testContentServerPATCH() {
+        System.out.println("Testing ContentServer PATCH of changed entries...");
+
+        File backupFile = new File(Test.contentBackupPath + "server.lock");
+        File inputFile = new File(Test.contentInputPath + "example1.txt");
+        AtomFeed originalFeed = new AtomFeed(inputFile);
+        AtomFeed changedFeed = new AtomFeed(inputFile);
+
+        AtomEntry changedEntry = new AtomEntry();
+        changedEntry.setId(changedFeed.getEntries().get(1).getId());
+        changedEntry.setTitle(changedFeed.getEntries().get(1).getTitle());
+        changedEntry.setSummary("This entry has been changed.");
+        changedFeed.getEntries().set(1, changedEntry);
+
+        AtomEntry addedEntry = new AtomEntry();
+        addedEntry.setId("urn::uuid:4b1c3f0e-62d7-4bd4-a1fa-4a4f4bb1a0c2");
+        addedEntry.setTitle("Entry C");
+        changedFeed.addEntry(addedEntry);
+
+        AtomDelta delta = AtomDelta.diff(originalFeed, changedFeed);
+
+        if (delta != null && delta.getEntries().size() == 2 && delta.getRemovals().isEmpty()) {
+            System.out.println("✔ Delta contains only the changed and added entries");
+        }
+        else {
+            System.out.println("✗ Delta doesn't contain only the changed and added entries");
+            System.exit(1);
+        }
+
+        AggregationServer aggregationServer = new AggregationServer(Test.port);
+        ContentServer contentServer = new ContentServer(Test.host, Test.port, backupFile);
+        GETClient client = new GETClient(Test.host, Test.port);
+
+        new Thread(aggregationServer).start();
+
+        try {
+            contentServer.send(originalFeed);
+            HTTPResponse response = contentServer.send(changedFeed);
+
+            if (response.statusCode == 200) {
+                System.out.println("✔ Response status code is 200");
+            }
+            else {
+                System.out.println("✗ Response status code is not 200");
+                System.exit(1);
+            }
+
+            AtomFeed newFeed = Common.unmarshalXML(client.get().body);
+
+            if (newFeed.getEntries().equals(changedFeed.getEntries())) {
+                System.out.println("✔ Aggregated feed matches the changed feed");
+            }
+            else {
+                System.out.println("✗ Aggregated feed doesn't match the changed feed");
+                System.exit(1);
+            }
+
+            // Add a new entry at the top of the feed, as feeds usually do.
+            AtomFeed prependedFeed = new AtomFeed(inputFile);
+            prependedFeed.getEntries().set(1, changedEntry);
+            prependedFeed.getEntries().add(addedEntry);
+            AtomEntry prependedEntry = new AtomEntry();
+            prependedEntry.setId("urn::uuid:9d0f9a64-2c55-4a5e-9a8e-7f3b1f6c0d21");
+            prependedEntry.setTitle("Entry D");
+            prependedFeed.getEntries().add(0, prependedEntry);
+
+            AtomDelta prependDelta = AtomDelta.diff(changedFeed, prependedFeed);
+            AtomDelta unmarshalledDelta = Common.unmarshalXML(Common.marshalXML(prependDelta),
+                                                              AtomDelta.class);
+            AtomFeed patchedFeed = new AtomFeed(inputFile);
+            patchedFeed.getEntries().set(1, changedEntry);
+            patchedFeed.getEntries().add(addedEntry);
+            unmarshalledDelta.applyTo(patchedFeed);
+
+            if (prependDelta != null && prependDelta.getEntries().size() == 1 &&
+                patchedFeed.getEntries().equals(prependedFeed.getEntries()) &&
+                Common.marshalXML(prependDelta).length() < Common.marshalXML(prependedFeed).length()) {
+                System.out.println("✔ Delta of a prepended entry carries only the entry and the new order");
+            }
+            else {
+                System.out.println("✗ Prepended entry couldn't be sent as a delta");
+                System.exit(1);
+            }
+
+            response = contentServer.send(prependedFeed);
+            newFeed = Common.unmarshalXML(client.get().body);
+
+            if (response.statusCode == 200 && newFeed.getEntries().equals(prependedFeed.getEntries())) {
+                System.out.println("✔ Aggregated feed matches the feed patched with a prepended entry");
+            }
+            else {
+                System.out.println("✗ Aggregated feed doesn't match the feed patched with a prepended entry");
+                System.exit(1);
+            }
+
+            File cacheFile = new File(Common.AGGREGATION_CACHE_BACKUP_PATH);
+            byte[] cached = Files.readAllBytes(cacheFile.toPath());
+            response = contentServer.send(prependedFeed);
+
+            if (response.statusCode == 200 &&
+                Arrays.equals(Files.readAllBytes(cacheFile.toPath()), cached)) {
+                System.out.println("✔ Unchanged feed sent again didn't rewrite the cache");
+            }
+            else {
+                System.out.println("✗ Unchanged feed sent again rewrote the cache");
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        aggregationServer.stop();
+        aggregationServer.cleanBackup();
+        contentServer.stop();
+        contentServer.cleanBackup();
+    }
+
+    private static void testDeduplicatedGET() {
+        System.out.println("Testing de-duplicated GET of entries syndicated by two ContentServers...");
+
+        File backupFile1 = new File(Test.contentBackupPath + "server1.lock");
+        File backupFile2 = new File(Test.contentBackupPath + "server2.lock");
+        File inputFile = new File(Test.contentInputPath + "example1.txt");
+        AtomFeed originalFeed = new AtomFeed(inputFile);
+        AtomFeed syndicatedFeed = new AtomFeed(inputFile);
+        syndicatedFeed.getEntries().forEach(entry -> entry.setSummary("Syndicated copy."));
+
+        AggregationServer aggregationServer = new AggregationServer(Test.port);
+        ContentServer contentServer1 = new ContentServer(Test.host, Test.port, backupFile1);
+        ContentServer contentServer2 = new ContentServer(Test.host, Test.port, backupFile2);
+        GETClient client = new GETClient(Test.host, Test.port);
+
+        new Thread(aggregationServer).start();
+
+        try {
+            contentServer1.send(originalFeed);
+            contentServer2.send(syndicatedFeed);
+
+            AtomFeed fullFeed = Common.unmarshalXML(client.get().body);
+            AtomFeed dedupedFeed = Common.unmarshalXML(client.get("feed?dedup=true").body);
+
+            if (fullFeed.getEntries().size() == originalFeed.getEntries().size() * 2) {
+                System.out.println("✔ Aggregated feed contains both copies of each entry by default");
+            }
+            else {
+                System.out.println("✗ Aggregated feed doesn't contain both copies of each entry by default");
+                System.exit(1);
+            }
+
+            if (dedupedFeed.getEntries().equals(syndicatedFeed.getEntries())) {
+                System.out.println("✔ De-duplicated feed contains only the newest copy of each entry");
+            }
+            else {
+                System.out.println("✗ De-duplicated feed doesn't contain only the newest copy of each entry");
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        aggregationServer.stop();
+        aggregationServer.cleanBackup();
+        contentServer1.stop();
+        contentServer1.cleanBackup();
+        contentServer2.stop();
+        contentServer2.cleanBackup();
+    }
+
+    private static void testParallelRender() {
+        System.out.println("Testing AggregationServer assembling the aggregated feed in parallel...");
+
+        File backupFile1 = new File(Test.contentBackupPath + "server1.lock");
+        File backupFile2 = new File(Test.contentBackupPath + "server2.lock");
+        File backupFile3 = new File(Test.contentBackupPath + "server3.lock");
+        File inputFile1 = new File(Test.contentInputPath + "example1.txt");
+        File inputFile2 = new File(Test.contentInputPath + "example2.txt");
+        AtomFeed originalFeed1 = new AtomFeed(inputFile1);
+        AtomFeed originalFeed2 = new AtomFeed(inputFile2);
+        AtomFeed syndicatedFeed = new AtomFeed(inputFile1);
+        syndicatedFeed.getEntries().forEach(entry -> entry.setSummary("Syndicated copy."));
+
+        AggregationServer aggregationServer = new AggregationServer(Test.port);
+        ContentServer contentServer1 = new ContentServer(Test.host, Test.port, backupFile1);
+        ContentServer contentServer2 = new ContentServer(Test.host, Test.port, backupFile2);
+        ContentServer contentServer3 = new ContentServer(Test.host, Test.port, backupFile3);
+        GETClient client = new GETClient(Test.host, Test.port);
+
+        aggregationServer.setRenderThreshold(1);
+        new Thread(aggregationServer).start();
+
+        try {
+            contentServer1.send(originalFeed1);
+            contentServer2.send(originalFeed2);
+            contentServer3.send(syndicatedFeed);
+
+            ArrayList<AtomEntry> originalEntries = new ArrayList<>(originalFeed1.getEntries());
+            originalEntries.addAll(originalFeed2.getEntries());
+            originalEntries.addAll(syndicatedFeed.getEntries());
+            AtomFeed fullFeed = Common.unmarshalXML(client.get().body);
+
+            if (fullFeed.getEntries().equals(originalEntries)) {
+                System.out.println("✔ Feed assembled in parallel contains every entry, in order");
+            }
+            else {
+                System.out.println("✗ Feed assembled in parallel is missing entries or out of order");
+                System.exit(1);
+            }
+
+            ArrayList<AtomEntry> dedupedEntries = new ArrayList<>(originalFeed2.getEntries());
+            dedupedEntries.addAll(syndicatedFeed.getEntries());
+            AtomFeed dedupedFeed = Common.unmarshalXML(client.get("feed?dedup=true").body);
+
+            if (dedupedFeed.getEntries().equals(dedupedEntries)) {
+                System.out.println("✔ De-duplicated feed assembled in parallel contains only the newest copies");
+            }
+            else {
+                System.out.println("✗ De-duplicated feed assembled in parallel contains stale copies");
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        aggregationServer.stop();
+        aggregationServer.cleanBackup();
+        contentServer1.stop();
+        contentServer1.cleanBackup();
+        contentServer2.stop();
+        contentServer2.cleanBackup();
+        contentServer3.stop();
+        contentServer3.cleanBackup();
+    }
+
+    private static void testEntryFragments() {
+        System.out.println("Testing that the feed assembled from entry fragments is marshalled exactly...");
+
+        File backupFile = new File(Test.contentBackupPath + "fragments.lock");
+        AtomFeed feed = new AtomFeed(new File(Test.contentInputPath + "example1.txt"));
+        AtomEntry entry = feed.getEntries().get(0);
+        entry.setTitle("A title\n  over two lines");
+        entry.setSummary("A summary\n\nwith a blank line,\n    an indented line\nand a trailing newline\n");
+
+        AggregationCache cache = new AggregationCache(backupFile,
+                                                      Test.contentBackupPath + "fragments-spill-",
+                                                      Test.contentBackupPath + "fragments-render-");
+
+        try {
+            cache.putFeed(UUID.randomUUID(), feed, null);
+            String assembled = new String(cache.render(false, CompactFeed.ALL_FIELDS, FeedFormat.XML),
+                                          StandardCharsets.UTF_8);
+
+            AtomFeed entriesOnly = new AtomFeed();
+            for (AtomEntry e : feed.getEntries()) {
+                entriesOnly.addEntry(e);
+            }
+
+            if (assembled.equals(Common.marshalXML(entriesOnly))) {
+                System.out.println("✔ Assembled feed matches the marshalled feed, multi-line text included");
+            }
+            else {
+                System.out.println("✗ Assembled feed differs from the marshalled feed");
+                System.exit(1);
+            }
+
+            cache.feeds.deleteSpills();
+            cache.clearRenders();
+            Files.deleteIfExists(backupFile.toPath());
+            Files.deleteIfExists(LamportClock.getLeaseFile(backupFile).toPath());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void testUpdatedOrderGET() {
+        System.out.println("Testing GET of entries ordered by updated time...");
+
+        File backupFile1 = new File(Test.contentBackupPath + "server1.lock");
+        File backupFile2 = new File(Test.contentBackupPath + "server2.lock");
+        File inputFile1 = new File(Test.contentInputPath + "example1.txt");
+        File inputFile2 = new File(Test.contentInputPath + "example2.txt");
+        AtomFeed originalFeed1 = new AtomFeed(inputFile1);
+        AtomFeed originalFeed2 = new AtomFeed(inputFile2);
+        originalFeed1.getEntries().get(0).setUpdated("2019-10-10T10:00:00Z");
+        originalFeed1.getEntries().get(1).setUpdated("2019-10-10T12:00:00Z");
+        originalFeed2.getEntries().get(0).setUpdated("2019-10-10T11:00:00Z");
+        originalFeed2.getEntries().get(1).setUpdated("2019-10-10T15:00:00+02:00");
+
+        AggregationServer aggregationServer = new AggregationServer(Test.port);
+        ContentServer contentServer1 = new ContentServer(Test.host, Test.port, backupFile1);
+        ContentServer contentServer2 = new ContentServer(Test.host, Test.port, backupFile2);
+        GETClient client = new GETClient(Test.host, Test.port);
+
+        new Thread(aggregationServer).start();
+
+        try {
+            contentServer1.send(originalFeed1);
+            contentServer2.send(originalFeed2);
+
+            ArrayList<AtomEntry> newestEntries = new ArrayList<>();
+            newestEntries.add(originalFeed2.getEntries().get(1));
+            newestEntries.add(originalFeed1.getEntries().get(1));
+            newestEntries.add(originalFeed2.getEntries().get(0));
+            newestEntries.add(originalFeed1.getEntries().get(0));
+            AtomFeed orderedFeed = Common.unmarshalXML(client.get("feed?order=updated").body);
+
+            if (orderedFeed.getEntries().equals(newestEntries)) {
+                System.out.println("✔ Entries from all feeds are ordered newest first");
+            }
+            else {
+                System.out.println("✗ Entries from all feeds aren't ordered newest first");
+                System.exit(1);
+            }
+
+            AtomFeed limitedFeed = Common.unmarshalXML(client.get("feed?order=updated&limit=2").body);
+
+            if (limitedFeed.getEntries().equals(newestEntries.subList(0, 2))) {
+                System.out.println("✔ Limited feed contains only the newest entries");
+            }
+            else {
+                System.out.println("✗ Limited feed doesn't contain only the newest entries");
+                System.exit(1);
+            }
+
+            for (int limit = 1; limit <= 2 * Common.AGGREGATION_RENDER_VARIANTS; limit++) {
+                client.get("feed?order=updated&limit=" + limit);
+            }
+            File renderPrefix = new File(Common.AGGREGATION_RENDER_PATH);
+            File[] renders = renderPrefix.getAbsoluteFile().getParentFile().listFiles(file ->
+                file.getName().startsWith(renderPrefix.getName()));
+
+            if (renders.length <= Common.AGGREGATION_RENDER_VARIANTS) {
+                System.out.println("✔ Feeds published for many limits were bounded to " + renders.length + " files");
+            }
+            else {
+                System.out.println("✗ Feeds published for many limits weren't bounded");
+                System.exit(1);
+            }
+
+            if (client.get("feed?order=sideways").statusCode == 400) {
+                System.out.println("✔ Unknown order was refused with 400");
+            }
+            else {
+                System.out.println("✗ Unknown order wasn't refused with 400");
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        aggregationServer.stop();
+        aggregationServer.cleanBackup();
+        contentServer1.stop();
+        contentServer1.cleanBackup();
+        contentServer2.stop();
+        contentServer2.cleanBackup();
+    }
+
+    private static void testFilteredGET() {
+        System.out.println("Testing GET of entries filtered by author, source and time...");
+
+        File backupFile1 = new File(Test.contentBackupPath + "server1.lock");
+        File backupFile2 = new File(Test.contentBackupPath + "server2.lock");
+        File inputFile1 = new File(Test.contentInputPath + "example1.txt");
+        File inputFile2 = new File(Test.contentInputPath + "example2.txt");
+        AtomFeed originalFeed1 = new AtomFeed(inputFile1);
+        AtomFeed originalFeed2 = new AtomFeed(inputFile2);
+        originalFeed2.getAuthor().setName("Someone Else");
+        originalFeed1.getEntries().get(0).setUpdated("2019-10-10T10:00:00Z");
+        originalFeed1.getEntries().get(1).setUpdated("2019-10-10T12:00:00Z");
+        originalFeed2.getEntries().get(0).setUpdated("2019-10-10T11:00:00Z");
+        originalFeed2.getEntries().get(1).setUpdated("2019-10-10T13:00:00Z");
+
+        AggregationServer aggregationServer = new AggregationServer(Test.port);
+        ContentServer contentServer1 = new ContentServer(Test.host, Test.port, backupFile1);
+        ContentServer contentServer2 = new ContentServer(Test.host, Test.port, backupFile2);
+        GETClient client = new GETClient(Test.host, Test.port);
+
+        new Thread(aggregationServer).start();
+
+        try {
+            contentServer1.send(originalFeed1);
+            contentServer2.send(originalFeed2);
+
+            AtomFeed authorFeed = Common.unmarshalXML(client.get("feed?author=Someone+Else").body);
+
+            if (authorFeed.getEntries().equals(originalFeed2.getEntries())) {
+                System.out.println("✔ Feed filtered by author contains only that author's entries");
+            }
+            else {
+                System.out.println("✗ Feed filtered by author doesn't contain only that author's entries");
+                System.exit(1);
+            }
+
+            AtomFeed sourceFeed = Common.unmarshalXML(client.get("feed?source=" + originalFeed1.getId()).body);
+
+            if (sourceFeed.getEntries().equals(originalFeed1.getEntries())) {
+                System.out.println("✔ Feed filtered by source contains only that feed's entries");
+            }
+            else {
+                System.out.println("✗ Feed filtered by source doesn't contain only that feed's entries");
+                System.exit(1);
+            }
+
+            ArrayList<AtomEntry> windowEntries = new ArrayList<>();
+            windowEntries.add(originalFeed1.getEntries().get(1));
+            windowEntries.add(originalFeed2.getEntries().get(0));
+            AtomFeed windowFeed = Common.unmarshalXML(
+                client.get("feed?since=2019-10-10T11:00:00Z&until=2019-10-10T12:00:00Z").body);
+
+            if (windowFeed.getEntries().equals(windowEntries)) {
+                System.out.println("✔ Feed filtered by time contains only entries in the window, in order");
+            }
+            else {
+                System.out.println("✗ Feed filtered by time doesn't contain only entries in the window");
+                System.exit(1);
+            }
+
+            if (client.get("feed?since=yesterday").statusCode == 400) {
+                System.out.println("✔ Malformed time was refused with 400");
+            }
+            else {
+                System.out.println("✗ Malformed time wasn't refused with 400");
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        aggregationServer.stop();
+        aggregationServer.cleanBackup();
+        contentServer1.stop();
+        contentServer1.cleanBackup();
+        contentServer2.stop();
+        contentServer2.cleanBackup();
+    }
+
+    private static void testSearch() {
+        System.out.println("Testing full-text search of cached entries...");
+
+        File backupFile1 = new File(Test.contentBackupPath + "server1.lock");
+        File backupFile2 = new File(Test.contentBackupPath + "server2.lock");
+        File inputFile1 = new File(Test.contentInputPath + "example1.txt");
+        File inputFile2 = new File(Test.contentInputPath + "example2.txt");
+        AtomFeed originalFeed1 = new AtomFeed(inputFile1);
+        AtomFeed originalFeed2 = new AtomFeed(inputFile2);
+
+        AggregationServer aggregationServer = new AggregationServer(Test.port);
+        ContentServer contentServer1 = new ContentServer(Test.host, Test.port, backupFile1);
+        ContentServer contentServer2 = new ContentServer(Test.host, Test.port, backupFile2);
+        GETClient client = new GETClient(Test.host, Test.port);
+
+        new Thread(aggregationServer).start();
+
+        try {
+            contentServer1.send(originalFeed1);
+            contentServer2.send(originalFeed2);
+
+            AtomFeed resultFeed = Common.unmarshalXML(client.get("search?q=entry+c&limit=1").body);
+
+            if (resultFeed.getEntries().equals(originalFeed2.getEntries().subList(0, 1))) {
+                System.out.println("✔ Best matching entry was ranked first");
+            }
+            else {
+                System.out.println("✗ Best matching entry wasn't ranked first");
+                System.exit(1);
+            }
+
+            AtomFeed updatedFeed = new AtomFeed(inputFile2);
+            updatedFeed.getEntries().get(1).setTitle("Renamed Entry");
+            contentServer2.send(updatedFeed);
+            AtomFeed renamedFeed = Common.unmarshalXML(client.get("search?q=renamed").body);
+
+            if (renamedFeed.getEntries().equals(updatedFeed.getEntries().subList(1, 2))) {
+                System.out.println("✔ Search index was updated when the feed was replaced");
+            }
+            else {
+                System.out.println("✗ Search index wasn't updated when the feed was replaced");
+                System.exit(1);
+            }
+
+            SearchIndex index = new SearchIndex();
+            CompactFeed compactFeed1 = new CompactFeed(originalFeed1);
+            CompactFeed compactFeed2 = new CompactFeed(updatedFeed);
+            UUID uuid1 = UUID.randomUUID();
+            UUID uuid2 = UUID.randomUUID();
+            index.add(uuid1, compactFeed1);
+            AtomicBoolean isSearching = new AtomicBoolean(true);
+            Exception[] searchFailure = { null };
+
+            Thread searcher = new Thread(() -> {
+                try {
+                    while (isSearching.get()) {
+                        for (SearchIndex.Hit hit : index.search("entry renamed", 10)) {
+                            if (hit.uuid == null || hit.position < 0) throw new IllegalStateException();
+                        }
+                    }
+                }
+                catch (Exception e) {
+                    searchFailure[0] = e;
+                }
+            });
+            searcher.start();
+            for (int i = 0; i < 10000; i++) {
+                index.add(uuid2, compactFeed2);
+                index.remove(uuid2, compactFeed2);
+            }
+            index.add(uuid2, compactFeed2);
+            isSearching.set(false);
+            searcher.join();
+
+            List<SearchIndex.Hit> hits = index.search("renamed", 10);
+            if (searchFailure[0] == null && hits.size() == 1 &&
+                hits.get(0).uuid.equals(uuid2) && hits.get(0).position == 1) {
+                System.out.println("✔ Searches ran alongside concurrent index updates and saw the final index");
+            }
+            else {
+                System.out.println("✗ Searches failed alongside concurrent index updates");
+                System.exit(1);
+            }
+
+            if (index.documents() <= 2 * SearchIndex.COMPACTION_THRESHOLD) {
+                System.out.println("✔ Removed entries were compacted out of the index");
+            }
+            else {
+                System.out.println("✗ Removed entries weren't compacted out of the index");
+                System.exit(1);
+            }
+
+            if (client.get("search").statusCode == 400) {
+                System.out.println("✔ Search without a query was refused with 400");
+            }
+            else {
+                System.out.println("✗ Search without a query wasn't refused with 400");
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        aggregationServer.stop();
+        aggregationServer.cleanBackup();
+        contentServer1.stop();
+        contentServer1.cleanBackup();
+        contentServer2.stop();
+        contentServer2.cleanBackup();
+    }
+
+    private static void testProjectedGET() {
+        System.out.println("Testing GET of entries projected onto some of their fields...");
+
+        File backupFile = new File(Test.contentBackupPath + "server1.lock");
+        File inputFile = new File(Test.contentInputPath + "example1.txt");
+        AtomFeed originalFeed = new AtomFeed(inputFile);
+
+        AggregationServer aggregationServer = new AggregationServer(Test.port);
+        ContentServer contentServer = new ContentServer(Test.host, Test.port, backupFile);
+        GETClient client = new GETClient(Test.host, Test.port);
+
+        new Thread(aggregationServer).start();
+
+        try {
+            contentServer.send(originalFeed);
+
+            AtomFeed summaryView = new AtomFeed(inputFile);
+            summaryView.getEntries().forEach(entry -> {
+                entry.setId(null);
+                entry.setAuthor(null);
+                entry.setSummary(null);
+            });
+            AtomFeed summaryFeed = Common.unmarshalXML(client.get("feed?view=summary").body);
+
+            if (summaryFeed.getEntries().equals(summaryView.getEntries())) {
+                System.out.println("✔ Summary view contains only titles, links and updated times");
+            }
+            else {
+                System.out.println("✗ Summary view doesn't contain only titles, links and updated times");
+                System.exit(1);
+            }
+
+            AtomFeed fieldsView = new AtomFeed(inputFile);
+            fieldsView.getEntries().forEach(entry -> {
+                entry.setTitle(null);
+                entry.setLink(null);
+                entry.setUpdated(null);
+                entry.setAuthor(null);
+            });
+            AtomFeed fieldsFeed = Common.unmarshalXML(client.get("feed?fields=id,summary").body);
+
+            if (fieldsFeed.getEntries().equals(fieldsView.getEntries())) {
+                System.out.println("✔ Projected feed contains only the requested fields");
+            }
+            else {
+                System.out.println("✗ Projected feed doesn't contain only the requested fields");
+                System.exit(1);
+            }
+
+            FeedStore store = new FeedStore(Common.AGGREGATION_SPILL_PATH, Long.MAX_VALUE, false);
+            UUID uuid = UUID.randomUUID();
+            CompactFeed compactFeed = new CompactFeed(originalFeed);
+            store.put(uuid, compactFeed);
+            long unprojectedBytes = store.residentBytes();
+
+            for (int fields = 1; fields < CompactFeed.ALL_FIELDS; fields++) {
+                for (int i = 0; i < compactFeed.size(); i++) {
+                    compactFeed.fragment(i, fields, FeedFormat.XML);
+                }
+            }
+            store.remeasure();
+
+            if (store.residentBytes() > unprojectedBytes &&
+                compactFeed.projections() == Common.AGGREGATION_CACHE_PROJECTIONS) {
+                System.out.println("✔ Projected fragments were bounded and counted against the budget");
+            }
+            else {
+                System.out.println("✗ Projected fragments weren't bounded or counted against the budget");
+                System.exit(1);
+            }
+
+            if (client.get("feed?fields=title,colour").statusCode == 400) {
+                System.out.println("✔ Unknown field was refused with 400");
+            }
+            else {
+                System.out.println("✗ Unknown field wasn't refused with 400");
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        aggregationServer.stop();
+        aggregationServer.cleanBackup();
+        contentServer.stop();
+        contentServer.cleanBackup();
+    }
+
+    private static void testTopics() {
+        System.out.println("Testing named topic feeds...");
+
+        File backupFile1 = new File(Test.contentBackupPath + "server1.lock");
+        File backupFile2 = new File(Test.contentBackupPath + "server2.lock");
+        File inputFile1 = new File(Test.contentInputPath + "example1.txt");
+        File inputFile2 = new File(Test.contentInputPath + "example2.txt");
+        AtomFeed originalFeed1 = new AtomFeed(inputFile1);
+        AtomFeed originalFeed2 = new AtomFeed(inputFile2);
+
+        AggregationServer aggregationServer = new AggregationServer(Test.port);
+        ContentServer contentServer1 = new ContentServer(Test.host, Test.port, "alpha", backupFile1);
+        ContentServer contentServer2 = new ContentServer(Test.host, Test.port, "beta", backupFile2);
+        GETClient client = new GETClient(Test.host, Test.port);
+
+        new Thread(aggregationServer).start();
+
+        try {
+            contentServer1.send(originalFeed1);
+            contentServer2.send(originalFeed2);
+
+            AtomFeed alphaFeed = Common.unmarshalXML(client.get("feed/alpha").body);
+            AtomFeed betaFeed = Common.unmarshalXML(client.get("feed/beta").body);
+
+            if (alphaFeed.getEntries().equals(originalFeed1.getEntries()) &&
+                betaFeed.getEntries().equals(originalFeed2.getEntries())) {
+                System.out.println("✔ Each topic aggregated only its own feeds");
+            }
+            else {
+                System.out.println("✗ Topics didn't aggregate only their own feeds");
+                System.exit(1);
+            }
+
+            AtomFeed defaultFeed = Common.unmarshalXML(client.get("feed").body);
+
+            if (defaultFeed.getEntries() == null || defaultFeed.getEntries().isEmpty()) {
+                System.out.println("✔ Default feed was unaffected by topic PUTs");
+            }
+            else {
+                System.out.println("✗ Default feed was affected by topic PUTs");
+                System.exit(1);
+            }
+
+            if (client.get("feed/gamma").statusCode == 404) {
+                System.out.println("✔ GET of an unknown topic was refused with 404");
+            }
+            else {
+                System.out.println("✗ GET of an unknown topic wasn't refused with 404");
+                System.exit(1);
+            }
+
+            aggregationServer.setMemoryBudget(3 * 1024 * 1024);
+
+            if (aggregationServer.memoryBudget(AggregationTopics.DEFAULT_TOPIC) == 1024 * 1024 &&
+                aggregationServer.memoryBudget("alpha") == 1024 * 1024 &&
+                aggregationServer.memoryBudget("beta") == 1024 * 1024) {
+                System.out.println("✔ Memory budget was shared between all topics");
+            }
+            else {
+                System.out.println("✗ Memory budget wasn't shared between all topics");
+                System.exit(1);
+            }
+
+            aggregationServer.setTopicLimit(2);
+            ContentServer contentServer3 = new ContentServer(Test.host, Test.port, "gamma",
+                                                             new File(Test.contentBackupPath + "server3.lock"));
+            HTTPResponse refused = contentServer3.send(originalFeed1);
+            contentServer3.stop();
+            contentServer3.cleanBackup();
+
+            if (refused.statusCode == 403 && client.get("feed/gamma").statusCode == 404) {
+                System.out.println("✔ PUT creating a topic past the limit was refused with 403");
+            }
+            else {
+                System.out.println("✗ PUT creating a topic past the limit wasn't refused with 403");
+                System.exit(1);
+            }
+
+            aggregationServer.stop();
+            Thread.sleep(100);
+            aggregationServer = new AggregationServer(Test.port);
+            new Thread(aggregationServer).start();
+
+            AtomFeed restoredFeed = Common.unmarshalXML(client.get("feed/alpha").body);
+
+            if (restoredFeed.getEntries().equals(originalFeed1.getEntries())) {
+                System.out.println("✔ Topic was restored from its backup");
+            }
+            else {
+                System.out.println("✗ Topic wasn't restored from its backup");
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        aggregationServer.stop();
+        aggregationServer.cleanBackup();
+        contentServer1.stop();
+        contentServer1.cleanBackup();
+        contentServer2.stop();
+        contentServer2.cleanBackup();
+    }
+
+    private static void testFeedFormats() {
+        System.out.println("Testing GET of the aggregated feed as JSON and compact XML...");
+
+        File backupFile = new File(Test.contentBackupPath + "server1.lock");
+        File inputFile = new File(Test.contentInputPath + "example1.txt");
+        AtomFeed originalFeed = new AtomFeed(inputFile);
+
+        AggregationServer aggregationServer = new AggregationServer(Test.port);
+        ContentServer contentServer = new ContentServer(Test.host, Test.port, backupFile);
+        GETClient client = new GETClient(Test.host, Test.port);
+
+        new Thread(aggregationServer).start();
+
+        try {
+            contentServer.send(originalFeed);
+
+            StringWriter items = new StringWriter();
+            JSONFeedWriter writer = new JSONFeedWriter(items);
+            for (AtomEntry entry : originalFeed.getEntries()) {
+                if (items.getBuffer().length() > 0) items.write(",\n");
+                writer.writeItem(entry);
+            }
+            HTTPResponse response = client.get("feed", "application/feed+json");
+
+            if (response.body.startsWith("{\"version\":\"" + JSONFeedWriter.VERSION + "\"") &&
+                response.body.endsWith("\"items\":[\n" + items + "\n]}\n") &&
+                "application/feed+json".equals(response.contentType)) {
+                System.out.println("✔ JSON Feed was sent when JSON was accepted");
+            }
+            else {
+                System.out.println("✗ JSON Feed wasn't sent when JSON was accepted");
+                System.exit(1);
+            }
+
+            response = client.get("feed?fields=title", "application/feed+json");
+            boolean hasIds = true;
+            for (AtomEntry entry : originalFeed.getEntries()) {
+                hasIds &= response.body.contains("{\"id\":\"" + entry.getId() + "\",\"title\":");
+            }
+
+            if (hasIds && !response.body.contains("\"summary\"")) {
+                System.out.println("✔ Projected JSON Feed items kept their required ids");
+            }
+            else {
+                System.out.println("✗ Projected JSON Feed items lost their required ids");
+                System.exit(1);
+            }
+
+            response = client.get("feed?compact", "application/xml");
+            AtomFeed compactFeed = Common.unmarshalXML(response.body);
+
+            if (compactFeed.getEntries().equals(originalFeed.getEntries()) &&
+                response.body.split("\n").length == 2) {
+                System.out.println("✔ Compact XML feed contains every entry without indentation");
+            }
+            else {
+                System.out.println("✗ Compact XML feed isn't complete and unindented");
+                System.exit(1);
+            }
+
+            AtomFeed resultFeed = Common.unmarshalXML(client.get("feed", "text/html, */*").body);
+
+            if (resultFeed.getEntries().equals(originalFeed.getEntries())) {
+                System.out.println("✔ XML feed was sent when any type was accepted");
+            }
+            else {
+                System.out.println("✗ XML feed wasn't sent when any type was accepted");
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        aggregationServer.stop();
+        aggregationServer.cleanBackup();
+        contentServer.stop();
+        contentServer.cleanBackup();
+    }
+
+    private static void testFrames() {
+        System.out.println("Testing binary frame ingestion...");
+
+        File backupFile = new File(Test.contentBackupPath + "server1.lock");
+        File inputFile = new File(Test.contentInputPath + "example1.txt");
+        AtomFeed originalFeed = new AtomFeed(inputFile);
+        int framePort = Test.port + 1;
+
+        AggregationServer aggregationServer = new AggregationServer(Test.port);
+        ContentServer contentServer = new ContentServer(Test.host, Test.port, backupFile);
+        GETClient client = new GETClient(Test.host, Test.port);
+
+        try {
+            aggregationServer.listenForFrames(framePort);
+            new Thread(aggregationServer).start();
+            contentServer.useFrames(framePort);
+
+            HTTPResponse response = contentServer.send(originalFeed);
+            AtomFeed resultFeed = Common.unmarshalXML(client.get().body);
+
+            if (response.statusCode == 201 &&
+                resultFeed.getEntries().equals(originalFeed.getEntries())) {
+                System.out.println("✔ Feed frame was acked with 201 and aggregated");
+            }
+            else {
+                System.out.println("✗ Feed frame wasn't acked with 201 and aggregated");
+                System.exit(1);
+            }
+
+            long lamportTime = aggregationServer.lamportTime();
+            contentServer.beat();
+            response = contentServer.send(originalFeed);
+
+            if (response.statusCode == 200 && aggregationServer.lamportTime() > lamportTime) {
+                System.out.println("✔ Heartbeat and repeated feed frames shared the connection");
+            }
+            else {
+                System.out.println("✗ Heartbeat and repeated feed frames weren't acked");
+                System.exit(1);
+            }
+
+            FrameClient frames = new FrameClient(Test.host, framePort);
+            Frame ack = frames.send(new Frame(Frame.FEED, contentServer.uuid(), 0, new byte[] { 1, 2, 3 }));
+            frames.close();
+
+            if (ack.statusCode() == 400) {
+                System.out.println("✔ Malformed feed frame was refused with 400");
+            }
+            else {
+                System.out.println("✗ Malformed feed frame wasn't refused with 400");
+                System.exit(1);
+            }
+
+            // Send only the head of an oversized frame; the server must ack
+            // it without waiting for the body.
+            try (Socket socket = new Socket(Test.host, framePort)) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeByte(Frame.FEED);
+                out.writeInt(Common.FRAME_MAX_LENGTH + 1);
+                out.writeLong(0);
+                out.writeLong(0);
+                out.writeLong(0);
+                out.flush();
+                ack = Frame.read(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+            }
+
+            if (ack.statusCode() == 413) {
+                System.out.println("✔ Oversized feed frame was refused with 413");
+            }
+            else {
+                System.out.println("✗ Oversized feed frame wasn't refused with 413");
+                System.exit(1);
+            }
+
+            aggregationServer.setRateLimit(1, 1);
+            frames = new FrameClient(Test.host, framePort);
+            byte[] body = Frame.encodeFeed(originalFeed);
+            frames.send(new Frame(Frame.FEED, contentServer.uuid(), 0, body));
+            ack = frames.send(new Frame(Frame.FEED, contentServer.uuid(), 0, body));
+            frames.close();
+
+            if (ack.statusCode() == 429) {
+                System.out.println("✔ Feed frame over the publisher's rate was refused with 429");
+            }
+            else {
+                System.out.println("✗ Feed frame over the publisher's rate wasn't refused with 429");
+                System.exit(1);
+            }
+
+            // Trickle a frame's head a byte at a time, each well within the
+            // socket timeout, for longer than the deadline for the body.
+            boolean isClosed = false;
+            try (Socket socket = new Socket(Test.host, framePort)) {
+                OutputStream slowOut = socket.getOutputStream();
+                slowOut.write(Frame.FEED);
+                slowOut.flush();
+                for (int i = 0; i < 2 * Common.AGGREGATION_BODY_TIMEOUT / 250 && !isClosed; i++) {
+                    Thread.sleep(250);
+                    try {
+                        slowOut.write(0);
+                        slowOut.flush();
+                    }
+                    catch (SocketException e) {
+                        isClosed = true;
+                    }
+                }
+            }
+
+            if (isClosed && aggregationServer.timeouts(AggregationWatchdog.BODY) == 1) {
+                System.out.println("✔ Slow frame was cut off and counted as a timeout");
+            }
+            else {
+                System.out.println("✗ Slow frame wasn't cut off by the watchdog");
+                System.exit(1);
+            }
+
+            aggregationServer.setAdmissionLimit(AggregationAdmission.PUT, 0);
+            frames = new FrameClient(Test.host, framePort);
+            ack = frames.send(new Frame(Frame.FEED, contentServer.uuid(), 0, body));
+            frames.close();
+
+            if (ack.statusCode() == 503 && aggregationServer.shed(AggregationAdmission.PUT) == 1) {
+                System.out.println("✔ Feed frame that wasn't admitted was shed with 503");
+            }
+            else {
+                System.out.println("✗ Feed frame that wasn't admitted wasn't shed");
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        aggregationServer.stop();
+        aggregationServer.cleanBackup();
+        contentServer.stop();
+        contentServer.cleanBackup();
+    }
+
+    private static void testFrameFailures() {
+        System.out.println("Testing that failed frames are queued and don't stop the heartbeat...");
+
+        File backupFile = new File(Test.contentBackupPath + "server1.lock");
+        File inputFile = new File(Test.contentInputPath + "example1.txt");
+        int framePort = Test.port + 1;
+
+        ContentServer contentServer = new ContentServer(Test.host, Test.port, backupFile);
+        int[] accepted = new int[1];
+
+        // A frame port that hangs up on every connection without a word, so
+        // that each frame fails with an EOFException rather than being
+        // refused a connection.
+        try (ServerSocket hangUp = new ServerSocket(framePort)) {
+            new Thread(() -> {
+                try {
+                    while (true) {
+                        hangUp.accept().close();
+                        synchronized (accepted) {
+                            accepted[0]++;
+                        }
+                    }
+                }
+                catch (Exception e) {
+                    // The socket has been closed.
+                }
+            }).start();
+
+            contentServer.useFrames(framePort);
+            HTTPResponse response = contentServer.put(inputFile);
+
+            if (response.statusCode == 202 && contentServer.outboxSize() == 1) {
+                System.out.println("✔ Failed feed frame was queued in the outbox");
+            }
+            else {
+                System.out.println("✗ Failed feed frame wasn't queued in the outbox");
+                System.exit(1);
+            }
+
+            Thread.sleep(Common.CONTENT_HEARTBEAT_INTERVAL + 500);
+            int before;
+            synchronized (accepted) {
+                before = accepted[0];
+            }
+            Thread.sleep(2 * Common.CONTENT_HEARTBEAT_INTERVAL);
+            int after;
+            synchronized (accepted) {
+                after = accepted[0];
+            }
+
+            if (after > before) {
+                System.out.println("✔ Heartbeat kept beating after beats failed mid-connection");
+            }
+            else {
+                System.out.println("✗ Heartbeat stopped after a beat failed mid-connection");
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        contentServer.stop();
+        contentServer.cleanBackup();
+    }
+
+    private static void testPublishedGET() {
+        System.out.println("Testing GET of the aggregated feed from a published file...");
+
+        File backupFile = new File(Test.contentBackupPath + "server1.lock");
+        File inputFile1 = new File(Test.contentInputPath + "example1.txt");
+        File inputFile2 = new File(Test.contentInputPath + "example2.txt");
+        File renderFile = new File(Common.AGGREGATION_RENDER_PATH + "0");
+
+        AggregationServer aggregationServer = new AggregationServer(Test.port);
+        ContentServer contentServer = new ContentServer(Test.host, Test.port, backupFile);
+        GETClient client = new GETClient(Test.host, Test.port);
+
+        new Thread(aggregationServer).start();
+
+        try {
+            contentServer.send(new AtomFeed(inputFile1));
+            String firstBody = client.get().body;
+            String secondBody = client.get().body;
+
+            if (renderFile.exists() && secondBody.equals(firstBody) &&
+                Common.unmarshalXML(secondBody).getEntries()
+                    .equals(new AtomFeed(inputFile1).getEntries())) {
+                System.out.println("✔ Aggregated feed was published once and sent from its file");
+            }
+            else {
+                System.out.println("✗ Aggregated feed wasn't sent from its published file");
+                System.exit(1);
+            }
+
+            contentServer.send(new AtomFeed(inputFile2));
+            AtomFeed resultFeed = Common.unmarshalXML(client.get().body);
+
+            if (!renderFile.exists() &&
+                resultFeed.getEntries().equals(new AtomFeed(inputFile2).getEntries())) {
+                System.out.println("✔ Published file was replaced when the cache changed");
+            }
+            else {
+                System.out.println("✗ Published file wasn't replaced when the cache changed");
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        aggregationServer.stop();
+        aggregationServer.cleanBackup();
+        contentServer.stop();
+        contentServer.cleanBackup();
+    }
+
+    private static void testResponseHeaders() {
+        System.out.println("Testing response heads written by the ResponseWriter...");
+
+        File backupFile = new File(Test.contentBackupPath + "server1.lock");
+        File inputFile = new File(Test.contentInputPath + "example1.txt");
+
+        AggregationServer aggregationServer = new AggregationServer(Test.port);
+        ContentServer contentServer = new ContentServer(Test.host, Test.port, backupFile);
+        GETClient client = new GETClient(Test.host, Test.port);
+
+        new Thread(aggregationServer).start();
+
+        try {
+            contentServer.send(new AtomFeed(inputFile));
+            HTTPResponse published = client.get();
+            HTTPResponse filtered = client.get("feed?author=Robert+Woods");
+            HTTPResponse missing = client.get("feed/gamma");
+
+            if (published.contentLength == published.body.getBytes(StandardCharsets.UTF_8).length + 1 &&
+                filtered.contentLength == filtered.body.getBytes(StandardCharsets.UTF_8).length + 1 &&
+                missing.statusCode == 404 && missing.contentLength == 1) {
+                System.out.println("✔ Content-Length matched the body sent");
+            }
+            else {
+                System.out.println("✗ Content-Length didn't match the body sent");
+                System.exit(1);
+            }
+
+            if (missing.lamportTime > filtered.lamportTime &&
+                filtered.lamportTime > published.lamportTime) {
+                System.out.println("✔ Lamport times were written in order");
+            }
+            else {
+                System.out.println("✗ Lamport times weren't written in order");
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        aggregationServer.stop();
+        aggregationServer.cleanBackup();
+        contentServer.stop();
+        contentServer.cleanBackup();
+    }
+
+    private static void testConnectionLimit() {
+        System.out.println("Testing that connections past the limit wait for a place...");
+
+        AggregationServer aggregationServer = new AggregationServer(Test.port);
+        GETClient client = new GETClient(Test.host, Test.port);
+
+        aggregationServer.setConnectionLimit(1);
+        new Thread(aggregationServer).start();
+
+        try {
+            Socket idleSocket = new Socket(Test.host, Test.port);
+            Thread.sleep(100);
+
+            // Close the idle connection after a while, from another thread,
+            // making way for the GET.
+            new Thread(() -> {
+                try {
+                    Thread.sleep(500);
+                    idleSocket.close();
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }).start();
+
+            long start = System.currentTimeMillis();
+            HTTPResponse response = client.get();
+            long elapsed = System.currentTimeMillis() - start;
+
+            if (response.statusCode == 200 && elapsed >= 400) {
+                System.out.println("✔ Connection past the limit was served once another closed");
+            }
+            else {
+                System.out.println("✗ Connection past the limit wasn't held until another closed");
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        aggregationServer.stop();
+        aggregationServer.cleanBackup();
+    }
+
+    private static void testSlowClient() {
+        System.out.println("Testing that a slow client is cut off without affecting others...");
+
+        AggregationServer aggregationServer = new AggregationServer(Test.port);
+        GETClient client = new GETClient(Test.host, Test.port);
+
+        new Thread(aggregationServer).start();
+
+        try (Socket slowSocket = new Socket(Test.host, Test.port)) {
+            // Trickle the request head a byte at a time, each well within the
+            // socket timeout, for longer than the deadline for the head.
+            OutputStream slowOut = slowSocket.getOutputStream();
+            slowOut.write("GET /feed HTTP/1.1\n".getBytes(StandardCharsets.UTF_8));
+            slowOut.flush();
+
+            long start = System.currentTimeMillis();
+            HTTPResponse response = client.get();
+            if (response.statusCode == 200 && System.currentTimeMillis() - start < 1000) {
+                System.out.println("✔ Other clients were served while the slow client trickled");
+            }
+            else {
+                System.out.println("✗ Other clients weren't served while the slow client trickled");
+                System.exit(1);
+            }
+
+            boolean isClosed = false;
+            for (int i = 0; i < 2 * Common.AGGREGATION_HEAD_TIMEOUT / 250 && !isClosed; i++) {
+                Thread.sleep(250);
+                try {
+                    slowOut.write('X');
+                    slowOut.flush();
+                }
+                catch (SocketException e) {
+                    isClosed = true;
+                }
+            }
+
+            if (isClosed && aggregationServer.timeouts(AggregationWatchdog.HEAD) == 1) {
+                System.out.println("✔ Slow client was disconnected and counted as a timeout");
+            }
+            else {
+                System.out.println("✗ Slow client wasn't disconnected and counted as a timeout");
+                System.exit(1);
+            }
+
+            if (client.get().statusCode == 200) {
+                System.out.println("✔ AggregationServer kept running after the timeout");
+            }
+            else {
+                System.out.println("✗ AggregationServer didn't keep running after the timeout");
+                System.exit(1);
+            }
+
+            AggregationWatchdog watchdog = new AggregationWatchdog();
+            Socket idleSocket = new Socket();
+            AggregationWatchdog.Deadline deadline = watchdog.watch(idleSocket);
+            deadline.begin(AggregationWatchdog.IDLE);
+            deadline.expire();
+            watchdog.stop();
+
+            if (idleSocket.isClosed() && watchdog.timeouts(AggregationWatchdog.IDLE) == 0) {
+                System.out.println("✔ Idle connection was closed without counting as a timeout");
+            }
+            else {
+                System.out.println("✗ Idle connection wasn't closed, or counted as a timeout");
+                System.exit(1);
+            }
+
+            // Trickle the head of a second request on a kept-alive connection;
+            // it must be held to the deadline for heads, not for idling.
+            try (Socket keptSocket = new Socket(Test.host, Test.port)) {
+                keptSocket.setSoTimeout(Common.SOCKET_TIMEOUT);
+                OutputStream keptOut = keptSocket.getOutputStream();
+                keptOut.write("GET /feed HTTP/1.1\nConnection: keep-alive\n\n\n"
+                              .getBytes(StandardCharsets.UTF_8));
+                keptOut.flush();
+                HTTPResponse first = Common.readHTTPResponse(Common.getBufferedReader(keptSocket));
+                keptOut.write("GET /feed HTTP/1.1\n".getBytes(StandardCharsets.UTF_8));
+                keptOut.flush();
+
+                isClosed = false;
+                start = System.currentTimeMillis();
+                for (int i = 0; i < 2 * Common.AGGREGATION_HEAD_TIMEOUT / 250 && !isClosed; i++) {
+                    Thread.sleep(250);
+                    try {
+                        keptOut.write('X');
+                        keptOut.flush();
+                    }
+                    catch (SocketException e) {
+                        isClosed = true;
+                    }
+                }
+
+                if (first.statusCode == 200 && isClosed &&
+                    System.currentTimeMillis() - start < Common.AGGREGATION_IDLE_TIMEOUT &&
+                    aggregationServer.timeouts(AggregationWatchdog.HEAD) == 2) {
+                    System.out.println("✔ Slow head on a kept-alive connection was cut off as a timeout");
+                }
+                else {
+                    System.out.println("✗ Slow head on a kept-alive connection wasn't cut off as a timeout");
+                    System.exit(1);
+                }
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        aggregationServer.stop();
+        aggregationServer.cleanBackup();
+    }
+
+    private static void testAdmissionControl() {
+        System.out.println("Testing that requests over the admission limit are shed and retried...");
+
+        File backupFile = new File(Test.contentBackupPath + "server1.lock");
+        File inputFile = new File(Test.contentInputPath + "example1.txt");
+
+        AggregationServer aggregationServer = new AggregationServer(Test.port);
+        ContentServer contentServer = new ContentServer(Test.host, Test.port, backupFile);
+        GETClient client = new GETClient(Test.host, Test.port);
+
+        aggregationServer.setAdmissionLimit(AggregationAdmission.PUT, 1);
+        new Thread(aggregationServer).start();
+
+        try {
+            // Hold the only place for feed writes with a PUT whose body never
+            // finishes, until the socket is closed a second later. The socket
+            // is closed only by the thread that times it out.
+            Socket slowSocket = new Socket(Test.host, Test.port);
+            OutputStream slowOut = slowSocket.getOutputStream();
+            slowOut.write(("PUT /feed HTTP/1.1\n" +
+                           "UUID: " + UUID.randomUUID() + "\n" +
+                           "Lamport: 1\n\n<?xml").getBytes(StandardCharsets.UTF_8));
+            slowOut.flush();
+            Thread.sleep(250);
+            new Thread(() -> {
+                try {
+                    Thread.sleep(1000);
+                    slowSocket.close();
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }).start();
+
+            contentServer.beat();
+            if (client.get().statusCode == 200) {
+                System.out.println("✔ GETs and heartbeats were admitted while feed writes were full");
+            }
+            else {
+                System.out.println("✗ GETs and heartbeats weren't admitted while feed writes were full");
+                System.exit(1);
+            }
+
+            HTTPResponse response = contentServer.send(new AtomFeed(inputFile));
+            if (response.statusCode == 201 &&
+                aggregationServer.shed(AggregationAdmission.PUT) >= 1 &&
+                aggregationServer.shed(AggregationAdmission.HEARTBEAT) == 0 &&
+                aggregationServer.shed(AggregationAdmission.GET) == 0) {
+                System.out.println("✔ Shed PUT was retried after backing off, and nothing else was shed");
+            }
+            else {
+                System.out.println("✗ Shed PUT wasn't retried, or something else was shed");
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        aggregationServer.stop();
+        aggregationServer.cleanBackup();
+        contentServer.stop();
+        contentServer.cleanBackup();
+    }
+
+    private static void testRateLimit() {
+        System.out.println("Testing that feed writes are limited by size and by rate...");
+
+        File backupFile = new File(Test.contentBackupPath + "server1.lock");
+        File inputFile1 = new File(Test.contentInputPath + "example1.txt");
+        File inputFile2 = new File(Test.contentInputPath + "example2.txt");
+
+        AggregationServer aggregationServer = new AggregationServer(Test.port);
+        ContentServer contentServer = new ContentServer(Test.host, Test.port, backupFile);
+
+        aggregationServer.setRateLimit(1, 1);
+        new Thread(aggregationServer).start();
+
+        try {
+            HTTPResponse oversized = sendRaw("PUT /feed HTTP/1.1\n" +
+                                             "UUID: " + UUID.randomUUID() + "\n" +
+                                             "Content-Length: " + (Common.AGGREGATION_MAX_BODY_LENGTH + 1) + "\n" +
+                                             "Lamport: 1\n\n<?xml\n\n");
+            if (oversized.statusCode == 413) {
+                System.out.println("✔ Oversized PUT was refused before its body was read");
+            }
+            else {
+                System.out.println("✗ Oversized PUT wasn't refused");
+                System.exit(1);
+            }
+
+            // A body on a single line, read through a one-character buffer,
+            // must be refused having read little more than the limit.
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < 100000; i++) line.append('x');
+            BufferedReader in = new BufferedReader(new StringReader(line + "\n\n"), 1);
+            String body = Common.readHTTPBody(in, 1000);
+            long unread = in.skip(Long.MAX_VALUE);
+
+            BufferedReader skipped = new BufferedReader(new StringReader(line + "\n\n"), 1);
+            boolean isSkipped = Common.skipHTTPBody(skipped, 1000);
+            long unskipped = skipped.skip(Long.MAX_VALUE);
+
+            BufferedReader crlf = new BufferedReader(new StringReader("a\r\nb\r\n\r\nGET"));
+            String crlfBody = Common.readHTTPBody(crlf, 1000);
+
+            if (body == null && unread >= 100002 - 1002 &&
+                !isSkipped && unskipped >= 100002 - 1002 &&
+                crlfBody.equals("a\nb\n") && crlf.readLine().equals("GET")) {
+                System.out.println("✔ Body was read no further than the limit, whatever its lines");
+            }
+            else {
+                System.out.println("✗ Body was read past the limit");
+                System.exit(1);
+            }
+
+            UUID uuid = UUID.randomUUID();
+            String head = "PUT /feed HTTP/1.1\n" +
+                          "UUID: " + uuid + "\n" +
+                          "Lamport: 1\n\n";
+            sendRaw(head + "<?xml\n\n");
+            HTTPResponse limited = sendRaw(head + "<?xml\n\n");
+            if (limited.statusCode == 429 && limited.retryAfter > 0) {
+                System.out.println("✔ PUT over the publisher's rate was refused with Retry-After");
+            }
+            else {
+                System.out.println("✗ PUT over the publisher's rate wasn't refused with Retry-After");
+                System.exit(1);
+            }
+
+            long start = System.currentTimeMillis();
+            HTTPResponse response1 = contentServer.send(new AtomFeed(inputFile1));
+            HTTPResponse response2 = contentServer.send(new AtomFeed(inputFile2));
+            if (response1.statusCode == 201 && response2.statusCode == 200 &&
+                System.currentTimeMillis() - start >= 1000) {
+                System.out.println("✔ ContentServer retried a refused PUT once its rate allowed");
+            }
+            else {
+                System.out.println("✗ ContentServer didn't retry a refused PUT");
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        aggregationServer.stop();
+        aggregationServer.cleanBackup();
+        contentServer.stop();
+        contentServer.cleanBackup();
+    }
+
+    private static void testOutbox() {
+        System.out.println("Testing that feeds PUT while AggregationServer is down are delivered later...");
+
+        File backupFile1 = new File(Test.contentBackupPath + "server1.lock");
+        File backupFile2 = new File(Test.contentBackupPath + "server2.lock");
+        File inputFile1 = new File(Test.contentInputPath + "example1.txt");
+        File inputFile2 = new File(Test.contentInputPath + "example2.txt");
+
+        try {
+            AtomFeed feed2 = new AtomFeed(inputFile2);
+
+            {
+                ContentOutbox outbox = new ContentOutbox(Test.host, Test.port);
+                ContentServer contentServer1 = new ContentServer(Test.host, Test.port, null,
+                                                                 backupFile1, outbox);
+                ContentServer contentServer2 = new ContentServer(Test.host, Test.port, null,
+                                                                 backupFile2, outbox);
+
+                HTTPResponse response1 = contentServer1.send(new AtomFeed(inputFile1));
+                HTTPResponse response2 = contentServer1.send(feed2);
+                HTTPResponse response3 = contentServer2.send(feed2);
+                String pending = new String(Files.readAllBytes(ContentOutbox.getOutboxFile(backupFile1).toPath()),
+                                            StandardCharsets.UTF_8);
+
+                if (response1.statusCode == 202 && response2.statusCode == 202 &&
+                    response3.statusCode == 202 && outbox.size() == 2 &&
+                    pending.equals(Common.marshalXML(feed2))) {
+                    System.out.println("✔ Undeliverable PUTs were queued, keeping only the latest per UUID");
+                }
+                else {
+                    System.out.println("✗ Undeliverable PUTs weren't queued and coalesced");
+                    System.exit(1);
+                }
+
+                contentServer1.stop();
+                contentServer2.stop();
+                outbox.stop();
+            }
+
+            ContentOutbox outbox = new ContentOutbox(Test.host, Test.port);
+            ContentServer contentServer1 = new ContentServer(Test.host, Test.port, null,
+                                                             backupFile1, outbox);
+            ContentServer contentServer2 = new ContentServer(Test.host, Test.port, null,
+                                                             backupFile2, outbox);
+
+            if (outbox.size() == 2) {
+                System.out.println("✔ Queued PUTs were restored after a restart");
+            }
+            else {
+                System.out.println("✗ Queued PUTs weren't restored after a restart");
+                System.exit(1);
+            }
+
+            AggregationServer aggregationServer = new AggregationServer(Test.port);
+            GETClient client = new GETClient(Test.host, Test.port);
+            new Thread(aggregationServer).start();
+
+            for (int i = 0; i < 40 && outbox.size() > 0; i++) {
+                Thread.sleep(250);
+            }
+            AtomFeed aggregatedFeed = Common.unmarshalXML(client.get().body);
+
+            if (outbox.size() == 0 &&
+                !ContentOutbox.getOutboxFile(backupFile1).exists() &&
+                aggregatedFeed.getEntries().size() == 2 * feed2.getEntries().size()) {
+                System.out.println("✔ Queued PUTs were delivered once AggregationServer was back");
+            }
+            else {
+                System.out.println("✗ Queued PUTs weren't delivered once AggregationServer was back");
+                System.exit(1);
+            }
+
+            aggregationServer.stop();
+            aggregationServer.cleanBackup();
+            contentServer1.stop();
+            contentServer1.cleanBackup();
+            contentServer2.stop();
+            contentServer2.cleanBackup();
+            outbox.stop();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void testAsyncGET() {
+        System.out.println("Testing concurrent GETs from the AsyncGETClient...");
+
+        File backupFile = new File(Test.contentBackupPath + "server1.lock");
+        File inputFile1 = new File(Test.contentInputPath + "example1.txt");
+        File inputFile2 = new File(Test.contentInputPath + "example2.txt");
+
+        AggregationServer aggregationServer = new AggregationServer(Test.port);
+        ContentServer contentServer = new ContentServer(Test.host, Test.port, backupFile);
+        AsyncGETClient client = new AsyncGETClient(Test.host, Test.port);
+
+        new Thread(aggregationServer).start();
+
+        try {
+            contentServer.send(new AtomFeed(inputFile1));
+
+            List<CompletableFuture<HTTPResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                futures.add(client.get());
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                             .get(30, TimeUnit.SECONDS);
+
+            String body = futures.get(0).get().body;
+            boolean isConsistent = true;
+            for (CompletableFuture<HTTPResponse> future : futures) {
+                isConsistent &= future.get().statusCode == 200 && future.get().body.equals(body);
+            }
+            long threads = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals("AsyncGETClient"))
+                .count();
+
+            if (isConsistent && threads <= Common.CLIENT_POOL_SIZE) {
+                System.out.println("✔ 1000 concurrent GETs were served on " + threads + " pooled connections");
+            }
+            else {
+                System.out.println("✗ Concurrent GETs failed, or used more threads than pooled connections");
+                System.exit(1);
+            }
+
+            long revalidations = client.revalidations();
+            HTTPResponse unchanged = client.get().get(5, TimeUnit.SECONDS);
+            if (unchanged.body.equals(body) && client.revalidations() == revalidations + 1) {
+                System.out.println("✔ Unchanged feed was revalidated rather than sent again");
+            }
+            else {
+                System.out.println("✗ Unchanged feed wasn't revalidated");
+                System.exit(1);
+            }
+
+            contentServer.send(new AtomFeed(inputFile2));
+            HTTPResponse changed = client.get().get(5, TimeUnit.SECONDS);
+            if (changed.statusCode == 200 && !changed.body.equals(body) &&
+                client.revalidations() == revalidations + 1) {
+                System.out.println("✔ Changed feed was sent again in full");
+            }
+            else {
+                System.out.println("✗ Changed feed wasn't sent again in full");
+                System.exit(1);
+            }
+
+            futures.clear();
+            for (int i = 1; i <= 2 * Common.CLIENT_RESPONSE_LIMIT; i++) {
+                futures.add(client.get("feed?limit=" + i));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                             .get(30, TimeUnit.SECONDS);
+
+            if (client.responses() == Common.CLIENT_RESPONSE_LIMIT) {
+                System.out.println("✔ Only the most recently fetched responses were kept");
+            }
+            else {
+                System.out.println("✗ Kept responses weren't bounded: " + client.responses());
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        client.close();
+        aggregationServer.stop();
+        aggregationServer.cleanBackup();
+        contentServer.stop();
+        contentServer.cleanBackup();
+    }
+
+    private static void testLamportLease() {
+        System.out.println("Testing that the Lamport clock leases its times in blocks...");
+
+        File leaseFile = LamportClock.getLeaseFile(new File(Test.contentBackupPath + "clock.lock"));
+        int threadCount = 4;
+        int tickCount = 10000;
+
+        try {
+            LamportClock clock = new LamportClock();
+            clock.lease(leaseFile);
+
+            long[][] times = new long[threadCount][tickCount];
+            Thread[] threads = new Thread[threadCount];
+            for (int i = 0; i < threadCount; i++) {
+                long[] issued = times[i];
+                threads[i] = new Thread(() -> {
+                    for (int j = 0; j < tickCount; j++) {
+                        issued[j] = j % 2 == 0 ? clock.update() : clock.update(issued[j - 1]);
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            HashSet<Long> distinct = new HashSet<>();
+            boolean isIncreasing = true;
+            for (long[] issued : times) {
+                for (int j = 0; j < tickCount; j++) {
+                    distinct.add(issued[j]);
+                    isIncreasing &= j == 0 || issued[j] > issued[j - 1];
+                }
+            }
+
+            if (isIncreasing && distinct.size() == threadCount * tickCount &&
+                clock.peek() == threadCount * tickCount) {
+                System.out.println("✔ Concurrent ticks were distinct and increasing on every thread");
+            }
+            else {
+                System.out.println("✗ Concurrent ticks were repeated or out of order");
+                System.exit(1);
+            }
+
+            long reserved = Long.parseLong(new String(Files.readAllBytes(leaseFile.toPath()),
+                                                      StandardCharsets.UTF_8).trim());
+            LamportClock restarted = new LamportClock();
+            restarted.lease(leaseFile);
+
+            if (reserved > clock.peek() && reserved - clock.peek() <= Common.LAMPORT_LEASE_BLOCK &&
+                restarted.update() > clock.peek()) {
+                System.out.println("✔ Restarted clock resumed past every time issued, from the leased block");
+            }
+            else {
+                System.out.println("✗ Restarted clock didn't resume past every time issued");
+                System.exit(1);
+            }
+
+            // Resume a clock from just short of its greatest time.
+            Files.write(leaseFile.toPath(), String.valueOf(Long.MAX_VALUE - 1)
+                                                  .getBytes(StandardCharsets.UTF_8));
+            LamportClock saturated = new LamportClock();
+            saturated.lease(leaseFile);
+            if (saturated.update() == Long.MAX_VALUE && saturated.update() == Long.MAX_VALUE) {
+                System.out.println("✔ Clock saturated at its greatest time rather than wrapping around");
+            }
+            else {
+                System.out.println("✗ Clock wrapped around past its greatest time");
+                System.exit(1);
+            }
+
+            LamportClock skewed = new LamportClock();
+            if (skewed.update(Long.MAX_VALUE) == Common.LAMPORT_MAX_SKEW + 1) {
+                System.out.println("✔ Remote time too far ahead was taken as only the maximum skew");
+            }
+            else {
+                System.out.println("✗ Remote time too far ahead was taken as it was");
+                System.exit(1);
+            }
+
+            // Lease from a file in a directory that disappears once the first
+            // block is leased, so that leasing the next one fails.
+            File leaseDirectory = new File(Test.contentBackupPath + "clock");
+            leaseDirectory.mkdir();
+            File failingFile = LamportClock.getLeaseFile(new File(leaseDirectory, "clock.lock"));
+            LamportClock failing = new LamportClock();
+            failing.lease(failingFile);
+            Files.delete(failingFile.toPath());
+            Files.delete(leaseDirectory.toPath());
+
+            boolean isRefused = false;
+            try {
+                failing.update(Common.LAMPORT_LEASE_BLOCK);
+            }
+            catch (RuntimeException e) {
+                isRefused = true;
+            }
+
+            if (isRefused) {
+                System.out.println("✔ Clock refused to tick past its lease when the next couldn't be written");
+            }
+            else {
+                System.out.println("✗ Clock ticked past its lease without writing the next");
+                System.exit(1);
+            }
+
+            Files.deleteIfExists(leaseFile.toPath());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // Send a supplied raw request to the AggregationServer and read its
+    // response.
+    private static HTTPResponse sendRaw(String request) throws Exception {
+        try (Socket socket = new Socket(Test.host, Test.port)) {
+            socket.setSoTimeout(Common.SOCKET_TIMEOUT);
+            OutputStream out = socket.getOutputStream();
+            out.write(request.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            return Common.readHTTPResponse(Common.getBufferedReader(socket));
+        }
+    }
+
+    private static void testMemoryBudget() {
+        System.out.println("Testing AggregationServer spilling feeds beyond its memory budget...");
+
+        File backupFile1 = new File(Test.contentBackupPath + "server1.lock");
+        File backupFile2 = new File(Test.contentBackupPath + "server2.lock");
+        File inputFile1 = new File(Test.contentInputPath + "example1.txt");
+        File inputFile2 = new File(Test.contentInputPath + "example2.txt");
+        AtomFeed originalFeed1 = new AtomFeed(inputFile1);
+        AtomFeed originalFeed2 = new AtomFeed(inputFile2);
+
+        AggregationServer aggregationServer = new AggregationServer(Test.port);
+        ContentServer contentServer1 = new ContentServer(Test.host, Test.port, backupFile1);
+        ContentServer contentServer2 = new ContentServer(Test.host, Test.port, backupFile2);
+        GETClient client = new GETClient(Test.host, Test.port);
+
+        try {
+            aggregationServer.setMemoryBudget(new CompactFeed(originalFeed2).sizeOf());
+            new Thread(aggregationServer).start();
+
+            contentServer1.send(originalFeed1);
+            contentServer2.send(originalFeed2);
+
+            if (aggregationServer.isSpilled(contentServer1.uuid()) &&
+                !aggregationServer.isSpilled(contentServer2.uuid())) {
+                System.out.println("✔ Least recently PUT feed was spilled to disk");
+            }
+            else {
+                System.out.println("✗ Least recently PUT feed wasn't spilled to disk");
+                System.exit(1);
+            }
+
+            ArrayList<AtomEntry> originalEntries = new ArrayList<>(originalFeed1.getEntries());
+            originalEntries.addAll(originalFeed2.getEntries());
+            AtomFeed newFeed = Common.unmarshalXML(client.get().body);
+
+            if (newFeed.getEntries().equals(originalEntries)) {
+                System.out.println("✔ Aggregated feed contains entries from spilled and resident feeds, in order");
+            }
+            else {
+                System.out.println("✗ Aggregated feed is missing entries from spilled or resident feeds");
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        aggregationServer.stop();
+        aggregationServer.cleanBackup();
+        contentServer1.stop();
+        contentServer1.cleanBackup();
+        contentServer2.stop();
+        contentServer2.cleanBackup();
+    }
+
+    private static void testCompressedCache() {
+        System.out.println("Testing AggregationServer storing feeds compressed...");
+
+        File backupFile1 = new File(Test.contentBackupPath + "server1.lock");
+        File backupFile2 = new File(Test.contentBackupPath + "server2.lock");
+        File inputFile1 = new File(Test.contentInputPath + "example1.txt");
+        File inputFile2 = new File(Test.contentInputPath + "example2.txt");
+        AtomFeed originalFeed1 = new AtomFeed(inputFile1);
+        AtomFeed originalFeed2 = new AtomFeed(inputFile2);
+
+        ContentServer contentServer1 = new ContentServer(Test.host, Test.port, backupFile1);
+        ContentServer contentServer2 = new ContentServer(Test.host, Test.port, backupFile2);
+        GETClient client = new GETClient(Test.host, Test.port);
+
+        ArrayList<AtomEntry> originalEntries = new ArrayList<>(originalFeed1.getEntries());
+        originalEntries.addAll(originalFeed2.getEntries());
+
+        try {
+            {
+                AggregationServer aggregationServer = new AggregationServer(Test.port);
+                aggregationServer.setCompressed(true);
+                aggregationServer.setMemoryBudget(1);
+                new Thread(aggregationServer).start();
+
+                contentServer1.send(originalFeed1);
+                contentServer2.send(originalFeed2);
+                AtomFeed newFeed = Common.unmarshalXML(client.get().body);
+
+                if (newFeed.getEntries().equals(originalEntries)) {
+                    System.out.println("✔ Aggregated feed matches feeds stored compressed and spilled");
+                }
+                else {
+                    System.out.println("✗ Aggregated feed doesn't match feeds stored compressed");
+                    System.exit(1);
+                }
+
+                aggregationServer.stop();
+            }
+
+            {
+                AggregationServer aggregationServer = new AggregationServer(Test.port);
+                new Thread(aggregationServer).start();
+                AtomFeed newFeed = Common.unmarshalXML(client.get().body);
+
+                if (newFeed.getEntries().equals(originalEntries)) {
+                    System.out.println("✔ Compressed feeds were recovered from backup");
+                }
+                else {
+                    System.out.println("✗ Compressed feeds weren't recovered from backup");
+                    System.exit(1);
+                }
+
+                aggregationServer.stop();
+                aggregationServer.cleanBackup();
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        contentServer1.stop();
+        contentServer1.cleanBackup();
+        contentServer2.stop();
+        contentServer2.cleanBackup();
+    }
+
+    private static void testContentHost() {
+        System.out.println("Testing ContentHost publishing a directory of feeds...");
+
+        File inputDirectory = new File(Test.contentInputPath);
+        AtomFeed originalFeed1 = new AtomFeed(new File(Test.contentInputPath + "example1.txt"));
+        AtomFeed originalFeed2 = new AtomFeed(new File(Test.contentInputPath + "example2.txt"));
+
+        AggregationServer aggregationServer = new AggregationServer(Test.port);
+        ContentHost contentHost = new ContentHost(Test.host, Test.port, inputDirectory);
+        GETClient client = new GETClient(Test.host, Test.port);
+
+        new Thread(aggregationServer).start();
+
+        try {
+            contentHost.start();
+
+            if (contentHost.size() == 2) {
+                System.out.println("✔ ContentHost loaded both feeds from the input directory");
+            }
+            else {
+                System.out.println("✗ ContentHost didn't load both feeds from the input directory");
+                System.exit(1);
+            }
+
+            System.out.println("✔ Waiting for scheduled PUTs and heartbeats");
+            Thread.sleep(Common.CONTENT_HEARTBEAT_INTERVAL * 2);
+
+            HTTPResponse response = client.get();
+            AtomFeed newFeed = Common.unmarshalXML(response.body);
+
+            ArrayList<String> originalIds = new ArrayList<>();
+            originalFeed1.getEntries().forEach(entry -> originalIds.add(entry.getId()));
+            originalFeed2.getEntries().forEach(entry -> originalIds.add(entry.getId()));
+
+            List<String> newIds = newFeed.getEntries()
+                .stream()
+                .map(entry -> entry.getId())
+                .collect(Collectors.toList());
+
+            if (originalIds.size() == newIds.size() && originalIds.containsAll(newIds)) {
+                System.out.println("✔ Aggregated feed contains all entries from both hosted feeds");
+            }
+            else {
+                System.out.println("✗ Aggregated feed doesn't contain all entries from both hosted feeds");
+                System.exit(1);
+            }
+
+            Thread.sleep(Common.CONTENT_HEARTBEAT_INTERVAL * 2);
+            ContentConnections connections = contentHost.connections();
+
+            if (connections.opened() <= Common.CONTENT_HOST_POOL_SIZE &&
+                connections.sent() > connections.opened()) {
+                System.out.println("✔ PUTs and heartbeats of both feeds shared pooled connections");
+            }
+            else {
+                System.out.println("✗ PUTs and heartbeats of both feeds weren't sent on pooled connections");
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        contentHost.stop();
+        contentHost.cleanBackup();
+        aggregationServer.stop();
+        aggregationServer.cleanBackup();
+    }
+
+    private static void testContentHostWatch() {
+        System.out.println("Testing ContentHost re-publishing a watched directory...");
+
+        File watchDirectory = new File(Test.contentWatchPath);
+        File watchedFile = new File(Test.contentWatchPath + "watched.txt");
+        File inputFile1 = new File(Test.contentInputPath + "example1.txt");
+        File inputFile2 = new File(Test.contentInputPath + "example2.txt");
+        AtomFeed originalFeed1 = new AtomFeed(inputFile1);
+        AtomFeed originalFeed2 = new AtomFeed(inputFile2);
+
+        AggregationServer aggregationServer = new AggregationServer(Test.port);
+        ContentHost contentHost = new ContentHost(Test.host, Test.port, watchDirectory);
+        GETClient client = new GETClient(Test.host, Test.port);
+
+        new Thread(aggregationServer).start();
+
+        try {
+            watchDirectory.mkdirs();
+            Files.copy(inputFile1.toPath(), watchedFile.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+            contentHost.watch();
+
+            System.out.println("✔ Waiting for initial PUT of watched feed");
+            Thread.sleep(Common.CONTENT_HEARTBEAT_INTERVAL);
+
+            List<String> originalIds1 = originalFeed1.getEntries()
+                .stream()
+                .map(entry -> entry.getId())
+                .collect(Collectors.toList());
+
+            List<String> newIds1 = Common.unmarshalXML(client.get().body).getEntries()
+                .stream()
+                .map(entry -> entry.getId())
+                .collect(Collectors.toList());
+
+            if (originalIds1.equals(newIds1)) {
+                System.out.println("✔ Aggregated feed contains the watched feed");
+            }
+            else {
+                System.out.println("✗ Aggregated feed doesn't contain the watched feed");
+                System.exit(1);
+            }
+
+            System.out.println("✔ Replacing contents of watched feed");
+            Files.copy(inputFile2.toPath(), watchedFile.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+            Thread.sleep(Common.CONTENT_WATCH_DEBOUNCE + 1000);
+
+            List<String> originalIds2 = originalFeed2.getEntries()
+                .stream()
+                .map(entry -> entry.getId())
+                .collect(Collectors.toList());
+
+            List<String> newIds2 = Common.unmarshalXML(client.get().body).getEntries()
+                .stream()
+                .map(entry -> entry.getId())
+                .collect(Collectors.toList());
+
+            if (originalIds2.equals(newIds2)) {
+                System.out.println("✔ Aggregated feed contains the changed feed");
+            }
+            else {
+                System.out.println("✗ Aggregated feed doesn't contain the changed feed");
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        contentHost.stop();
+        contentHost.cleanBackup();
+        aggregationServer.stop();
+        aggregationServer.cleanBackup();
+
+        try {
+            Files.delete(watchedFile.toPath());
+            Files.delete(watchDirectory.toPath());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     private static void testAggregationJanitor() {
         System.out.println("Testing AggregationJanitor...");
 